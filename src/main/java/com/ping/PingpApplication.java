@@ -112,24 +112,28 @@ public class PingpApplication {
         ClientProperties prop = applicationContext.getBean(ClientProperties.class);
         TcpClient client = new TcpClient(ip, port, path, maxThreads, prop);
         client.upload();
+        client.close();
     }
 
     public static void upsyn(String ip, int port, String path, int maxThreads) {
         ClientProperties prop = applicationContext.getBean(ClientProperties.class);
         TcpClient client = new TcpClient(ip, port, path, maxThreads, prop);
         client.upsyn();
+        client.close();
     }
 
     public static void download(String ip, int port, String path, int maxThreads) {
         ClientProperties prop = applicationContext.getBean(ClientProperties.class);
         TcpClient client = new TcpClient(ip, port, path, maxThreads, prop);
         client.download();
+        client.close();
     }
 
     public static void dwsyn(String ip, int port, String path, int maxThreads) {
         ClientProperties prop = applicationContext.getBean(ClientProperties.class);
         TcpClient client = new TcpClient(ip, port, path, maxThreads, prop);
         client.dwsyn();
+        client.close();
     }
 
     public static void server(int port, String dir, int maxThreads) {
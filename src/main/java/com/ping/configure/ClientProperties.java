@@ -22,7 +22,26 @@ public class ClientProperties {
 	public long timeout = 0;
 	public long maxThreads = Runtime.getRuntime().availableProcessors() * 4;
 	public long chunkSize = 0;
+	public boolean adaptiveChunk = false;
+	public long chunkSizeMin = 0;
+	public long chunkSizeMax = 0;
+	public boolean compress = false;
+	public long bundleThreshold = 0;
+	public long bundleFiles = 0;
+	public long rangeThreshold = 0;
+	public long rangeConnections = 0;
+	public long deltaThreshold = 0;
+	public long dedupThreshold = 0;
+	public long hashThreads = 0;
+	public String chksumAlgo = null;
+	public long chksumCacheSize = 0;
+	public long window = 0;
 	public boolean sync = true;
+	public boolean session = true;
+	public long poolIdleTimeout = 0;
+	public long poolMaxLifetime = 0;
+	public boolean virtualThreads = false;
+	public long bufferPoolSize = 0;
 	public boolean debug = false;
 	public boolean cvsExclude = true;
 
@@ -74,6 +93,118 @@ public class ClientProperties {
 		this.chunkSize = chunkSize;
 	}
 
+	public boolean isAdaptiveChunk() {
+		return adaptiveChunk;
+	}
+
+	public void setAdaptiveChunk(boolean adaptiveChunk) {
+		this.adaptiveChunk = adaptiveChunk;
+	}
+
+	public long getChunkSizeMin() {
+		return chunkSizeMin;
+	}
+
+	public void setChunkSizeMin(long chunkSizeMin) {
+		this.chunkSizeMin = chunkSizeMin;
+	}
+
+	public long getChunkSizeMax() {
+		return chunkSizeMax;
+	}
+
+	public void setChunkSizeMax(long chunkSizeMax) {
+		this.chunkSizeMax = chunkSizeMax;
+	}
+
+	public boolean isCompress() {
+		return compress;
+	}
+
+	public void setCompress(boolean compress) {
+		this.compress = compress;
+	}
+
+	public long getBundleThreshold() {
+		return bundleThreshold;
+	}
+
+	public void setBundleThreshold(long bundleThreshold) {
+		this.bundleThreshold = bundleThreshold;
+	}
+
+	public long getBundleFiles() {
+		return bundleFiles;
+	}
+
+	public void setBundleFiles(long bundleFiles) {
+		this.bundleFiles = bundleFiles;
+	}
+
+	public long getRangeThreshold() {
+		return rangeThreshold;
+	}
+
+	public void setRangeThreshold(long rangeThreshold) {
+		this.rangeThreshold = rangeThreshold;
+	}
+
+	public long getRangeConnections() {
+		return rangeConnections;
+	}
+
+	public void setRangeConnections(long rangeConnections) {
+		this.rangeConnections = rangeConnections;
+	}
+
+	public long getDeltaThreshold() {
+		return deltaThreshold;
+	}
+
+	public void setDeltaThreshold(long deltaThreshold) {
+		this.deltaThreshold = deltaThreshold;
+	}
+
+	public long getDedupThreshold() {
+		return dedupThreshold;
+	}
+
+	public void setDedupThreshold(long dedupThreshold) {
+		this.dedupThreshold = dedupThreshold;
+	}
+
+	public long getHashThreads() {
+		return hashThreads;
+	}
+
+	public void setHashThreads(long hashThreads) {
+		this.hashThreads = hashThreads;
+	}
+
+	public String getChksumAlgo() {
+		return chksumAlgo;
+	}
+
+	public void setChksumAlgo(String chksumAlgo) {
+		this.chksumAlgo = chksumAlgo;
+	}
+
+	public long getChksumCacheSize() {
+		return chksumCacheSize;
+	}
+
+	public void setChksumCacheSize(long chksumCacheSize) {
+		this.chksumCacheSize = chksumCacheSize;
+	}
+
+	public long getWindow() {
+		return window;
+	}
+
+	public void setWindow(long window) {
+		this.window = window;
+	}
+
 	public boolean isSync() {
 		return sync;
 	}
@@ -82,6 +213,46 @@ public class ClientProperties {
 		this.sync = sync;
 	}
 
+	public boolean isSession() {
+		return session;
+	}
+
+	public void setSession(boolean session) {
+		this.session = session;
+	}
+
+	public long getPoolIdleTimeout() {
+		return poolIdleTimeout;
+	}
+
+	public void setPoolIdleTimeout(long poolIdleTimeout) {
+		this.poolIdleTimeout = poolIdleTimeout;
+	}
+
+	public long getPoolMaxLifetime() {
+		return poolMaxLifetime;
+	}
+
+	public void setPoolMaxLifetime(long poolMaxLifetime) {
+		this.poolMaxLifetime = poolMaxLifetime;
+	}
+
+	public boolean isVirtualThreads() {
+		return virtualThreads;
+	}
+
+	public void setVirtualThreads(boolean virtualThreads) {
+		this.virtualThreads = virtualThreads;
+	}
+
+	public long getBufferPoolSize() {
+		return bufferPoolSize;
+	}
+
+	public void setBufferPoolSize(long bufferPoolSize) {
+		this.bufferPoolSize = bufferPoolSize;
+	}
+
 	public boolean isDebug() {
 		return debug;
 	}
@@ -22,6 +22,16 @@ public class ServProperties {
 	public long maxThreads = Runtime.getRuntime().availableProcessors() * 10;
 	public boolean sync = true;
 	public boolean debug = false;
+	public boolean virtualThreads = false;
+	public String engine = null;
+	public long ioThreads = 0;
+	public long bufferPoolSize = 0;
+	public boolean bufferDirect = true;
+	public boolean compress = true;
+	public boolean chunkStore = false;
+	public long chunkStoreSize = 0;
+	public long chksumCacheSize = 0;
+	public long chksumScanRate = 0;
 
 	public int getPort() {
 		return port;
@@ -71,4 +81,83 @@ public class ServProperties {
 		this.debug = debug;
 	}
 
+	public boolean isVirtualThreads() {
+		return virtualThreads;
+	}
+
+	public void setVirtualThreads(boolean virtualThreads) {
+		this.virtualThreads = virtualThreads;
+	}
+
+	public String getEngine() {
+		return engine;
+	}
+
+	public void setEngine(String engine) {
+		this.engine = engine;
+	}
+
+	public long getIoThreads() {
+		return ioThreads;
+	}
+
+	public void setIoThreads(long ioThreads) {
+		this.ioThreads = ioThreads;
+	}
+
+	public long getBufferPoolSize() {
+		return bufferPoolSize;
+	}
+
+	public void setBufferPoolSize(long bufferPoolSize) {
+		this.bufferPoolSize = bufferPoolSize;
+	}
+
+	public boolean isBufferDirect() {
+		return bufferDirect;
+	}
+
+	public void setBufferDirect(boolean bufferDirect) {
+		this.bufferDirect = bufferDirect;
+	}
+
+	public boolean isCompress() {
+		return compress;
+	}
+
+	public void setCompress(boolean compress) {
+		this.compress = compress;
+	}
+
+	public boolean isChunkStore() {
+		return chunkStore;
+	}
+
+	public void setChunkStore(boolean chunkStore) {
+		this.chunkStore = chunkStore;
+	}
+
+	public long getChunkStoreSize() {
+		return chunkStoreSize;
+	}
+
+	public void setChunkStoreSize(long chunkStoreSize) {
+		this.chunkStoreSize = chunkStoreSize;
+	}
+
+	public long getChksumCacheSize() {
+		return chksumCacheSize;
+	}
+
+	public void setChksumCacheSize(long chksumCacheSize) {
+		this.chksumCacheSize = chksumCacheSize;
+	}
+
+	public long getChksumScanRate() {
+		return chksumScanRate;
+	}
+
+	public void setChksumScanRate(long chksumScanRate) {
+		this.chksumScanRate = chksumScanRate;
+	}
 }
@@ -0,0 +1,93 @@
+package com.ping.file.client;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * 自适应数据块大小.
+ * <p>
+ * 按应答延迟和吞吐率调整一个连接的数据块大小, 结果限定在[min, max]内:<br>
+ * 延迟超过最小延迟的LATENCY_FACTOR倍, 吞吐率跌到上次的一半以下或传输出错时减半;<br>
+ * 否则吞吐率不低于上次的GROW_TOLERANCE时增大1/4.<br>
+ * min与max相等时为固定大小. 仅由持有连接的处理线程访问.
+ *
+ * @author lawnstein.chan
+ * @version $Revision:$
+ */
+class ChunkSizer {
+    private static final Logger logger = LoggerFactory.getLogger(ChunkSizer.class);
+
+    protected static final int LATENCY_FACTOR = 2;
+    /**
+     * 延迟比较的绝对容差, 避免本地回环等极小延迟下的误判.
+     */
+    protected static final long LATENCY_SLACK_NANOS = 2000000L;
+    protected static final double GROW_TOLERANCE = 0.9;
+
+    private final long min;
+    private final long max;
+    private long size;
+
+    private long minRttNanos = Long.MAX_VALUE;
+    private double lastRate = 0;
+
+    public ChunkSizer(long initial, long min, long max) {
+        this.min = min > 0 ? min : 1;
+        this.max = max >= this.min ? max : this.min;
+        this.size = clamp(initial);
+    }
+
+    public boolean isAdaptive() {
+        return min < max;
+    }
+
+    public long get() {
+        return size;
+    }
+
+    public long getMax() {
+        return max;
+    }
+
+    /**
+     * 记录一次应答.
+     *
+     * @param bytes        本次应答确认的字节数.
+     * @param elapsedNanos 确认这些字节所用时间.
+     * @param rttNanos     数据块发出到收到应答的延迟.
+     */
+    public void onAck(long bytes, long elapsedNanos, long rttNanos) {
+        if (!isAdaptive() || bytes <= 0 || elapsedNanos <= 0) {
+            return;
+        }
+        double rate = bytes * 1000000000d / elapsedNanos;
+        if (rttNanos > 0 && rttNanos < minRttNanos) {
+            minRttNanos = rttNanos;
+        }
+
+        long old = size;
+        if (rttNanos > minRttNanos * LATENCY_FACTOR + LATENCY_SLACK_NANOS || rate < lastRate / 2) {
+            size = clamp(size / 2);
+        } else if (rate >= lastRate * GROW_TOLERANCE) {
+            size = clamp(size + Math.max(size / 4, 1));
+        }
+        lastRate = rate;
+        if (size != old) {
+            logger.debug("chunk size {} -> {}, rate {} B/s, rtt {}us, min rtt {}us", old, size, (long) rate, rttNanos / 1000, minRttNanos / 1000);
+        }
+    }
+
+    /**
+     * 传输出错或超时.
+     */
+    public void onFailure() {
+        if (isAdaptive()) {
+            size = clamp(size / 2);
+            lastRate = 0;
+        }
+    }
+
+    private long clamp(long v) {
+        return v < min ? min : (v > max ? max : v);
+    }
+}
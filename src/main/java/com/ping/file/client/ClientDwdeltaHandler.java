@@ -0,0 +1,147 @@
+package com.ping.file.client;
+
+import com.ping.file.protocol.Command;
+import com.ping.file.protocol.Packet;
+import com.ping.file.util.BufferPool;
+import com.ping.file.util.ChksumCache;
+import com.ping.file.util.ClientSocket;
+import com.ping.file.util.DeltaApplier;
+import com.ping.file.util.DeltaSignature;
+import com.ping.file.util.Utils;
+import com.ping.sync.ChangeManager;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.net.Socket;
+
+/**
+ * 差量下载处理器.
+ * <p>
+ * 发送本地文件的块签名, 按服务端推送的指令由本地文件和收到的数据生成临时文件, 摘要校验通过后替换本地文件.<br>
+ * 服务端拒绝或校验失败时isResult为false, 调用方改为完整下载.
+ *
+ * @author lawnstein.chan
+ * @version $Revision:$
+ */
+class ClientDwdeltaHandler implements Runnable {
+    private static final Logger logger = LoggerFactory.getLogger(ClientDwdeltaHandler.class);
+
+    private TcpClient owner;
+    private boolean sync;
+
+    private Socket s;
+    private String filePath;
+    private String tempPath;
+    private String filename;
+    private String fileChksum = null;
+    private long fileSize = 0l;
+    private DeltaApplier applier = null;
+    private Packet send = null;
+    private Packet recv = null;
+    private boolean result = false;
+    /**
+     * 交互已完整结束, 连接可复用.
+     */
+    private boolean over = false;
+
+    public ClientDwdeltaHandler(TcpClient owner, boolean sync, String fullname, String rfilename) throws Exception {
+        this.owner = owner;
+        this.sync = sync;
+        this.s = owner.openConnection();
+        logger.debug("connected to server {}:{} {} for  {}", owner.ip, owner.port, s, rfilename);
+        this.filePath = fullname;
+        this.tempPath = fullname + Utils.DEFAULT_TRANSFERING_DLT_SUFFIX;
+        this.filename = rfilename;
+    }
+
+    public boolean isResult() {
+        return result;
+    }
+
+    private void close() {
+        logger.debug("connection {} released for {}", s, filename);
+        owner.releaseConnection(s, over);
+        if (applier != null) {
+            applier.close();
+            Utils.fileDelete(tempPath);
+        }
+    }
+
+    /**
+     * 校验并替换本地文件.
+     */
+    private void finishDelta() throws IOException {
+        applier.close();
+        applier = null;
+        if (Utils.filesize(tempPath) != fileSize || !Utils.equals(fileChksum, Utils.chksumAs(tempPath, fileChksum))) {
+            Utils.fileDelete(tempPath);
+            logger.warn("file {} delta chksum mismatch.", filename);
+            return;
+        }
+        Utils.replaceFile(tempPath, filePath);
+        if (sync) {
+            ChangeManager.writeClientChangelog(filePath, fileChksum);
+        }
+        result = true;
+    }
+
+    @Override
+    public void run() {
+        try {
+            DeltaSignature sig = DeltaSignature.compute(filePath);
+            send = new Packet();
+            send.command = Command.DWDELTA;
+            send.cmdResult = true;
+            send.filename = filename;
+            send.filesize = Utils.filesize(filePath);
+            send.chksum = ChksumCache.chksum(filePath);
+            send.chunkSize = (long) sig.getBlockSize();
+            if (sig.length() > 0) {
+                send.chunkBytes = BufferPool.get().lease(sig.length());
+                send.chunkLength = sig.length();
+                sig.write(send.chunkBytes);
+            }
+            try {
+                ClientSocket.sendPacket(s, send);
+            } finally {
+                BufferPool.get().release(send.chunkBytes);
+                send.chunkBytes = null;
+            }
+            logger.debug("first send {}", send);
+            recv = ClientSocket.recvPacket(s, owner.timeout);
+            logger.debug("first recv {}", recv);
+            if (!recv.cmdResult || (recv.filepos != null && recv.filepos == Long.MAX_VALUE)) {
+                over = true;
+                result = recv.cmdResult;
+                return;
+            }
+
+            fileSize = recv.filesize;
+            fileChksum = recv.chksum;
+            applier = new DeltaApplier(filePath, tempPath, sig.getBlockSize());
+            for (; ; ) {
+                recv = ClientSocket.recvPacket(s, owner.timeout);
+                if (!recv.cmdResult) {
+                    throw new RuntimeException("Remote fail : " + recv.cmdMesg);
+                }
+                if (recv.chunkBytes == null || recv.getChunkLength() == 0) {
+                    break;
+                }
+                try {
+                    applier.apply(recv.chunkBytes, recv.getChunkLength());
+                } finally {
+                    BufferPool.get().release(recv.chunkBytes);
+                    recv.chunkBytes = null;
+                }
+            }
+            over = true;
+            finishDelta();
+            logger.debug("file {} delta down over, result {}.", filename, result);
+        } catch (Throwable e) {
+            throw new RuntimeException("file " + filename + " delta down failed, " + e.getMessage(), e);
+        } finally {
+            close();
+        }
+    }
+}
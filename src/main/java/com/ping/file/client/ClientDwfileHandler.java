@@ -11,6 +11,10 @@ package com.ping.file.client;
 
 import com.ping.file.protocol.Command;
 import com.ping.file.protocol.Packet;
+import com.ping.file.util.BufferPool;
+import com.ping.file.util.ChksumCache;
+import com.ping.file.util.ChunkCompressor;
+import com.ping.file.util.ChunkDecompressor;
 import com.ping.file.util.ClientSocket;
 import com.ping.file.util.Utils;
 import com.ping.sync.ChangeManager;
@@ -19,6 +23,7 @@ import org.slf4j.LoggerFactory;
 
 import java.io.*;
 import java.net.Socket;
+import java.util.zip.DataFormatException;
 
 /**
  * 下载处理器.
@@ -33,7 +38,7 @@ class ClientDwfileHandler implements Runnable {
     private boolean sync = false;
 
     private Socket s;
-    private Long chunkSize;
+    private ChunkSizer chunkSizer;
     private String filePath;
     private String filename;
     private long filePos = 0l;
@@ -45,12 +50,20 @@ class ClientDwfileHandler implements Runnable {
     private Packet recv = null;
     private boolean handleOver = false;
     private boolean result = false;
+    /**
+     * 流式下载中断, 连接上可能仍有在途数据.
+     */
+    private boolean broken = false;
+    /**
+     * 协商压缩后的解压上下文, 为null表示不压缩.
+     */
+    private ChunkDecompressor decompressor = null;
 
     public ClientDwfileHandler(TcpClient owner, Boolean sync, String fullname, String rfilename) throws Exception {
         this.owner = owner;
 		this.sync = sync == null ? sync : owner.isSync();
-        this.chunkSize = owner.chunkSize == null ? Utils.DEFAULT_CHUNK_SIZE : owner.chunkSize;
-        this.s = ClientSocket.connect(owner.ip, owner.port);
+        this.s = owner.openConnection();
+        this.chunkSizer = owner.chunkSizer(s);
         logger.debug("connected to server {}:{} {} for  {}", owner.ip, owner.port, s, rfilename);
         this.filePath = fullname;
         this.filename = rfilename;
@@ -115,23 +128,69 @@ class ClientDwfileHandler implements Runnable {
         cnf.delete();
     }
 
-    public void writeBytes(byte[] contents) throws IOException {
+    public void writeBytes(byte[] contents, int length) throws IOException {
         if (fileOut == null) {
             File file = new File(filePath);
+            if (fileAppend && file.length() > filePos) {
+                /**
+                 * 续传位置以cnf为准, 丢弃cnf之后未确认的数据.
+                 */
+                RandomAccessFile raf = new RandomAccessFile(file, "rw");
+                try {
+                    raf.setLength(filePos);
+                } finally {
+                    raf.close();
+                }
+            }
             fileOut = new FileOutputStream(file.getAbsolutePath(), fileAppend);
         }
-        if (contents == null || contents.length == 0) {
+        if (contents == null || length == 0) {
             return;
         }
-        fileOut.write(contents);
+        fileOut.write(contents, 0, length);
         fileOut.flush();
     }
 
-    private void close() {
-        logger.debug("connection {} closed for {}", s, filename);
-        if (s != null) {
-            ClientSocket.close(s);
+    /**
+     * 写入数据块, 压缩的数据块先解压; 收到原始数据块时重置解压上下文.
+     *
+     * @return 写入文件的字节数.
+     */
+    private int writeChunk() throws IOException {
+        if (recv.rawLength == null) {
+            if (decompressor != null) {
+                decompressor.reset();
+            }
+            writeBytes(recv.chunkBytes, recv.getChunkLength());
+            return recv.getChunkLength();
+        }
+        if (decompressor == null || recv.rawLength <= 0 || recv.rawLength > Utils.MAX_CHUNK_SIZE) {
+            throw new IOException("unexpected compressed chunk, rawLength " + recv.rawLength);
         }
+        byte[] raw = BufferPool.get().lease(recv.rawLength);
+        try {
+            decompressor.decompress(recv.chunkBytes, recv.getChunkLength(), raw, recv.rawLength);
+            writeBytes(raw, recv.rawLength);
+        } catch (DataFormatException e) {
+            throw new IOException("inflate failed, " + e.getMessage(), e);
+        } finally {
+            BufferPool.get().release(raw);
+        }
+        return recv.rawLength;
+    }
+
+    /**
+     * 数据块写入后归还缓冲.
+     */
+    private void releaseChunk() {
+        BufferPool.get().release(recv.chunkBytes);
+        recv.chunkBytes = null;
+    }
+
+    private void close() {
+        logger.debug("connection {} released for {}", s, filename);
+        owner.releaseChunkSizer(chunkSizer, result && !broken);
+        owner.releaseConnection(s, result && !broken);
         if (fileOut != null) {
             try {
                 fileOut.flush();
@@ -139,6 +198,9 @@ class ClientDwfileHandler implements Runnable {
             } catch (IOException e) {
             }
         }
+        if (decompressor != null) {
+            decompressor.end();
+        }
     }
 
     private void confirmChunk() throws Throwable {
@@ -155,7 +217,7 @@ class ClientDwfileHandler implements Runnable {
         } else if (Utils.fileExists(filePath)) {
             filePos = 0;
             fileSize = Utils.filesize(filePath);
-            fileChksum = Utils.chksum(filePath);
+            fileChksum = ChksumCache.chksum(filePath);
         }
 
         send = new Packet();
@@ -164,7 +226,19 @@ class ClientDwfileHandler implements Runnable {
         send.filepos = filePos;
         send.filesize = fileSize;
         send.chksum = fileChksum;
-        send.chunkSize = this.chunkSize;
+        if (fileChksum == null && Utils.getChksumAlgo().getPrefix().length() > 0) {
+            /**
+             * 本地无文件时只带算法前缀, 服务端按该算法返回摘要.
+             */
+            send.chksum = Utils.getChksumAlgo().getPrefix();
+        }
+        send.chunkSize = chunkSizer.get();
+        if (owner.window > 1) {
+            send.window = owner.window * chunkSizer.get();
+        }
+        if (owner.compress) {
+            send.compress = ChunkCompressor.DEFLATE;
+        }
         ClientSocket.sendPacket(s, send);
         logger.debug("first send {}", send);
         recv = ClientSocket.recvPacket(s, owner.timeout);
@@ -172,6 +246,9 @@ class ClientDwfileHandler implements Runnable {
         if (!recv.cmdResult) {
             return;
         }
+        if (ChunkCompressor.DEFLATE.equals(recv.compress)) {
+            decompressor = new ChunkDecompressor();
+        }
 
         filePos = recv.filepos;
         fileSize = recv.filesize;
@@ -185,27 +262,28 @@ class ClientDwfileHandler implements Runnable {
     }
 
     private void handleData() throws Throwable {
-        if (recv.chunkBytes == null || recv.chunkBytes.length == 0) {
+        if (recv.getChunkLength() == 0) {
             handleOver = true;
             if (filePos == fileSize) {
                 delConf();
                 logger.debug("file {} recv complete.", filename);
+                if (isSync()) {
+                    ChangeManager.writeClientChangelog(filePath, fileChksum);
+                }
             } else {
+                // 未收全的文件不记录变更日志, 以免记录的摘要与文件内容不符
                 logger.debug("file {} recv over, but not complete.", filename);
             }
-
-            if (isSync()) {
-                ChangeManager.writeClientChangelog(filePath, fileChksum);
-            }
         } else {
             send = recv.clone();
             send.command = Command.DWDATA;
             send.filename = null;
+            send.chunkSize = chunkSizer.get();
             try {
-                writeBytes(recv.chunkBytes);
-                logger.debug("file {} write filePos {}, {} byte(s)", filename, filePos, recv.chunkBytes.length);
+                int length = writeChunk();
+                logger.debug("file {} write filePos {}, {} byte(s)", filename, filePos, length);
 
-                filePos += recv.chunkBytes.length;
+                filePos += length;
                 send.filepos = filePos;
                 if (filePos < fileSize) {
                     writeConf(filePos + "," + fileSize + "," + fileChksum);
@@ -215,6 +293,74 @@ class ClientDwfileHandler implements Runnable {
                 send.cmdMesg = "file " + filename + " write failed, " + e.getMessage();
                 logger.error(send.cmdMesg);
                 return;
+            } finally {
+                releaseChunk();
+            }
+        }
+    }
+
+    /**
+     * 流式下载: 发送首个DWDATA后服务端连续推送, 每收满半个窗口按filepos累计应答.<br>
+     * 应答中携带调整后的数据块大小(不超过半个窗口), 延迟按应答间隔内平均每个数据块的到达间隔计算.
+     */
+    private void recvStreamed(long windowSize) throws Throwable {
+        send = new Packet();
+        send.command = Command.DWDATA;
+        send.filepos = filePos;
+        ClientSocket.sendPacket(s, send);
+        logger.debug("send {}", send);
+
+        long ackedPos = filePos;
+        long ackedNanos = System.nanoTime();
+        int chunks = 0;
+        for (; ; ) {
+            recv = ClientSocket.recvPacket(s, owner.timeout);
+            logger.debug("recv {}", recv);
+            if (!recv.cmdResult) {
+                logger.error("file {} stream failed, {}", filename, recv.cmdMesg);
+                broken = true;
+                return;
+            }
+            if (recv.getChunkLength() == 0) {
+                handleData();
+                return;
+            }
+            if (recv.filepos != null && recv.filepos != filePos) {
+                throw new RuntimeException("unexpected position " + recv.filepos + ", expect " + filePos);
+            }
+
+            send = new Packet();
+            send.command = Command.DWDATA;
+            try {
+                int length = writeChunk();
+                filePos += length;
+                chunks++;
+                logger.debug("file {} write filePos {}, {} byte(s)", filename, filePos, length);
+                if (filePos - ackedPos < Math.max(windowSize / 2, 1) && filePos < fileSize) {
+                    continue;
+                }
+                if (filePos < fileSize) {
+                    writeConf(filePos + "," + fileSize + "," + fileChksum);
+                }
+                long elapsed = System.nanoTime() - ackedNanos;
+                chunkSizer.onAck(filePos - ackedPos, elapsed, elapsed / chunks);
+                send.filepos = filePos;
+                send.chunkSize = Math.min(chunkSizer.get(), Math.max(windowSize / 2, 1));
+                ackedPos = filePos;
+                ackedNanos += elapsed;
+                chunks = 0;
+            } catch (IOException e) {
+                send.cmdResult = false;
+                send.cmdMesg = "file " + filename + " write failed, " + e.getMessage();
+                logger.error(send.cmdMesg);
+            } finally {
+                releaseChunk();
+            }
+            ClientSocket.sendPacket(s, send);
+            logger.debug("send {}", send);
+            if (!send.cmdResult) {
+                broken = true;
+                return;
             }
         }
     }
@@ -227,21 +373,30 @@ class ClientDwfileHandler implements Runnable {
                 if (!recv.cmdResult) {
                     break;
                 }
+                if (recv.window != null && recv.window > 0) {
+                    recvStreamed(recv.window);
+                    break;
+                }
 
                 send = recv.clone();
                 send.command = Command.DWDATA;
                 send.filepos = filePos;
+                send.chunkSize = chunkSizer.get();
+                long sentNanos = System.nanoTime();
                 ClientSocket.sendPacket(s, send);
                 logger.debug("send {}", send);
                 recv = ClientSocket.recvPacket(s, owner.timeout);
                 logger.debug("recv {}", recv);
 
                 while (recv.cmdResult && !handleOver) {
+                    long rtt = System.nanoTime() - sentNanos;
+                    chunkSizer.onAck(recv.rawLength != null ? recv.rawLength : recv.getChunkLength(), rtt, rtt);
                     handleData();
                     if (handleOver) {
                         break;
                     }
 
+                    sentNanos = System.nanoTime();
                     ClientSocket.sendPacket(s, send);
                     logger.debug("send {}", send);
                     if (!send.cmdResult) {
@@ -11,6 +11,7 @@ package com.ping.file.client;
 
 import com.ping.file.protocol.Command;
 import com.ping.file.protocol.Packet;
+import com.ping.file.util.BufferPool;
 import com.ping.file.util.ClientSocket;
 import com.ping.file.util.Utils;
 import com.ping.sync.ChangeManager;
@@ -49,7 +50,7 @@ class ClientDwlistHandler implements Runnable {
         this.owner = owner;
         this.localSync = localSync;
         this.chunkSize = owner.chunkSize == null ? Utils.DEFAULT_CHUNK_SIZE : owner.chunkSize;
-        this.s = ClientSocket.connect(owner.ip, owner.port);
+        this.s = owner.openConnection();
         logger.debug("connected to server {}:{} {} for file {}", owner.ip, owner.port, s, path);
         this.path = path;
         logger.debug("local file {}", path);
@@ -72,10 +73,8 @@ class ClientDwlistHandler implements Runnable {
     }
 
     private void close() {
-        logger.debug("connection {} closed for {}", s, path);
-        if (s != null) {
-            ClientSocket.close(s);
-        }
+        logger.debug("connection {} released for {}", s, path);
+        owner.releaseConnection(s, result);
     }
 
     private void doCleanUnexist(String firstDir, List<String> syncList) {
@@ -92,7 +91,7 @@ class ClientDwlistHandler implements Runnable {
         Collections.reverse(l);
         logger.debug("Local files : {}", l);
         for (String fn : l) {
-            if (fn.endsWith(Utils.DEFAULT_TRANSFERING_CNF_SUFFIX)) {
+            if (Utils.isTransferingConf(fn)) {
                 continue;
             }
 
@@ -150,8 +149,10 @@ class ClientDwlistHandler implements Runnable {
                 if (recv.filepos != null && recv.filepos == Long.MAX_VALUE) {
                     break;
                 }
-                if (recv.chunkBytes != null && recv.chunkBytes.length > 0) {
-                    fileBytes.put(recv.chunkBytes);
+                if (recv.chunkBytes != null && recv.getChunkLength() > 0) {
+                    fileBytes.put(recv.chunkBytes, 0, recv.getChunkLength());
+                    BufferPool.get().release(recv.chunkBytes);
+                    recv.chunkBytes = null;
                 }
 
                 send = recv.clone();
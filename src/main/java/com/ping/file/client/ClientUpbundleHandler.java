@@ -0,0 +1,219 @@
+package com.ping.file.client;
+
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.net.Socket;
+import java.util.Arrays;
+import java.util.List;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.ping.file.protocol.BundleCodec;
+import com.ping.file.protocol.Command;
+import com.ping.file.protocol.Packet;
+import com.ping.file.util.BufferPool;
+import com.ping.file.util.ClientSocket;
+import com.ping.file.util.Utils;
+
+/**
+ * 小文件打包上传处理器.
+ * <p>
+ * 在一次交互中上传一组小文件: 条目依次写入BUNDLE_CHUNK_SIZE大小的数据块, 数据块写满即发送, 不等待应答;
+ * 最后发送不带数据块的UPBUNDLE, 服务端返回每个条目的状态.<br>
+ * 读取失败或服务端写入失败的条目由调用方逐个上传.
+ *
+ * @author lawnstein.chan
+ * @version $Revision:$
+ */
+class ClientUpbundleHandler implements Runnable {
+	private static final Logger logger = LoggerFactory.getLogger(ClientUpbundleHandler.class);
+
+	protected static final int BUNDLE_CHUNK_SIZE = 1024 * 1024;
+
+	private TcpClient owner;
+
+	private Socket s;
+	private List<String> paths;
+	private List<String> rfilenames;
+	private String[] chksums;
+	private byte[] statuses;
+	/**
+	 * 已打包条目的序号, 与服务端应答的状态一一对应.
+	 */
+	private int[] sent;
+	private int sentCount = 0;
+	private Packet send = null;
+	private Packet recv = null;
+	private boolean result = false;
+
+	public ClientUpbundleHandler(TcpClient owner, List<String> paths, List<String> rfilenames) throws Exception {
+		this.owner = owner;
+		this.paths = paths;
+		this.rfilenames = rfilenames;
+		this.chksums = new String[paths.size()];
+		this.statuses = new byte[paths.size()];
+		Arrays.fill(statuses, BundleCodec.FAILED);
+		this.sent = new int[paths.size()];
+		this.s = owner.openConnection();
+		logger.debug("connected to server {}:{} {} for bundle of {} file(s)", owner.ip, owner.port, s, paths.size());
+	}
+
+	public boolean isResult() {
+		return result;
+	}
+
+	/**
+	 * 第i个文件已上传或服务端已存在且无变化.
+	 */
+	public boolean isUploaded(int i) {
+		return statuses[i] != BundleCodec.FAILED;
+	}
+
+	public String getFileChksum(int i) {
+		return chksums[i];
+	}
+
+	private void close() {
+		logger.debug("connection {} released for bundle", s);
+		owner.releaseConnection(s, result);
+		if (send != null) {
+			BufferPool.get().release(send.chunkBytes);
+			send.chunkBytes = null;
+		}
+	}
+
+	/**
+	 * 读取整个文件到BufferPool借出的缓冲.
+	 *
+	 * @return 文件内容, 文件读取失败或长度变化时为null.
+	 */
+	private byte[] readFile(String path, int size) {
+		byte[] bytes = BufferPool.get().lease(size);
+		FileInputStream is = null;
+		try {
+			is = new FileInputStream(path);
+			int n = 0;
+			while (n < size) {
+				int k = is.read(bytes, n, size - n);
+				if (k < 0) {
+					break;
+				}
+				n += k;
+			}
+			if (n == size && is.read() < 0) {
+				return bytes;
+			}
+			logger.warn("file {} changed while bundling, expected {} byte(s).", path, size);
+		} catch (IOException e) {
+			logger.warn("file {} read failed, {}", path, e.getMessage());
+		} finally {
+			if (is != null) {
+				try {
+					is.close();
+				} catch (IOException e) {
+				}
+			}
+		}
+		BufferPool.get().release(bytes);
+		return null;
+	}
+
+	/**
+	 * 发送当前数据块.
+	 */
+	private void sendChunk() throws Throwable {
+		if (send == null) {
+			return;
+		}
+		try {
+			ClientSocket.sendPacket(s, send);
+			logger.debug("send {}", send);
+		} finally {
+			BufferPool.get().release(send.chunkBytes);
+			send = null;
+		}
+	}
+
+	/**
+	 * 打包一个文件, 当前数据块放不下时先发送.
+	 */
+	private void pack(int i) throws Throwable {
+		String path = paths.get(i);
+		long length = Utils.filesize(path);
+		if (length < 0 || length > Utils.MAX_CHUNK_SIZE / 2) {
+			return;
+		}
+		int size = (int) length;
+		byte[] bytes = readFile(path, size);
+		if (bytes == null) {
+			return;
+		}
+		try {
+			chksums[i] = Utils.chksum(bytes, 0, size);
+			byte[] name = BundleCodec.toBytes(rfilenames.get(i));
+			byte[] chksum = BundleCodec.toBytes(chksums[i]);
+			int need = BundleCodec.headLength(name, chksum, size) + size;
+			if (send != null && send.chunkLength + need > send.chunkBytes.length) {
+				sendChunk();
+			}
+			if (send == null) {
+				send = new Packet();
+				send.command = Command.UPBUNDLE;
+				send.cmdResult = true;
+				send.chunkBytes = BufferPool.get().lease(Math.max(BUNDLE_CHUNK_SIZE, need));
+				send.chunkLength = 0;
+			}
+			int pos = BundleCodec.writeHead(send.chunkBytes, send.chunkLength, name, chksum, size);
+			System.arraycopy(bytes, 0, send.chunkBytes, pos, size);
+			send.chunkLength = pos + size;
+			sent[sentCount++] = i;
+		} finally {
+			BufferPool.get().release(bytes);
+		}
+	}
+
+	@Override
+	public void run() {
+		try {
+			for (int i = 0; i < paths.size(); i++) {
+				pack(i);
+			}
+			if (sentCount == 0) {
+				result = true;
+				return;
+			}
+			sendChunk();
+
+			send = new Packet();
+			send.command = Command.UPBUNDLE;
+			send.cmdResult = true;
+			ClientSocket.sendPacket(s, send);
+			send = null;
+			logger.debug("bundle of {} file(s) send over.", sentCount);
+
+			recv = ClientSocket.recvPacket(s, owner.timeout);
+			logger.debug("recv {}", recv);
+			try {
+				if (!recv.cmdResult) {
+					throw new RuntimeException("Remote fail : " + recv.cmdMesg);
+				}
+				if (recv.chunkBytes == null || recv.getChunkLength() != sentCount) {
+					throw new RuntimeException("Remote replied " + recv.getChunkLength() + " status(es), expect " + sentCount);
+				}
+				for (int k = 0; k < sentCount; k++) {
+					statuses[sent[k]] = recv.chunkBytes[k];
+				}
+			} finally {
+				BufferPool.get().release(recv.chunkBytes);
+				recv.chunkBytes = null;
+			}
+			logger.debug("bundle over, {}", recv.cmdMesg);
+			result = true;
+		} catch (Throwable e) {
+			throw new RuntimeException("send or recv Packet failed, " + e.getMessage(), e);
+		} finally {
+			close();
+		}
+	}
+}
@@ -0,0 +1,199 @@
+package com.ping.file.client;
+
+import java.io.RandomAccessFile;
+import java.net.Socket;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.ping.file.protocol.Command;
+import com.ping.file.protocol.Packet;
+import com.ping.file.util.BufferPool;
+import com.ping.file.util.ClientSocket;
+import com.ping.file.util.ContentChunker;
+import com.ping.file.util.Utils;
+
+/**
+ * 内容块去重上传处理器.
+ * <p>
+ * 服务端确认文件有变化后发送按内容切分的块清单, 只上传服务端块索引中没有的块. 服务端未启用块索引或新文件校验失败时isResult为false,
+ * 调用方改为完整上传.
+ *
+ * @author lawnstein.chan
+ * @version $Revision:$
+ */
+class ClientUpdedupHandler implements Runnable {
+	private static final Logger logger = LoggerFactory.getLogger(ClientUpdedupHandler.class);
+	/**
+	 * 每个数据包中缺少块的总长上限, 数据包只含完整的块.
+	 */
+	protected static final int PACK_SIZE = 256 * 1024;
+
+	private TcpClient owner;
+
+	private Socket s;
+	private String localPath;
+	private String path;
+	private String fileChksum = null;
+	private long fileSize = 0l;
+	private Packet send = null;
+	private Packet recv = null;
+	private boolean result = false;
+	/**
+	 * 交互已完整结束, 连接可复用.
+	 */
+	private boolean over = false;
+
+	public ClientUpdedupHandler(TcpClient owner, String path, String rfilename) throws Exception {
+		this.owner = owner;
+		this.s = owner.openConnection();
+		logger.debug("connected to server {}:{} {} for file {}, rfile {}", owner.ip, owner.port, s, path, rfilename);
+		this.localPath = path;
+		this.path = rfilename;
+		this.fileChksum = owner.chksum(path);
+		this.fileSize = Utils.filesize(path);
+	}
+
+	public String getFileChksum() {
+		return fileChksum;
+	}
+
+	public boolean isResult() {
+		return result;
+	}
+
+	/**
+	 * 文件大小在块清单可单包发送的范围内.
+	 */
+	public static boolean accept(long fileSize) {
+		return fileSize / ContentChunker.MIN_SIZE + 1 <= Utils.MAX_CHUNK_SIZE / ContentChunker.ENTRY_LENGTH;
+	}
+
+	private void close() {
+		logger.debug("connection {} released for {}", s, path);
+		owner.releaseConnection(s, over);
+	}
+
+	/**
+	 * 发送块清单, 返回服务端已有块的标记.
+	 */
+	private boolean[] sendList(ContentChunker chunks) throws Throwable {
+		send = new Packet();
+		send.command = Command.UPDATA;
+		send.cmdResult = true;
+		if (chunks.length() > 0) {
+			send.chunkBytes = BufferPool.get().lease((int) chunks.length());
+			send.chunkLength = (int) chunks.length();
+			chunks.write(send.chunkBytes);
+		}
+		try {
+			ClientSocket.sendPacket(s, send);
+		} finally {
+			BufferPool.get().release(send.chunkBytes);
+			send.chunkBytes = null;
+		}
+		recv = ClientSocket.recvPacket(s, owner.timeout);
+		logger.debug("list recv {}", recv);
+		try {
+			if (!recv.cmdResult) {
+				return null;
+			}
+			boolean[] have = new boolean[chunks.getCount()];
+			for (int i = 0; i < have.length; i++) {
+				have[i] = (recv.chunkBytes[i / 8] & (0x80 >>> (i % 8))) != 0;
+			}
+			return have;
+		} finally {
+			BufferPool.get().release(recv.chunkBytes);
+			recv.chunkBytes = null;
+		}
+	}
+
+	@Override
+	public void run() {
+		RandomAccessFile raf = null;
+		try {
+			send = new Packet();
+			send.command = Command.UPDEDUP;
+			send.cmdResult = true;
+			send.filename = path;
+			send.chksum = fileChksum;
+			send.filesize = fileSize;
+			ClientSocket.sendPacket(s, send);
+			logger.debug("first send {}", send);
+			recv = ClientSocket.recvPacket(s, owner.timeout);
+			logger.debug("first recv {}", recv);
+			if (!recv.cmdResult || (recv.filepos != null && recv.filepos == Long.MAX_VALUE)) {
+				over = true;
+				result = recv.cmdResult;
+				if (!result && recv.filepos != null && recv.filepos < 0) {
+					owner.dedupRefused = true;
+					logger.info("server {}:{} does not accept dedup, {}", owner.ip, owner.port, recv.cmdMesg);
+				}
+				return;
+			}
+
+			ContentChunker chunks = ContentChunker.cut(localPath);
+			boolean[] have = sendList(chunks);
+			if (have == null) {
+				over = true;
+				logger.warn("file {} dedup refused, {}", path, recv.cmdMesg);
+				return;
+			}
+
+			long sent = 0;
+			raf = new RandomAccessFile(localPath, "r");
+			send = new Packet();
+			send.command = Command.UPDATA;
+			send.cmdResult = true;
+			send.chunkBytes = BufferPool.get().lease(PACK_SIZE);
+			try {
+				int used = 0;
+				long pos = 0;
+				for (int i = 0; i < have.length; i++) {
+					int l = chunks.getLength(i);
+					if (!have[i]) {
+						if (used + l > PACK_SIZE) {
+							send.chunkLength = used;
+							ClientSocket.sendPacket(s, send);
+							used = 0;
+						}
+						raf.seek(pos);
+						raf.readFully(send.chunkBytes, used, l);
+						used += l;
+						sent += l;
+					}
+					pos += l;
+				}
+				if (used > 0) {
+					send.chunkLength = used;
+					ClientSocket.sendPacket(s, send);
+				}
+			} finally {
+				BufferPool.get().release(send.chunkBytes);
+				send.chunkBytes = null;
+				send.chunkLength = 0;
+			}
+			ClientSocket.sendPacket(s, send);
+			logger.debug("file {} dedup send over, {} of {} byte(s) sent", path, sent, fileSize);
+
+			recv = ClientSocket.recvPacket(s, owner.timeout);
+			logger.debug("recv {}", recv);
+			over = true;
+			result = recv.cmdResult;
+			if (!result) {
+				logger.warn("file {} dedup failed, {}", path, recv.cmdMesg);
+			}
+		} catch (Throwable e) {
+			throw new RuntimeException("send or recv Packet failed, " + e.getMessage(), e);
+		} finally {
+			if (raf != null) {
+				try {
+					raf.close();
+				} catch (Exception e) {
+				}
+			}
+			close();
+		}
+	}
+}
@@ -0,0 +1,136 @@
+package com.ping.file.client;
+
+import java.net.Socket;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.ping.file.protocol.Command;
+import com.ping.file.protocol.Packet;
+import com.ping.file.util.BufferPool;
+import com.ping.file.util.ClientSocket;
+import com.ping.file.util.DeltaEncoder;
+import com.ping.file.util.DeltaSignature;
+import com.ping.file.util.Utils;
+
+/**
+ * 差量上传处理器.
+ * <p>
+ * 按服务端返回的原文件块签名编码本地文件, 只发送未命中的数据和块引用. 服务端无原文件或新文件校验失败时isResult为false,
+ * 调用方改为完整上传.
+ *
+ * @author lawnstein.chan
+ * @version $Revision:$
+ */
+class ClientUpdeltaHandler implements Runnable {
+	private static final Logger logger = LoggerFactory.getLogger(ClientUpdeltaHandler.class);
+
+	private TcpClient owner;
+
+	private Socket s;
+	private String localPath;
+	private String path;
+	private String fileChksum = null;
+	private long fileSize = 0l;
+	private DeltaEncoder encoder = null;
+	private Packet send = null;
+	private Packet recv = null;
+	private boolean result = false;
+	/**
+	 * 交互已完整结束, 连接可复用.
+	 */
+	private boolean over = false;
+
+	public ClientUpdeltaHandler(TcpClient owner, String path, String rfilename) throws Exception {
+		this.owner = owner;
+		this.s = owner.openConnection();
+		logger.debug("connected to server {}:{} {} for file {}, rfile {}", owner.ip, owner.port, s, path, rfilename);
+		this.localPath = path;
+		this.path = rfilename;
+		this.fileChksum = owner.chksum(path);
+		this.fileSize = Utils.filesize(path);
+	}
+
+	public String getFileChksum() {
+		return fileChksum;
+	}
+
+	public boolean isResult() {
+		return result;
+	}
+
+	private void close() {
+		logger.debug("connection {} released for {}", s, path);
+		owner.releaseConnection(s, over);
+		if (encoder != null) {
+			encoder.close();
+		}
+	}
+
+	/**
+	 * 读取服务端返回的块签名并归还数据块缓冲.
+	 */
+	private DeltaSignature readSignature() {
+		try {
+			int blockSize = recv.chunkSize == null ? 0 : recv.chunkSize.intValue();
+			return DeltaSignature.read(recv.chunkBytes, recv.chunkBytes == null ? 0 : recv.getChunkLength(), blockSize);
+		} finally {
+			BufferPool.get().release(recv.chunkBytes);
+			recv.chunkBytes = null;
+		}
+	}
+
+	@Override
+	public void run() {
+		try {
+			send = new Packet();
+			send.command = Command.UPDELTA;
+			send.cmdResult = true;
+			send.filename = path;
+			send.chksum = fileChksum;
+			send.filesize = fileSize;
+			ClientSocket.sendPacket(s, send);
+			logger.debug("first send {}", send);
+			recv = ClientSocket.recvPacket(s, owner.timeout);
+			logger.debug("first recv {}", recv);
+			if (!recv.cmdResult || (recv.filepos != null && recv.filepos == Long.MAX_VALUE)) {
+				BufferPool.get().release(recv.chunkBytes);
+				over = true;
+				result = recv.cmdResult;
+				return;
+			}
+
+			encoder = new DeltaEncoder(localPath, readSignature());
+			for (;;) {
+				send = new Packet();
+				send.command = Command.UPDATA;
+				send.cmdResult = true;
+				send.chunkBytes = BufferPool.get().lease(DeltaEncoder.CHUNK_SIZE);
+				try {
+					send.chunkLength = encoder.next(send.chunkBytes, DeltaEncoder.CHUNK_SIZE);
+					if (send.chunkLength == 0) {
+						break;
+					}
+					ClientSocket.sendPacket(s, send);
+				} finally {
+					BufferPool.get().release(send.chunkBytes);
+					send.chunkBytes = null;
+				}
+			}
+			ClientSocket.sendPacket(s, send);
+			logger.debug("file {} delta send over, literal {} byte(s), copied {} byte(s)", path, encoder.getLiteralBytes(), encoder.getCopyBytes());
+
+			recv = ClientSocket.recvPacket(s, owner.timeout);
+			logger.debug("recv {}", recv);
+			over = true;
+			result = recv.cmdResult;
+			if (!result) {
+				logger.warn("file {} delta failed, {}", path, recv.cmdMesg);
+			}
+		} catch (Throwable e) {
+			throw new RuntimeException("send or recv Packet failed, " + e.getMessage(), e);
+		} finally {
+			close();
+		}
+	}
+}
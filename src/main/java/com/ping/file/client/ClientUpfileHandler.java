@@ -13,12 +13,15 @@ import java.io.File;
 import java.io.IOException;
 import java.io.RandomAccessFile;
 import java.net.Socket;
+import java.util.ArrayDeque;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import com.ping.file.protocol.Command;
 import com.ping.file.protocol.Packet;
+import com.ping.file.util.BufferPool;
+import com.ping.file.util.ChunkCompressor;
 import com.ping.file.util.ClientSocket;
 import com.ping.file.util.Utils;
 
@@ -34,31 +37,66 @@ class ClientUpfileHandler implements Runnable {
 	private TcpClient owner;
 
 	private Socket s;
-	private Long chunkSize;
+	private ChunkSizer chunkSizer;
 	private String path;
 	private File file = null;
 	private String fileChksum = null;
 	private long fileSize = 0l;
 	private long filePos = 0l;
+	/**
+	 * 分段上传的起止位置, rangeStart为-1时上传整个文件.
+	 */
+	private long rangeStart = -1l;
+	private long rangeEnd = 0l;
+	/**
+	 * 分段上传时服务端确认需要上传后调用.
+	 */
+	private Runnable onConfirmed = null;
 	private RandomAccessFile fileRaf = null;
 	private Packet send = null;
 	private Packet recv = null;
 	private boolean result = false;
+	/**
+	 * 协商压缩后的压缩上下文, 为null表示不压缩.
+	 */
+	private ChunkCompressor compressor = null;
 
 	public ClientUpfileHandler(TcpClient owner, String path, String rfilename) throws Exception {
 		this.owner = owner;
-		this.chunkSize = owner.chunkSize == null ? Utils.DEFAULT_CHUNK_SIZE : owner.chunkSize;
-		this.s = ClientSocket.connect(owner.ip, owner.port);
+		this.s = owner.openConnection();
+		this.chunkSizer = owner.chunkSizer(s);
 		logger.debug("connected to server {}:{} {} for file {}, rfile {}", owner.ip, owner.port, s, path, rfilename);
 		this.path = rfilename;
 		this.file = new File(path);
-		this.fileChksum = Utils.chksum(path);
+		this.fileChksum = owner.chksum(path);
 		this.fileRaf = new RandomAccessFile(file, "r");
 		this.fileSize = fileRaf.length();
 		this.filePos = 0l;
+		this.rangeEnd = fileSize;
 		logger.debug("local file {}, fileSize {}, fileChksum {}", path, fileSize, fileChksum);
 	}
 
+	/**
+	 * 上传文件的一段[rangeStart, rangeEnd), 摘要由调用方计算一次.
+	 */
+	public ClientUpfileHandler(TcpClient owner, String path, String rfilename, String fileChksum, long rangeStart, long rangeEnd,
+			Runnable onConfirmed) throws Exception {
+		this.owner = owner;
+		this.s = owner.openConnection();
+		this.chunkSizer = owner.chunkSizer(s);
+		logger.debug("connected to server {}:{} {} for file {}, rfile {}, range {}-{}", owner.ip, owner.port, s, path, rfilename, rangeStart, rangeEnd);
+		this.path = rfilename;
+		this.file = new File(path);
+		this.fileChksum = fileChksum;
+		this.fileRaf = new RandomAccessFile(file, "r");
+		this.fileSize = fileRaf.length();
+		this.rangeStart = rangeStart;
+		this.rangeEnd = rangeEnd;
+		this.onConfirmed = onConfirmed;
+		this.filePos = rangeStart;
+		fileRaf.seek(filePos);
+	}
+
 	public String getFileChksum() {
 		return fileChksum;
 	}
@@ -68,35 +106,162 @@ class ClientUpfileHandler implements Runnable {
 	}
 
 	private void close() {
-		logger.debug("connection {} closed for {}", s, path);
-		if (s != null) {
-			ClientSocket.close(s);
-		}
+		logger.debug("connection {} released for {}", s, path);
+		owner.releaseChunkSizer(chunkSizer, result);
+		owner.releaseConnection(s, result);
 		if (fileRaf != null) {
 			try {
 				fileRaf.close();
 			} catch (IOException e) {
 			}
 		}
+		if (compressor != null) {
+			compressor.end();
+		}
+	}
+
+	/**
+	 * 读取size字节到BufferPool借出的缓冲, 协商压缩时压缩, 压缩无收益时保留原始数据块.
+	 *
+	 * @return 读取的原始字节数.
+	 */
+	private int readChunk(Packet p, int size) throws IOException {
+		p.chunkBytes = BufferPool.get().lease(size);
+		p.chunkLength = fileRaf.read(p.chunkBytes, 0, size);
+		if (p.chunkLength != size) {
+			BufferPool.get().release(p.chunkBytes);
+			p.chunkBytes = null;
+			throw new RuntimeException("expected read " + size + " but " + p.chunkLength);
+		}
+		int length = p.chunkLength;
+		if (compressor != null && compressor.isEnabled()) {
+			byte[] out = BufferPool.get().lease(length);
+			int n = compressor.compress(p.chunkBytes, length, out);
+			if (n > 0) {
+				BufferPool.get().release(p.chunkBytes);
+				p.chunkBytes = out;
+				p.chunkLength = n;
+				p.rawLength = length;
+			} else {
+				BufferPool.get().release(out);
+			}
+		}
+		return length;
+	}
+
+	/**
+	 * 发送数据包并归还数据块缓冲.
+	 */
+	private void sendChunk(Packet p) throws Throwable {
+		try {
+			ClientSocket.sendPacket(s, p);
+		} finally {
+			BufferPool.get().release(p.chunkBytes);
+			p.chunkBytes = null;
+		}
+	}
+
+	/**
+	 * 滑动窗口上传: 在途数据不超过windowSize, 服务端按filepos累计应答.<br>
+	 * 数据块不超过半个窗口, 每次应答以其确认的最后一个数据块的发出时间计算延迟.
+	 */
+	private void sendWindowed(long windowSize) throws Throwable {
+		if (recv.filepos != null && filePos != recv.filepos) {
+			filePos = recv.filepos;
+			logger.debug("reset position to {}/{}", filePos, fileSize);
+			fileRaf.seek(filePos);
+		}
+
+		long ackedPos = filePos;
+		long ackedNanos = System.nanoTime();
+		ArrayDeque<long[]> inflight = new ArrayDeque<long[]>();
+		boolean sendOver = false;
+		for (;;) {
+			while (!sendOver && filePos - ackedPos < windowSize) {
+				send = new Packet();
+				send.command = Command.UPDATA;
+				send.filepos = filePos;
+				long readSize = rangeEnd - filePos;
+				long chunkSize = Math.min(chunkSizer.get(), Math.max(windowSize / 2, 1));
+				if (readSize > chunkSize) {
+					readSize = chunkSize;
+				}
+				if (readSize > 0) {
+					int realRead = readChunk(send, (int) readSize);
+					filePos += realRead;
+					logger.debug("read {} byts(s), current position {}/{}", realRead, filePos, fileSize);
+				} else {
+					sendOver = true;
+				}
+				sendChunk(send);
+				logger.debug("send {}", send);
+				if (!sendOver) {
+					inflight.add(new long[] { filePos, System.nanoTime() });
+				}
+			}
+
+			recv = ClientSocket.recvPacket(s, owner.timeout);
+			logger.debug("recv {}", recv);
+			if (!recv.cmdResult) {
+				throw new RuntimeException("Remote fail : " + recv.cmdMesg);
+			}
+			if (recv.filepos != null && recv.filepos == Long.MAX_VALUE) {
+				if (!sendOver) {
+					throw new RuntimeException("Remote closed the window before " + filePos + "/" + fileSize);
+				}
+				break;
+			}
+			if (recv.filepos != null) {
+				long now = System.nanoTime();
+				long sentNanos = 0;
+				while (!inflight.isEmpty() && inflight.peek()[0] <= recv.filepos) {
+					sentNanos = inflight.poll()[1];
+				}
+				if (sentNanos > 0) {
+					chunkSizer.onAck(recv.filepos - ackedPos, now - ackedNanos, now - sentNanos);
+				}
+				ackedPos = recv.filepos;
+				ackedNanos = now;
+			}
+		}
 	}
 
 	@Override
 	public void run() {
 		try {
 			send = new Packet();
-			send.command = Command.UPCHUNK;
+			send.command = rangeStart >= 0 ? Command.UPRANGE : Command.UPCHUNK;
 			send.cmdResult = true;
 			send.cmdMesg = null;
 			send.filename = path;
 			send.chksum = fileChksum;
 			// send.filepos = 0L;
+			send.filepos = rangeStart >= 0 ? rangeStart : null;
 			send.filesize = fileSize;
 			send.chunkBytes = null;
-			send.chunkSize = this.chunkSize;
+			send.chunkSize = chunkSizer.get();
+			if (owner.window > 1) {
+				send.window = owner.window * chunkSizer.get();
+			}
+			if (owner.compress && ChunkCompressor.isCompressible(file.getPath())) {
+				send.compress = ChunkCompressor.DEFLATE;
+			}
 			ClientSocket.sendPacket(s, send);
 			logger.debug("first send {}", send);
 			recv = ClientSocket.recvPacket(s, owner.timeout);
 			logger.debug("first recv {}", recv);
+			if (ChunkCompressor.DEFLATE.equals(recv.compress)) {
+				compressor = new ChunkCompressor();
+			}
+			if (onConfirmed != null && recv.cmdResult && (recv.filepos == null || recv.filepos != Long.MAX_VALUE)) {
+				onConfirmed.run();
+			}
+			if (recv.cmdResult && recv.window != null && recv.window > 0 && (recv.filepos == null || recv.filepos != Long.MAX_VALUE)) {
+				sendWindowed(recv.window);
+				logger.debug("file {} upload over.", path);
+				result = true;
+				return;
+			}
 			for (;;) {
 				if (!recv.cmdResult) {
 					throw new RuntimeException("Remote fail : " + recv.cmdMesg);
@@ -116,20 +281,17 @@ class ClientUpfileHandler implements Runnable {
 				send.command = Command.UPDATA;
 				send.filepos = null;
 
-				long readSize = fileSize - filePos;
-				if (readSize > chunkSize) {
-					readSize = chunkSize;
+				long readSize = Math.max(rangeEnd - filePos, 0l);
+				if (readSize > chunkSizer.get()) {
+					readSize = chunkSizer.get();
 				}
 				if (readSize > 0) {
-					send.chunkBytes = new byte[(int) readSize];
-					int realRead = fileRaf.read(send.chunkBytes);
-					if (realRead != readSize) {
-						throw new RuntimeException("expected read " + readSize + " but " + realRead);
-					}
+					int realRead = readChunk(send, (int) readSize);
 					filePos += realRead;
 					logger.debug("read {} byts(s), current position {}/{}", realRead, filePos, fileSize);
 				}
-				ClientSocket.sendPacket(s, send);
+				long sentNanos = System.nanoTime();
+				sendChunk(send);
 				logger.debug("send {}", send);
 				if (readSize == 0) {
 					break;
@@ -137,6 +299,8 @@ class ClientUpfileHandler implements Runnable {
 				
 				recv = ClientSocket.recvPacket(s, owner.timeout);
 				logger.debug("recv {}", recv);
+				long rtt = System.nanoTime() - sentNanos;
+				chunkSizer.onAck(readSize, rtt, rtt);
 			}
 
 			logger.debug("file {} upload over.", path);
@@ -11,6 +11,7 @@ package com.ping.file.client;
 
 import com.ping.file.protocol.Command;
 import com.ping.file.protocol.Packet;
+import com.ping.file.util.BufferPool;
 import com.ping.file.util.ClientSocket;
 import com.ping.file.util.Utils;
 import org.slf4j.Logger;
@@ -41,13 +42,14 @@ class ClientUplistHandler implements Runnable {
 	private Packet send = null;
 	private Packet recv = null;
 	private boolean handleOver = false;
+	private boolean result = false;
 	private List<String> files;
 
 
 	public ClientUplistHandler(TcpClient owner, String dirname, List<String> files) throws Exception {
 		this.owner = owner;
 		this.chunkSize = owner.chunkSize == null ? Utils.DEFAULT_CHUNK_SIZE : owner.chunkSize;
-		this.s = ClientSocket.connect(owner.ip, owner.port);
+		this.s = owner.openConnection();
 		logger.debug("connected to server {}:{} {} for dir {}", owner.ip, owner.port, s, dirname);
 		this.dirname = dirname;
 		this.files = files;
@@ -62,10 +64,8 @@ class ClientUplistHandler implements Runnable {
 	}
 
 	private void close() {
-		logger.debug("connection {} closed for {}", s, dirname);
-		if (s != null) {
-			ClientSocket.close(s);
-		}
+		logger.debug("connection {} released for {}", s, dirname);
+		owner.releaseConnection(s, result);
 	}
 
 
@@ -117,7 +117,8 @@ class ClientUplistHandler implements Runnable {
 			cursize = 0;
 		}
 		if (cursize > 0) {
-			send.chunkBytes = new byte[cursize];
+			send.chunkBytes = BufferPool.get().lease(cursize);
+			send.chunkLength = cursize;
 			// send.filepos = filePos;
 			System.arraycopy(fileBytes, (int) filePos, send.chunkBytes, 0, cursize);
 
@@ -128,6 +129,18 @@ class ClientUplistHandler implements Runnable {
 		}
 	}
 
+	/**
+	 * 发送数据包并归还数据块缓冲.
+	 */
+	private void sendChunk() throws Throwable {
+		try {
+			ClientSocket.sendPacket(s, send);
+		} finally {
+			BufferPool.get().release(send.chunkBytes);
+			send.chunkBytes = null;
+		}
+	}
+
 	@Override
 	public void run() {
 		try {
@@ -136,7 +149,7 @@ class ClientUplistHandler implements Runnable {
 				if (!send.cmdResult) {
 					handleData();
 				}
-				ClientSocket.sendPacket(s, send);
+				sendChunk();
 				logger.debug("Sended [{}], {}.", send, s);
 				if (!send.cmdResult) {
 					break;
@@ -146,7 +159,7 @@ class ClientUplistHandler implements Runnable {
 				logger.debug("Recv [{}], {}", recv, s);
 				while (recv.cmdResult && !handleOver) {
 					handleData();
-					ClientSocket.sendPacket(s, send);
+					sendChunk();
 					logger.debug("Sended [{}], {}.", send, s);
 
 					if (handleOver) {
@@ -170,6 +183,7 @@ class ClientUplistHandler implements Runnable {
 				break;
 			}
 
+			result = true;
 			logger.debug("uplist {} over.", dirname);
 		} catch (Throwable th) {
 			if (owner.isDebug()) {
@@ -178,10 +192,6 @@ class ClientUplistHandler implements Runnable {
 				logger.error("dwlist {} failed, {}", dirname, th.getMessage());
 			}
 		} finally {
-			try {
-				Thread.sleep(1000);
-			} catch (InterruptedException e) {
-			}
 			close();
 		}
 	}
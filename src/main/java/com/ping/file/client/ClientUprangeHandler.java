@@ -0,0 +1,113 @@
+package com.ping.file.client;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.ping.file.util.Utils;
+
+/**
+ * 大文件分段上传处理器.
+ * <p>
+ * 文件按连接数等分为若干段, 每段由一个ClientUpfileHandler通过UPRANGE在独立连接上传.<br>
+ * 首段在当前线程上传, 服务端确认文件需要上传(并建立已接收区间表)后其余各段才并发开始; 服务端按区间表续传, 全部区间收齐后收尾.
+ *
+ * @author lawnstein.chan
+ * @version $Revision:$
+ */
+class ClientUprangeHandler implements Runnable {
+	private static final Logger logger = LoggerFactory.getLogger(ClientUprangeHandler.class);
+
+	private TcpClient owner;
+
+	private String localPath;
+	private String path;
+	private String fileChksum = null;
+	private long fileSize = 0l;
+	private int ranges;
+	private List<Future<?>> futures = new ArrayList<Future<?>>();
+	private boolean result = false;
+
+	public ClientUprangeHandler(TcpClient owner, String path, String rfilename, int ranges) throws Exception {
+		this.owner = owner;
+		this.localPath = path;
+		this.path = rfilename;
+		this.fileSize = Utils.filesize(path);
+		this.fileChksum = owner.chksum(path);
+		this.ranges = ranges;
+		logger.debug("local file {}, fileSize {}, fileChksum {}, {} range(s)", path, fileSize, fileChksum, ranges);
+	}
+
+	public String getFileChksum() {
+		return fileChksum;
+	}
+
+	public boolean isResult() {
+		return result;
+	}
+
+	private long rangeStart(int i) {
+		return fileSize / ranges * i;
+	}
+
+	private long rangeEnd(int i) {
+		return i == ranges - 1 ? fileSize : rangeStart(i + 1);
+	}
+
+	/**
+	 * 首段确认后提交其余各段.
+	 */
+	private void startRanges() {
+		for (int i = 1; i < ranges; i++) {
+			final long start = rangeStart(i);
+			final long end = rangeEnd(i);
+			Runnable r = new Runnable() {
+				@Override
+				public void run() {
+					try {
+						new ClientUpfileHandler(owner, localPath, path, fileChksum, start, end, null).run();
+					} catch (RuntimeException e) {
+						throw e;
+					} catch (Exception e) {
+						throw new RuntimeException("range " + start + "-" + end + " failed, " + e.getMessage(), e);
+					}
+				}
+			};
+			futures.add(owner.executeRange(r));
+		}
+	}
+
+	@Override
+	public void run() {
+		Throwable failure = null;
+		try {
+			Runnable confirmed = new Runnable() {
+				@Override
+				public void run() {
+					startRanges();
+				}
+			};
+			new ClientUpfileHandler(owner, localPath, path, fileChksum, rangeStart(0), rangeEnd(0), confirmed).run();
+		} catch (Throwable e) {
+			failure = e;
+		}
+		for (Future<?> f : futures) {
+			try {
+				f.get();
+			} catch (ExecutionException e) {
+				failure = e.getCause();
+			} catch (InterruptedException e) {
+				failure = e;
+			}
+		}
+		if (failure != null) {
+			throw new RuntimeException("file " + path + " range upload failed, " + failure.getMessage(), failure);
+		}
+		logger.debug("file {} upload over by {} range(s).", path, ranges);
+		result = true;
+	}
+}
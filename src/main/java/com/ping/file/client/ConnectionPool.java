@@ -0,0 +1,356 @@
+package com.ping.file.client;
+
+import com.ping.file.protocol.Command;
+import com.ping.file.protocol.Packet;
+import com.ping.file.util.ClientSocket;
+import com.ping.file.util.NamedThreadFactory;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.net.Socket;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * 客户端连接池.
+ * <p>
+ * 按服务端地址维护有界连接, 借出时校验存活, 空闲超时和超过最大生存期的连接由后台回收线程或归还时关闭,
+ * 不占用借出线程.
+ *
+ * @author lawnstein.chan
+ * @version $Revision:$
+ */
+class ConnectionPool {
+    private static final Logger logger = LoggerFactory.getLogger(ConnectionPool.class);
+
+    /**
+     * 空闲超过该时长的连接借出前探测存活.
+     */
+    protected static final long VALIDATE_IDLE_MILLIS = 500;
+
+    /**
+     * 后台回收的最短和最长间隔.
+     */
+    protected static final long EVICT_MIN_MILLIS = 1000;
+    protected static final long EVICT_MAX_MILLIS = 30000;
+
+    private final String ip;
+    private final int port;
+    private final int maxSize;
+    private final long idleTimeoutMillis;
+    private final long maxLifetimeMillis;
+    private final long borrowTimeoutMillis;
+
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition available = lock.newCondition();
+    /**
+     * 空闲连接, 队首为最近归还.
+     */
+    private final Deque<PooledConnection> idle = new ArrayDeque<PooledConnection>();
+    private final Map<Socket, PooledConnection> inUse = new ConcurrentHashMap<Socket, PooledConnection>();
+    private int total = 0;
+    private volatile boolean closed = false;
+    private ScheduledExecutorService evictor = null;
+
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong waits = new AtomicLong();
+    private final AtomicLong waitNanos = new AtomicLong();
+    private final AtomicLong evictions = new AtomicLong();
+    private final AtomicLong invalidations = new AtomicLong();
+
+    private static class PooledConnection {
+        final Socket socket;
+        final long createdMillis;
+        long lastUsedMillis;
+        /**
+         * 随连接复用的自适应数据块大小.
+         */
+        ChunkSizer chunkSizer;
+
+        PooledConnection(Socket socket) {
+            this.socket = socket;
+            this.createdMillis = System.currentTimeMillis();
+            this.lastUsedMillis = this.createdMillis;
+        }
+    }
+
+    public ConnectionPool(String ip, int port, int maxSize, long idleTimeoutMillis, long maxLifetimeMillis, long borrowTimeoutMillis) {
+        this.ip = ip;
+        this.port = port;
+        this.maxSize = maxSize > 0 ? maxSize : 1;
+        this.idleTimeoutMillis = idleTimeoutMillis;
+        this.maxLifetimeMillis = maxLifetimeMillis;
+        this.borrowTimeoutMillis = borrowTimeoutMillis;
+        startEvictor();
+    }
+
+    private void startEvictor() {
+        long interval = Math.min(idleTimeoutMillis > 0 ? idleTimeoutMillis : Long.MAX_VALUE, maxLifetimeMillis > 0 ? maxLifetimeMillis : Long.MAX_VALUE);
+        if (interval == Long.MAX_VALUE) {
+            return;
+        }
+        interval = Math.max(EVICT_MIN_MILLIS, Math.min(EVICT_MAX_MILLIS, interval / 2));
+        final NamedThreadFactory factory = new NamedThreadFactory("PoolEvictor");
+        evictor = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread t = factory.newThread(r);
+                t.setDaemon(true);
+                return t;
+            }
+        });
+        evictor.scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    bye(evictExpired());
+                } catch (Throwable e) {
+                    logger.debug("connection pool {}:{} evict failed, {}", ip, port, e.getMessage());
+                }
+            }
+        }, interval, interval, TimeUnit.MILLISECONDS);
+    }
+
+    public Socket borrow() throws Exception {
+        long begin = System.nanoTime();
+        boolean waited = false;
+        for (; ; ) {
+            PooledConnection pc = null;
+            lock.lock();
+            try {
+                if (closed) {
+                    throw new RuntimeException("connection pool for " + ip + ":" + port + " closed.");
+                }
+                long leftNanos = TimeUnit.MILLISECONDS.toNanos(borrowTimeoutMillis) - (System.nanoTime() - begin);
+                while ((pc = idle.pollFirst()) == null && total >= maxSize) {
+                    waited = true;
+                    if (leftNanos <= 0) {
+                        throw new RuntimeException("borrow connection to " + ip + ":" + port + " timeout, " + total + " connection(s) in use.");
+                    }
+                    leftNanos = available.awaitNanos(leftNanos);
+                }
+                if (pc == null) {
+                    total++;
+                }
+            } finally {
+                lock.unlock();
+            }
+
+            if (pc == null) {
+                Socket s;
+                try {
+                    s = ClientSocket.connect(ip, port);
+                } catch (Exception e) {
+                    destroy(null);
+                    throw e;
+                }
+                pc = new PooledConnection(s);
+                misses.incrementAndGet();
+            } else if (!validate(pc)) {
+                invalidations.incrementAndGet();
+                destroy(pc);
+                continue;
+            } else {
+                hits.incrementAndGet();
+            }
+
+            if (waited) {
+                waits.incrementAndGet();
+                waitNanos.addAndGet(System.nanoTime() - begin);
+            }
+            inUse.put(pc.socket, pc);
+            logger.debug("borrow connection {}", pc.socket);
+            return pc.socket;
+        }
+    }
+
+    /**
+     * 归还连接, 不可复用或已超过最大生存期的连接直接关闭.
+     */
+    public void release(Socket s, boolean reusable) {
+        if (s == null) {
+            return;
+        }
+        PooledConnection pc = inUse.remove(s);
+        if (pc == null) {
+            ClientSocket.close(s);
+            return;
+        }
+
+        long now = System.currentTimeMillis();
+        if (!reusable || closed || s.isClosed() || isExpired(pc, now)) {
+            destroy(pc);
+            return;
+        }
+        pc.lastUsedMillis = now;
+        lock.lock();
+        try {
+            idle.offerFirst(pc);
+            available.signal();
+        } finally {
+            lock.unlock();
+        }
+        logger.debug("release connection {}", s);
+    }
+
+    /**
+     * 关闭连接池: 空闲连接发送BYE并等待服务端关闭, 在用连接归还时关闭.
+     */
+    public void close() {
+        if (evictor != null) {
+            evictor.shutdownNow();
+        }
+        List<PooledConnection> l = new ArrayList<PooledConnection>();
+        lock.lock();
+        try {
+            closed = true;
+            l.addAll(idle);
+            total -= idle.size();
+            idle.clear();
+            available.signalAll();
+        } finally {
+            lock.unlock();
+        }
+        bye(l);
+        logger.info("connection pool {}:{} closed, {}", ip, port, getStats());
+    }
+
+    public ChunkSizer getChunkSizer(Socket s) {
+        PooledConnection pc = inUse.get(s);
+        return pc == null ? null : pc.chunkSizer;
+    }
+
+    public void setChunkSizer(Socket s, ChunkSizer chunkSizer) {
+        PooledConnection pc = inUse.get(s);
+        if (pc != null) {
+            pc.chunkSizer = chunkSizer;
+        }
+    }
+
+    public String getStats() {
+        long w = waits.get();
+        return "size " + maxSize + ", open " + total + ", inUse " + inUse.size() + ", hits " + hits.get() + ", misses " + misses.get()
+                + ", invalidations " + invalidations.get() + ", evictions " + evictions.get() + ", waits " + w
+                + ", avgWaitMillis " + (w == 0 ? 0 : TimeUnit.NANOSECONDS.toMillis(waitNanos.get() / w));
+    }
+
+    public long getHits() {
+        return hits.get();
+    }
+
+    public long getMisses() {
+        return misses.get();
+    }
+
+    public long getWaits() {
+        return waits.get();
+    }
+
+    public long getWaitNanos() {
+        return waitNanos.get();
+    }
+
+    private boolean isExpired(PooledConnection pc, long now) {
+        return (maxLifetimeMillis > 0 && now - pc.createdMillis >= maxLifetimeMillis)
+                || (idleTimeoutMillis > 0 && now - pc.lastUsedMillis >= idleTimeoutMillis);
+    }
+
+    private boolean validate(PooledConnection pc) {
+        long now = System.currentTimeMillis();
+        if (isExpired(pc, now)) {
+            return false;
+        }
+        if (now - pc.lastUsedMillis < VALIDATE_IDLE_MILLIS) {
+            return !pc.socket.isClosed();
+        }
+        return ClientSocket.isAlive(pc.socket);
+    }
+
+    /**
+     * 摘除空闲超时或超过最大生存期的空闲连接, 由回收线程在锁外关闭.
+     */
+    private List<PooledConnection> evictExpired() {
+        List<PooledConnection> l = null;
+        long now = System.currentTimeMillis();
+        lock.lock();
+        try {
+            Iterator<PooledConnection> itr = idle.descendingIterator();
+            while (itr.hasNext()) {
+                PooledConnection pc = itr.next();
+                if (!isExpired(pc, now)) {
+                    continue;
+                }
+                itr.remove();
+                total--;
+                if (l == null) {
+                    l = new ArrayList<PooledConnection>();
+                }
+                l.add(pc);
+            }
+            if (l != null) {
+                available.signalAll();
+            }
+        } finally {
+            lock.unlock();
+        }
+        if (l != null) {
+            evictions.addAndGet(l.size());
+        }
+        return l;
+    }
+
+    private void destroy(PooledConnection pc) {
+        lock.lock();
+        try {
+            total--;
+            available.signal();
+        } finally {
+            lock.unlock();
+        }
+        if (pc != null) {
+            logger.debug("close connection {}", pc.socket);
+            ClientSocket.close(pc.socket);
+        }
+    }
+
+    /**
+     * 发送BYE并等待服务端关闭, 避免服务端在读取BYE前收到RST.
+     */
+    private void bye(List<PooledConnection> l) {
+        if (l == null || l.isEmpty()) {
+            return;
+        }
+        for (PooledConnection pc : l) {
+            try {
+                Packet bye = new Packet();
+                bye.command = Command.BYE;
+                ClientSocket.sendPacket(pc.socket, bye);
+                pc.socket.shutdownOutput();
+            } catch (Throwable e) {
+                logger.debug("connection {} bye failed, {}", pc.socket, e.getMessage());
+            }
+        }
+        for (PooledConnection pc : l) {
+            try {
+                while (ClientSocket.read(pc.socket, new byte[64], 0, 1) >= 0) {
+                }
+            } catch (Throwable e) {
+                logger.debug("connection {} wait close failed, {}", pc.socket, e.getMessage());
+            }
+            ClientSocket.close(pc.socket);
+        }
+    }
+}
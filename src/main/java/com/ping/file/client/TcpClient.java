@@ -2,6 +2,10 @@
 package com.ping.file.client;
 
 import com.ping.configure.ClientProperties;
+import com.ping.file.util.BufferPool;
+import com.ping.file.util.CheckSumAlgoType;
+import com.ping.file.util.ChksumCache;
+import com.ping.file.util.ClientSocket;
 import com.ping.file.util.NamedThreadFactory;
 import com.ping.file.util.Utils;
 import com.ping.sync.ChangeManager;
@@ -9,12 +13,19 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.io.File;
+import java.net.Socket;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.Iterator;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinWorkerThread;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * 客户端操作.
@@ -33,7 +44,75 @@ public class TcpClient {
     protected int timeout = Utils.DEFAULT_TIMEOUT_SEC;
     protected int retry = 30;
     protected Long chunkSize;
+    /**
+     * 自适应数据块大小: 每个连接按应答延迟和吞吐率在[chunkSizeMin, chunkSizeMax]内调整, chunkSize为初始值.
+     */
+    protected boolean adaptiveChunk = false;
+    protected long chunkSizeMin = 4 * 1024;
+    protected long chunkSizeMax = 4 * 1024 * 1024;
+    /**
+     * 最近结束的传输的数据块大小, 作为新连接的初始值.
+     */
+    private volatile long lastChunkSize = 0;
+    /**
+     * 流水线传输的在途块数, 0或1为逐块应答.
+     */
+    protected int window = 0;
+    /**
+     * 数据块压缩, 已压缩格式的文件不压缩.
+     */
+    protected boolean compress = false;
+    /**
+     * 不超过该大小的文件打包上传, 每次交互至多bundleFiles个文件; 0为不打包.
+     */
+    protected long bundleThreshold = 0;
+    protected int bundleFiles = 256;
+    /**
+     * 不小于该大小的文件分为rangeConnections段, 各段在独立连接上并发上传; 0为不分段.
+     */
+    protected long rangeThreshold = 0;
+    protected int rangeConnections = 4;
+    /**
+     * 不小于该大小且对端已有旧版本的文件按块签名差量传输; 0为不启用.
+     */
+    protected long deltaThreshold = 0;
+    /**
+     * 不小于该大小的文件先尝试按内容块去重上传, 服务端未启用块索引时改为完整上传; 0为不启用.
+     */
+    protected long dedupThreshold = 0;
+    /**
+     * 服务端未启用块索引, 本次会话不再尝试去重上传.
+     */
+    protected volatile boolean dedupRefused = false;
+    /**
+     * 上传前计算文件摘要的线程数, 0为CPU核数.
+     */
+    protected int hashThreads = 0;
+    /**
+     * 文件摘要缓存的条目上限, 0为不缓存.
+     */
+    protected int chksumCacheSize = 0;
     protected boolean sync = true;
+    /**
+     * 会话模式: 每个处理线程复用一条连接依次传输多个文件.
+     */
+    protected boolean session = true;
+    /**
+     * 连接池空闲连接超时秒数, 应小于服务端空闲超时.
+     */
+    protected int poolIdleTimeout = 20;
+    /**
+     * 连接池连接最大生存秒数.
+     */
+    protected int poolMaxLifetime = 600;
+    /**
+     * JDK 21+ 下处理线程使用虚拟线程.
+     */
+    protected boolean virtualThreads = false;
+    /**
+     * 数据块缓冲池容量(字节).
+     */
+    protected long bufferPoolSize = BufferPool.DEFAULT_MAX_BYTES;
     protected boolean debug = false;
     protected boolean cvsExclude = true;
     protected String path;
@@ -49,6 +128,26 @@ public class TcpClient {
      */
     private ExecutorService handlePool = null;
 
+    /**
+     * 会话模式下的连接池, 容量与处理线程数一致.
+     */
+    private ConnectionPool connectionPool = null;
+
+    /**
+     * 分段上传除首段外各段的处理线程池.
+     */
+    private ExecutorService rangePool = null;
+
+    /**
+     * 上传前的摘要计算线程池, 按CPU核数而非网络并发确定大小; 计算完成的文件再交给处理线程池.
+     */
+    private ForkJoinPool hashPool = null;
+
+    /**
+     * 摘要线程池已计算的文件摘要, 文件上传结束后移除.
+     */
+    private final Map<String, String> chksums = new ConcurrentHashMap<String, String>();
+
     public TcpClient(String ip, int port, String path, int maxThreads, ClientProperties propties) {
         super();
         this.path = Utils.getFormatedPath(path);
@@ -82,6 +181,116 @@ public class TcpClient {
             this.chunkSize = propties.chunkSize;
         }
 
+        String adaptiveChunkStr = System.getProperty("client.adaptive-chunk");
+        if (adaptiveChunkStr != null && adaptiveChunkStr.length() > 0) {
+            this.adaptiveChunk = Boolean.valueOf(adaptiveChunkStr);
+        } else if (propties != null) {
+            this.adaptiveChunk = propties.adaptiveChunk;
+        }
+
+        String chunkSizeMinStr = System.getProperty("client.chunk-size-min");
+        if (chunkSizeMinStr != null && chunkSizeMinStr.length() > 0) {
+            this.chunkSizeMin = Long.valueOf(chunkSizeMinStr);
+        } else if (propties != null && propties.chunkSizeMin > 0) {
+            this.chunkSizeMin = propties.chunkSizeMin;
+        }
+
+        String chunkSizeMaxStr = System.getProperty("client.chunk-size-max");
+        if (chunkSizeMaxStr != null && chunkSizeMaxStr.length() > 0) {
+            this.chunkSizeMax = Long.valueOf(chunkSizeMaxStr);
+        } else if (propties != null && propties.chunkSizeMax > 0) {
+            this.chunkSizeMax = propties.chunkSizeMax;
+        }
+        if (this.chunkSizeMax > Utils.MAX_CHUNK_SIZE) {
+            this.chunkSizeMax = Utils.MAX_CHUNK_SIZE;
+        }
+
+        String windowStr = System.getProperty("client.window");
+        if (windowStr != null && windowStr.length() > 0) {
+            this.window = Integer.valueOf(windowStr);
+        } else if (propties != null && propties.window > 0) {
+            this.window = (int) propties.window;
+        }
+
+        String compressStr = System.getProperty("client.compress");
+        if (compressStr != null && compressStr.length() > 0) {
+            this.compress = Boolean.valueOf(compressStr);
+        } else if (propties != null) {
+            this.compress = propties.compress;
+        }
+
+        String bundleThresholdStr = System.getProperty("client.bundle-threshold");
+        if (bundleThresholdStr != null && bundleThresholdStr.length() > 0) {
+            this.bundleThreshold = Long.valueOf(bundleThresholdStr);
+        } else if (propties != null && propties.bundleThreshold > 0) {
+            this.bundleThreshold = propties.bundleThreshold;
+        }
+        if (this.bundleThreshold > Utils.MAX_CHUNK_SIZE / 2) {
+            this.bundleThreshold = Utils.MAX_CHUNK_SIZE / 2;
+        }
+
+        String bundleFilesStr = System.getProperty("client.bundle-files");
+        if (bundleFilesStr != null && bundleFilesStr.length() > 0) {
+            this.bundleFiles = Integer.valueOf(bundleFilesStr);
+        } else if (propties != null && propties.bundleFiles > 0) {
+            this.bundleFiles = (int) propties.bundleFiles;
+        }
+
+        String rangeThresholdStr = System.getProperty("client.range-threshold");
+        if (rangeThresholdStr != null && rangeThresholdStr.length() > 0) {
+            this.rangeThreshold = Long.valueOf(rangeThresholdStr);
+        } else if (propties != null && propties.rangeThreshold > 0) {
+            this.rangeThreshold = propties.rangeThreshold;
+        }
+
+        String rangeConnectionsStr = System.getProperty("client.range-connections");
+        if (rangeConnectionsStr != null && rangeConnectionsStr.length() > 0) {
+            this.rangeConnections = Integer.valueOf(rangeConnectionsStr);
+        } else if (propties != null && propties.rangeConnections > 0) {
+            this.rangeConnections = (int) propties.rangeConnections;
+        }
+
+        String deltaThresholdStr = System.getProperty("client.delta-threshold");
+        if (deltaThresholdStr != null && deltaThresholdStr.length() > 0) {
+            this.deltaThreshold = Long.valueOf(deltaThresholdStr);
+        } else if (propties != null && propties.deltaThreshold > 0) {
+            this.deltaThreshold = propties.deltaThreshold;
+        }
+
+        String dedupThresholdStr = System.getProperty("client.dedup-threshold");
+        if (dedupThresholdStr != null && dedupThresholdStr.length() > 0) {
+            this.dedupThreshold = Long.valueOf(dedupThresholdStr);
+        } else if (propties != null && propties.dedupThreshold > 0) {
+            this.dedupThreshold = propties.dedupThreshold;
+        }
+
+        String hashThreadsStr = System.getProperty("client.hash-threads");
+        if (hashThreadsStr != null && hashThreadsStr.length() > 0) {
+            this.hashThreads = Integer.valueOf(hashThreadsStr);
+        } else if (propties != null && propties.hashThreads > 0) {
+            this.hashThreads = (int) propties.hashThreads;
+        }
+
+        String chksumCacheSizeStr = System.getProperty("client.chksum-cache-size");
+        if (chksumCacheSizeStr != null && chksumCacheSizeStr.length() > 0) {
+            this.chksumCacheSize = Integer.valueOf(chksumCacheSizeStr);
+        } else if (propties != null && propties.chksumCacheSize > 0) {
+            this.chksumCacheSize = (int) propties.chksumCacheSize;
+        }
+
+        String chksumAlgoStr = System.getProperty("client.chksum-algo");
+        if ((chksumAlgoStr == null || chksumAlgoStr.length() == 0) && propties != null) {
+            chksumAlgoStr = propties.chksumAlgo;
+        }
+        if (chksumAlgoStr != null && chksumAlgoStr.length() > 0) {
+            CheckSumAlgoType algo = CheckSumAlgoType.forName(chksumAlgoStr);
+            if (algo == null) {
+                logger.warn("unsupported chksum algorithm {}, use {}.", chksumAlgoStr, Utils.getChksumAlgo().getName());
+            } else {
+                Utils.setChksumAlgo(algo);
+            }
+        }
+
         String syncStr = System.getProperty("client.sync");
         if (syncStr != null && syncStr.length() > 0) {
             this.sync = Boolean.valueOf(syncStr);
@@ -89,6 +298,42 @@ public class TcpClient {
             this.sync = propties.sync;
         }
 
+        String sessionStr = System.getProperty("client.session");
+        if (sessionStr != null && sessionStr.length() > 0) {
+            this.session = Boolean.valueOf(sessionStr);
+        } else if (propties != null) {
+            this.session = propties.session;
+        }
+
+        String poolIdleTimeoutStr = System.getProperty("client.pool-idle-timeout");
+        if (poolIdleTimeoutStr != null && poolIdleTimeoutStr.length() > 0) {
+            this.poolIdleTimeout = Integer.valueOf(poolIdleTimeoutStr);
+        } else if (propties != null && propties.poolIdleTimeout > 0) {
+            this.poolIdleTimeout = (int) propties.poolIdleTimeout;
+        }
+
+        String poolMaxLifetimeStr = System.getProperty("client.pool-max-lifetime");
+        if (poolMaxLifetimeStr != null && poolMaxLifetimeStr.length() > 0) {
+            this.poolMaxLifetime = Integer.valueOf(poolMaxLifetimeStr);
+        } else if (propties != null && propties.poolMaxLifetime > 0) {
+            this.poolMaxLifetime = (int) propties.poolMaxLifetime;
+        }
+
+        String virtualThreadsStr = System.getProperty("client.virtual-threads");
+        if (virtualThreadsStr != null && virtualThreadsStr.length() > 0) {
+            this.virtualThreads = Boolean.valueOf(virtualThreadsStr);
+        } else if (propties != null) {
+            this.virtualThreads = propties.virtualThreads;
+        }
+
+        String bufferPoolSizeStr = System.getProperty("client.buffer-pool-size");
+        if (bufferPoolSizeStr != null && bufferPoolSizeStr.length() > 0) {
+            this.bufferPoolSize = Long.valueOf(bufferPoolSizeStr);
+        } else if (propties != null && propties.bufferPoolSize > 0) {
+            this.bufferPoolSize = propties.bufferPoolSize;
+        }
+        BufferPool.configure(this.bufferPoolSize, false);
+
         String debugStr = System.getProperty("client.debug");
         if (debugStr != null && debugStr.length() > 0) {
             this.debug = Boolean.valueOf(debugStr);
@@ -104,7 +349,20 @@ public class TcpClient {
         }
 
         ChangeManager.setBasePath(null, System.getProperty("user.home"));
-        this.handlePool = Executors.newFixedThreadPool(maxHandleThreads, new NamedThreadFactory("Handler"));
+        ChksumCache.open(ChangeManager.getChangelogDir(), chksumCacheSize);
+        this.handlePool = NamedThreadFactory.newExecutor("Handler", maxHandleThreads, virtualThreads);
+        this.hashPool = newHashPool(hashThreads > 0 ? hashThreads : Runtime.getRuntime().availableProcessors());
+        int connections = maxHandleThreads;
+        if (isRanged()) {
+            this.rangePool = NamedThreadFactory.newExecutor("Range", maxHandleThreads * (rangeConnections - 1), virtualThreads);
+            /**
+             * 每个处理线程至多同时占用rangeConnections个连接, 避免分段互相等待连接.
+             */
+            connections = maxHandleThreads * rangeConnections;
+        }
+        if (session) {
+            this.connectionPool = new ConnectionPool(this.ip, this.port, connections, poolIdleTimeout * 1000L, poolMaxLifetime * 1000L, timeout * 1000L);
+        }
     }
 
     public boolean isSync() {
@@ -115,6 +373,155 @@ public class TcpClient {
         return debug;
     }
 
+    protected boolean isRanged() {
+        return rangeThreshold > 0 && rangeConnections > 1;
+    }
+
+    /**
+     * 本地文件可作为差量传输的基础: 达到阈值且无未完成的续传.
+     */
+    protected boolean isDelta(String localPath) {
+        return deltaThreshold > 0 && Utils.fileExists(localPath) && Utils.filesize(localPath) >= deltaThreshold
+                && !Utils.fileExists(localPath + Utils.DEFAULT_TRANSFERING_CNF_SUFFIX);
+    }
+
+    protected boolean isDedup(String localPath) {
+        long size = Utils.filesize(localPath);
+        return dedupThreshold > 0 && !dedupRefused && size >= dedupThreshold && ClientUpdedupHandler.accept(size);
+    }
+
+    /**
+     * 文件摘要, 优先使用摘要线程池已计算的结果.
+     */
+    protected String chksum(String localPath) {
+        String c = chksums.get(localPath);
+        return c != null ? c : ChksumCache.chksum(localPath);
+    }
+
+    private static ForkJoinPool newHashPool(int threads) {
+        return new ForkJoinPool(threads, new ForkJoinPool.ForkJoinWorkerThreadFactory() {
+            private final AtomicInteger number = new AtomicInteger(1);
+
+            @Override
+            public ForkJoinWorkerThread newThread(ForkJoinPool pool) {
+                ForkJoinWorkerThread t = ForkJoinPool.defaultForkJoinWorkerThreadFactory.newThread(pool);
+                t.setName("Hash-" + number.getAndIncrement());
+                return t;
+            }
+        }, null, true);
+    }
+
+    /**
+     * 在摘要线程池中计算paths的摘要, 完成后把r提交到处理线程池; 传输与后续文件的摘要计算并行.
+     */
+    private void executeHashed(final List<String> paths, final Runnable r) {
+        hashPool.execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    for (String fs : paths) {
+                        if (!Utils.isDirectoryPath(fs)) {
+                            String c = ChksumCache.chksum(fs);
+                            if (c != null) {
+                                chksums.put(fs, c);
+                            }
+                        }
+                    }
+                } finally {
+                    handlePool.execute(r);
+                }
+            }
+        });
+    }
+
+    /**
+     * 提交分段上传的一段.
+     */
+    protected Future<?> executeRange(Runnable r) {
+        return rangePool.submit(r);
+    }
+
+    /**
+     * 获取连接, 会话模式下从连接池借出.
+     */
+    protected Socket openConnection() throws Exception {
+        if (!session) {
+            return ClientSocket.connect(ip, port);
+        }
+        return connectionPool.borrow();
+    }
+
+    /**
+     * 归还连接, 交互未正常结束的连接直接关闭.
+     */
+    protected void releaseConnection(Socket s, boolean reusable) {
+        if (s == null) {
+            return;
+        }
+        if (session) {
+            connectionPool.release(s, reusable);
+            return;
+        }
+        ClientSocket.close(s);
+    }
+
+    /**
+     * 连接的数据块大小, 会话模式下随连接复用; 未开启自适应时固定为chunkSize.
+     */
+    protected ChunkSizer chunkSizer(Socket s) {
+        long initial = chunkSize == null ? Utils.DEFAULT_CHUNK_SIZE : chunkSize;
+        if (!adaptiveChunk) {
+            return new ChunkSizer(initial, initial, initial);
+        }
+        ChunkSizer c = session ? connectionPool.getChunkSizer(s) : null;
+        if (c == null) {
+            c = new ChunkSizer(lastChunkSize > 0 ? lastChunkSize : initial, chunkSizeMin, chunkSizeMax);
+            if (session) {
+                connectionPool.setChunkSizer(s, c);
+            }
+        }
+        return c;
+    }
+
+    /**
+     * 传输结束时记录数据块大小, 失败时先减半.
+     */
+    protected void releaseChunkSizer(ChunkSizer c, boolean success) {
+        if (c == null || !c.isAdaptive()) {
+            return;
+        }
+        if (!success) {
+            c.onFailure();
+        }
+        lastChunkSize = c.get();
+    }
+
+    /**
+     * 结束所有会话, 关闭连接池.
+     */
+    public void close() {
+        if (rangePool != null) {
+            rangePool.shutdown();
+        }
+        if (hashPool != null) {
+            hashPool.shutdown();
+        }
+        if (connectionPool != null) {
+            connectionPool.close();
+        }
+        ChksumCache.close();
+        ChangeManager.close();
+        logger.info("buffer pool {}", BufferPool.get().getStats());
+    }
+
+    public String getPoolStats() {
+        return connectionPool == null ? null : connectionPool.getStats();
+    }
+
+    public String getBufferStats() {
+        return BufferPool.get().getStats();
+    }
+
     public void stopPerct() {
         System.out.println("\b\b\bover");
     }
@@ -178,6 +585,14 @@ public class TcpClient {
                     if (!Utils.isDirectoryPath(fs)) {
                         for (int i = 0; i < retry; i++) {
                             try {
+                                if (i == 0 && isDelta(fullname)) {
+                                    ClientDwdeltaHandler d = new ClientDwdeltaHandler(owner, syncMode, fullname, fs);
+                                    d.run();
+                                    if (d.isResult()) {
+                                        thr = null;
+                                        break;
+                                    }
+                                }
                                 ClientDwfileHandler h = new ClientDwfileHandler(owner, syncMode, fullname, fs);
                                 h.run();
                                 thr = null;
@@ -273,60 +688,180 @@ public class TcpClient {
         doDw(specifiedSingleFile, fileList, false);
     }
 
+    /**
+     * 逐个上传一个文件, 失败时重试.
+     */
+    private void upFile(String fs, String fn, boolean syncMode, List<String> ud, CountDownLatch cdl) {
+        Exception thr = null;
+        if (!Utils.isDirectoryPath(fs)) {
+            for (int i = 0; i < retry; i++) {
+                try {
+                    int stat = -1;
+                    boolean up = true;
+                    if (syncMode) {
+                        stat = ChangeManager.getClientChanged(fs, chksums.get(fs));
+                        if (stat == 0) {
+                            up = false;
+                        }
+                    }
+                    if (up && i == 0 && isDelta(fs)) {
+                        ClientUpdeltaHandler h = new ClientUpdeltaHandler(this, fs, fn);
+                        h.run();
+                        if (h.isResult()) {
+                            if (stat > 0) {
+                                ChangeManager.writeClientChangelog(fs, h.getFileChksum(), false);
+                            }
+                            thr = null;
+                            break;
+                        }
+                    }
+                    if (up && i == 0 && isDedup(fs)) {
+                        ClientUpdedupHandler h = new ClientUpdedupHandler(this, fs, fn);
+                        h.run();
+                        if (h.isResult()) {
+                            if (stat > 0) {
+                                ChangeManager.writeClientChangelog(fs, h.getFileChksum(), false);
+                            }
+                            thr = null;
+                            break;
+                        }
+                    }
+                    if (up && isRanged() && Utils.filesize(fs) >= rangeThreshold) {
+                        ClientUprangeHandler h = new ClientUprangeHandler(this, fs, fn, rangeConnections);
+                        h.run();
+                        if (h.isResult() && stat > 0) {
+                            ChangeManager.writeClientChangelog(fs, h.getFileChksum(), false);
+                        }
+                        thr = null;
+                    } else if (up) {
+                        ClientUpfileHandler h = new ClientUpfileHandler(this, fs, fn);
+                        h.run();
+                        if (h.isResult() && stat > 0) {
+                            ChangeManager.writeClientChangelog(fs, h.getFileChksum(), false);
+                        }
+                        thr = null;
+                    }
+                    break;
+                } catch (Exception e) {
+                    if (isDebug()) {
+                        logger.error("up {} with {} failed, {}", path, fs, e);
+                    } else {
+                        logger.error("up {} with {} failed, {}", path, fs, e.getMessage());
+                    }
+                    thr = e;
+                }
+            }
+        }
+        chksums.remove(fs);
+        if (thr != null) {
+            ud.add(fs);
+        }
+        cdl.countDown();
+    }
+
+    /**
+     * 打包上传一组小文件, 未能打包上传的文件逐个上传.
+     */
+    private void upBundle(String origDir, List<String> group, boolean syncMode, List<String> ud, CountDownLatch cdl) {
+        List<String> paths = new ArrayList<String>();
+        List<String> names = new ArrayList<String>();
+        List<Integer> stats = new ArrayList<Integer>();
+        for (String fs : group) {
+            int stat = -1;
+            if (syncMode) {
+                stat = ChangeManager.getClientChanged(fs, chksums.remove(fs));
+                if (stat == 0) {
+                    cdl.countDown();
+                    continue;
+                }
+            }
+            paths.add(fs);
+            names.add(getUpName(origDir, fs));
+            stats.add(stat);
+        }
+        if (paths.isEmpty()) {
+            return;
+        }
+
+        ClientUpbundleHandler h = null;
+        try {
+            h = new ClientUpbundleHandler(this, paths, names);
+            h.run();
+        } catch (Exception e) {
+            if (isDebug()) {
+                logger.error("up {} with bundle of {} file(s) failed, {}", path, paths.size(), e);
+            } else {
+                logger.error("up {} with bundle of {} file(s) failed, {}", path, paths.size(), e.getMessage());
+            }
+        }
+        for (int i = 0; i < paths.size(); i++) {
+            String fs = paths.get(i);
+            if (h != null && h.isResult() && h.isUploaded(i)) {
+                if (stats.get(i) > 0) {
+                    ChangeManager.writeClientChangelog(fs, h.getFileChksum(i), false);
+                }
+                cdl.countDown();
+            } else {
+                upFile(fs, names.get(i), syncMode, ud, cdl);
+            }
+        }
+    }
+
+    private void executeBundle(final String origDir, final List<String> group, final boolean syncMode, final List<String> ud,
+            final CountDownLatch cdl) {
+        Runnable r = new Runnable() {
+            @Override
+            public void run() {
+                upBundle(origDir, group, syncMode, ud, cdl);
+            }
+        };
+        /**
+         * 打包上传由内存中的文件内容计算摘要, 仅同步模式判断变化时需要预先计算.
+         */
+        if (syncMode) {
+            executeHashed(group, r);
+        } else {
+            handlePool.execute(r);
+        }
+    }
+
+    private String getUpName(String origDir, String fs) {
+        return origDir == null || origDir.length() == 0 ? fs : fs.substring(origDir.length());
+    }
+
     private void doUp(final String origDir, List<String> sources, boolean syncMode) {
         logger.debug("doUp {} file(s) for {} ... {}", sources.size(), origDir, sources);
         List<String> fl = sources;
-        List<String> ud = new ArrayList<String>();
+        List<String> ud = Collections.synchronizedList(new ArrayList<String>());
         CountDownLatch cdl = new CountDownLatch(fl.size());
         startPerct(fl.size(), cdl);
+        List<String> group = new ArrayList<String>();
         for (String fs : fl) {
-            final String fn = origDir == null || origDir.length() == 0 ? fs : fs.substring(origDir.length());
-            final TcpClient owner = this;
+            long size = bundleThreshold > 0 && !Utils.isDirectoryPath(fs) ? Utils.filesize(fs) : -1;
+            if (size >= 0 && size <= bundleThreshold) {
+                group.add(fs);
+                if (group.size() >= bundleFiles) {
+                    executeBundle(origDir, group, syncMode, ud, cdl);
+                    group = new ArrayList<String>();
+                }
+                continue;
+            }
+            final String fn = getUpName(origDir, fs);
             Runnable r = new Runnable() {
                 @Override
                 public void run() {
-                    Exception thr = null;
-                    if (!Utils.isDirectoryPath(fs)) {
-                        for (int i = 0; i < retry; i++) {
-                            try {
-                                int stat = -1;
-                                boolean up = true;
-                                if (syncMode) {
-                                    stat = ChangeManager.getClientChanged(fs);
-                                    if (stat == 0) {
-                                        up = false;
-                                    }
-                                }
-                                if (up) {
-                                    ClientUpfileHandler h = new ClientUpfileHandler(owner, fs, fn);
-                                    h.run();
-                                    if (h.isResult() && stat > 0) {
-                                        ChangeManager.writeClientChangelog(fs, h.getFileChksum());
-                                    }
-                                    thr = null;
-                                }
-                                break;
-                            } catch (Exception e) {
-                                if (isDebug()) {
-                                    logger.error("up {} with {} failed, {}", path, fs, e);
-                                } else {
-                                    logger.error("up {} with {} failed, {}", path, fs, e.getMessage());
-                                }
-                                thr = e;
-                            }
-                        }
-                    }
-                    if (thr != null) {
-                        ud.add(fs);
-                    }
-                    cdl.countDown();
+                    upFile(fs, fn, syncMode, ud, cdl);
                 }
             };
-            handlePool.execute(r);
+            executeHashed(Collections.singletonList(fs), r);
+        }
+        if (!group.isEmpty()) {
+            executeBundle(origDir, group, syncMode, ud, cdl);
         }
 
         try {
             cdl.await();
+            hashPool.shutdown();
             handlePool.shutdown();
         } catch (InterruptedException e) {
         }
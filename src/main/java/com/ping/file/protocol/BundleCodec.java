@@ -0,0 +1,88 @@
+package com.ping.file.protocol;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * 小文件打包编解码.
+ * <p>
+ * UPBUNDLE数据块由若干完整条目顺序拼接, 条目不跨数据包:<br>
+ * varint 文件名长度 + 文件名(UTF-8) + varint 摘要长度 + 摘要 + varint 文件长度 + 文件内容.<br>
+ * 服务端应答数据块为每个条目一个状态字节, 顺序与条目一致.
+ *
+ * @author lawnstein.chan
+ * @version $Revision:$
+ */
+public final class BundleCodec {
+	/**
+	 * 已写入.
+	 */
+	public static final byte WRITTEN = 0;
+	/**
+	 * 文件已存在且无变化.
+	 */
+	public static final byte UNCHANGED = 1;
+	public static final byte FAILED = 2;
+
+	/**
+	 * 打包条目, offset为文件内容在数据块中的位置.
+	 */
+	public static class Entry {
+		public String filename;
+		public String chksum;
+		public int offset;
+		public int size;
+	}
+
+	private BundleCodec() {
+	}
+
+	/**
+	 * 条目头部长度, 不含文件内容.
+	 */
+	public static int headLength(byte[] filename, byte[] chksum, int size) {
+		return PacketCodec.sizeOfVarint(filename.length) + filename.length + PacketCodec.sizeOfVarint(chksum.length) + chksum.length
+				+ PacketCodec.sizeOfVarint(size);
+	}
+
+	/**
+	 * 写入条目头部, 文件内容由调用方紧接着写入.
+	 *
+	 * @return 文件内容的写入位置.
+	 */
+	public static int writeHead(byte[] target, int pos, byte[] filename, byte[] chksum, int size) {
+		pos = PacketCodec.writeBytes(target, pos, filename);
+		pos = PacketCodec.writeBytes(target, pos, chksum);
+		return PacketCodec.writeVarint(target, pos, size);
+	}
+
+	public static byte[] toBytes(String s) {
+		return s.getBytes(PacketCodec.UTF8);
+	}
+
+	/**
+	 * 解析数据块chunk[0, length)中的全部条目.
+	 */
+	public static List<Entry> decode(byte[] chunk, int length) {
+		List<Entry> entries = new ArrayList<Entry>();
+		int[] cursor = new int[] { 0 };
+		try {
+			while (cursor[0] < length) {
+				Entry e = new Entry();
+				e.filename = PacketCodec.readString(chunk, cursor, length);
+				e.chksum = PacketCodec.readString(chunk, cursor, length);
+				long size = PacketCodec.readVarint(chunk, cursor, length);
+				if (size < 0 || size > length - cursor[0]) {
+					throw new RuntimeException("decode bundle exception, entry " + e.filename + " size " + size + " exceed chunk");
+				}
+				e.offset = cursor[0];
+				e.size = (int) size;
+				cursor[0] += e.size;
+				entries.add(e);
+			}
+		} catch (ArrayIndexOutOfBoundsException e) {
+			throw new RuntimeException("decode bundle exception, entry truncated at " + e.getMessage());
+		}
+		return entries;
+	}
+}
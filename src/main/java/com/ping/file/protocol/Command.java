@@ -37,4 +37,30 @@ public enum Command {
      * 下载文件
      */
     DWDATA,
+
+    /**
+     * 结束会话
+     */
+    BYE,
+
+    /**
+     * 小文件打包上传, 追加在末尾以保持已有指令编码不变
+     */
+    UPBUNDLE,
+    /**
+     * 大文件分段上传, 多个连接各传一段
+     */
+    UPRANGE,
+    /**
+     * 差量上传, 服务端返回原文件块签名
+     */
+    UPDELTA,
+    /**
+     * 差量下载, 客户端发送本地文件块签名
+     */
+    DWDELTA,
+    /**
+     * 内容块去重上传, 只发送服务端没有的块
+     */
+    UPDEDUP,
 }
@@ -0,0 +1,79 @@
+package com.ping.file.protocol;
+
+/**
+ * 差量传输指令编解码.
+ * <p>
+ * UPDELTA/DWDELTA的数据块由若干完整指令顺序拼接, 指令不跨数据包:<br>
+ * COPY: 1 + varint 块序号 + varint 连续块数, 从接收方原文件复制;<br>
+ * LITERAL: 2 + varint 长度 + 数据, 原样写入.
+ *
+ * @author lawnstein.chan
+ * @version $Revision:$
+ */
+public final class DeltaCodec {
+	public static final byte COPY = 1;
+	public static final byte LITERAL = 2;
+
+	/**
+	 * 指令头部的最大长度.
+	 */
+	public static final int MAX_HEAD_LENGTH = 1 + 10 + 10;
+
+	/**
+	 * 解码出的指令, LITERAL的数据位于数据块[offset, offset + length).
+	 */
+	public static class Op {
+		public byte type;
+		public long index;
+		public int count;
+		public int offset;
+		public int length;
+	}
+
+	private DeltaCodec() {
+	}
+
+	public static int writeCopy(byte[] target, int pos, long index, int count) {
+		target[pos++] = COPY;
+		pos = PacketCodec.writeVarint(target, pos, index);
+		return PacketCodec.writeVarint(target, pos, count);
+	}
+
+	public static int writeLiteral(byte[] target, int pos, byte[] src, int offset, int length) {
+		target[pos++] = LITERAL;
+		pos = PacketCodec.writeVarint(target, pos, length);
+		System.arraycopy(src, offset, target, pos, length);
+		return pos + length;
+	}
+
+	/**
+	 * 解码chunk[pos, end)中的下一条指令.
+	 *
+	 * @return 下一条指令的位置.
+	 */
+	public static int next(byte[] chunk, int pos, int end, Op op) {
+		int[] cursor = new int[] { pos + 1 };
+		try {
+			op.type = chunk[pos];
+			if (op.type == COPY) {
+				op.index = PacketCodec.readVarint(chunk, cursor, end);
+				op.count = (int) PacketCodec.readVarint(chunk, cursor, end);
+				if (op.index < 0 || op.count <= 0) {
+					throw new RuntimeException("decode delta exception, copy " + op.index + "x" + op.count);
+				}
+				return cursor[0];
+			} else if (op.type == LITERAL) {
+				long length = PacketCodec.readVarint(chunk, cursor, end);
+				if (length < 0 || length > end - cursor[0]) {
+					throw new RuntimeException("decode delta exception, literal " + length + " exceed chunk");
+				}
+				op.offset = cursor[0];
+				op.length = (int) length;
+				return cursor[0] + op.length;
+			}
+		} catch (ArrayIndexOutOfBoundsException e) {
+			throw new RuntimeException("decode delta exception, op truncated at " + e.getMessage());
+		}
+		throw new RuntimeException("decode delta exception, unknown op " + op.type);
+	}
+}
@@ -1,20 +1,13 @@
 
 package com.ping.file.protocol;
 
-import java.io.ByteArrayInputStream;
-import java.io.ByteArrayOutputStream;
-import java.io.IOException;
-import java.io.ObjectInputStream;
-import java.io.ObjectOutputStream;
-import java.io.Serializable;
-
 /**
  * 数据传输包.
  * 
  * @author lawnstein.chan
  * @version $Revision:$
  */
-public class Packet implements Serializable {
+public class Packet {
 	public Command command;
 	public boolean cmdResult;
 	public String cmdMesg;
@@ -25,6 +18,22 @@ public class Packet implements Serializable {
 	public Long filesize;
 	public Long chunkSize;
 	public byte[] chunkBytes;
+	/**
+	 * 数据块长度. chunkBytes为池化缓冲时为有效长度; 数据块已由处理器直接写入文件时chunkBytes为null.
+	 */
+	public int chunkLength;
+	/**
+	 * 滑动窗口大小(字节), 协商流水线传输时使用.
+	 */
+	public Long window;
+	/**
+	 * 数据块压缩算法, UPCHUNK/DWCHUNK中协商, 为null表示不压缩.
+	 */
+	public String compress;
+	/**
+	 * 数据块压缩前长度, 为null表示数据块未压缩.
+	 */
+	public Integer rawLength;
 
 	public Packet() {
 		super();
@@ -65,9 +74,24 @@ public class Packet implements Serializable {
 			builder.append(", chunkSize=");
 			builder.append(chunkSize);
 		}
+		if (window != null) {
+			builder.append(", window=");
+			builder.append(window);
+		}
+		if (compress != null) {
+			builder.append(", compress=");
+			builder.append(compress);
+		}
+		if (rawLength != null) {
+			builder.append(", rawLength=");
+			builder.append(rawLength);
+		}
 		if (chunkBytes != null) {
 			builder.append(", chunkBytes.size=");
-			builder.append(chunkBytes == null ? 0 : chunkBytes.length);
+			builder.append(getChunkLength());
+		} else if (chunkLength > 0) {
+			builder.append(", chunkLength=");
+			builder.append(chunkLength);
 		}
 		builder.append("]");
 		return builder.toString();
@@ -86,41 +110,21 @@ public class Packet implements Serializable {
 		return p;
 	}
 
-	public byte[] getBytes() {
-		ObjectOutputStream out = null;
-		try {
-			ByteArrayOutputStream bout = new ByteArrayOutputStream();
-			out = new ObjectOutputStream(bout);
-			out.writeObject(this);
-			out.flush();
-			byte[] target = bout.toByteArray();
-			return target;
-		} catch (IOException e) {
-			throw new RuntimeException("serialize Packet exception", e);
-		} finally {
-			if (out != null) {
-				try {
-					out.close();
-				} catch (IOException e) {
-				}
-			}
+	/**
+	 * @return 数据块有效长度, 未设置chunkLength时为chunkBytes长度.
+	 */
+	public int getChunkLength() {
+		if (chunkBytes == null || chunkLength > 0) {
+			return chunkLength;
 		}
+		return chunkBytes.length;
+	}
+
+	public byte[] getBytes() {
+		return PacketCodec.encode(this);
 	}
 
 	public static Packet valueOf(byte[] bytes) {
-		ObjectInputStream in = null;
-		try {
-			in = new ObjectInputStream(new ByteArrayInputStream(bytes));
-			return (Packet) in.readObject();
-		} catch (IOException | ClassNotFoundException e) {
-			throw new RuntimeException("deserialize to Packet exception", e);
-		} finally {
-			if (in != null) {
-				try {
-					in.close();
-				} catch (IOException e) {
-				}
-			}
-		}
+		return PacketCodec.decode(bytes);
 	}
 }
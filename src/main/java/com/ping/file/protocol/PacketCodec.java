@@ -0,0 +1,301 @@
+package com.ping.file.protocol;
+
+import java.nio.charset.Charset;
+
+import com.ping.file.util.Utils;
+
+/**
+ * 数据传输包二进制编解码.
+ * <p>
+ * 帧格式: 定长帧头 + 包头 + 数据块.<br>
+ * 帧头(8字节): magic(1) version(1) 包头长度(2, 无符号) 数据块长度(4).<br>
+ * 包头: command(1) flags(varint) 按flags出现的字段, 字符串为varint长度+UTF-8, 长整型为zigzag varint.<br>
+ * 数据块: chunkBytes的前getChunkLength()字节原样追加, 不做任何拷贝或转换.
+ *
+ * @author lawnstein.chan
+ * @version $Revision:$
+ */
+public final class PacketCodec {
+	public static final int PRELUDE_LENGTH = 8;
+	public static final byte MAGIC = (byte) 0xA5;
+	public static final byte VERSION = 1;
+	public static final int MAX_HEAD_LENGTH = 0xFFFF;
+
+	static final Charset UTF8 = Charset.forName("UTF-8");
+	private static final Command[] COMMANDS = Command.values();
+	private static final byte NO_COMMAND = (byte) 0xFF;
+
+	private static final int F_RESULT = 1;
+	private static final int F_MESG = 1 << 1;
+	private static final int F_FILENAME = 1 << 2;
+	private static final int F_CHKSUM = 1 << 3;
+	private static final int F_FILEPOS = 1 << 4;
+	private static final int F_FILESIZE = 1 << 5;
+	private static final int F_CHUNKSIZE = 1 << 6;
+	private static final int F_CHUNK = 1 << 7;
+	private static final int F_WINDOW = 1 << 8;
+	private static final int F_COMPRESS = 1 << 9;
+	private static final int F_RAWLENGTH = 1 << 10;
+
+	private PacketCodec() {
+	}
+
+	/**
+	 * 编码帧头和包头, 数据块由调用方随后原样发送.
+	 */
+	public static byte[] encodeHead(Packet p) {
+		return encode(p, false, p.chunkBytes != null, p.chunkBytes == null ? 0 : p.getChunkLength());
+	}
+
+	/**
+	 * 编码帧头和包头, 数据块不在Packet中, 由调用方随后直接发送chunkLength字节(如FileChannel.transferTo).
+	 */
+	public static byte[] encodeHead(Packet p, int chunkLength) {
+		return encode(p, false, true, chunkLength);
+	}
+
+	/**
+	 * 编码完整的帧.
+	 */
+	public static byte[] encode(Packet p) {
+		return encode(p, true, p.chunkBytes != null, p.chunkBytes == null ? 0 : p.getChunkLength());
+	}
+
+	private static byte[] encode(Packet p, boolean withChunk, boolean hasChunk, int chunkLength) {
+		byte[] mesg = p.cmdMesg == null ? null : p.cmdMesg.getBytes(UTF8);
+		byte[] filename = p.filename == null ? null : p.filename.getBytes(UTF8);
+		byte[] chksum = p.chksum == null ? null : p.chksum.getBytes(UTF8);
+		byte[] compress = p.compress == null ? null : p.compress.getBytes(UTF8);
+
+		int flags = 0;
+		int headLength = 1;
+		if (p.cmdResult) {
+			flags |= F_RESULT;
+		}
+		if (mesg != null) {
+			flags |= F_MESG;
+			headLength += sizeOfVarint(mesg.length) + mesg.length;
+		}
+		if (filename != null) {
+			flags |= F_FILENAME;
+			headLength += sizeOfVarint(filename.length) + filename.length;
+		}
+		if (chksum != null) {
+			flags |= F_CHKSUM;
+			headLength += sizeOfVarint(chksum.length) + chksum.length;
+		}
+		if (p.filepos != null) {
+			flags |= F_FILEPOS;
+			headLength += sizeOfVarint(zigzag(p.filepos));
+		}
+		if (p.filesize != null) {
+			flags |= F_FILESIZE;
+			headLength += sizeOfVarint(zigzag(p.filesize));
+		}
+		if (p.chunkSize != null) {
+			flags |= F_CHUNKSIZE;
+			headLength += sizeOfVarint(zigzag(p.chunkSize));
+		}
+		if (hasChunk) {
+			flags |= F_CHUNK;
+		}
+		if (p.window != null) {
+			flags |= F_WINDOW;
+			headLength += sizeOfVarint(zigzag(p.window));
+		}
+		if (compress != null) {
+			flags |= F_COMPRESS;
+			headLength += sizeOfVarint(compress.length) + compress.length;
+		}
+		if (p.rawLength != null) {
+			flags |= F_RAWLENGTH;
+			headLength += sizeOfVarint(zigzag(p.rawLength));
+		}
+		headLength += sizeOfVarint(flags);
+		if (headLength > MAX_HEAD_LENGTH) {
+			throw new RuntimeException("encode Packet exception, head length " + headLength + " exceed " + MAX_HEAD_LENGTH);
+		}
+
+		byte[] target = new byte[PRELUDE_LENGTH + headLength + (withChunk ? chunkLength : 0)];
+		target[0] = MAGIC;
+		target[1] = VERSION;
+		target[2] = (byte) (headLength >>> 8);
+		target[3] = (byte) headLength;
+		target[4] = (byte) (chunkLength >>> 24);
+		target[5] = (byte) (chunkLength >>> 16);
+		target[6] = (byte) (chunkLength >>> 8);
+		target[7] = (byte) chunkLength;
+
+		int pos = PRELUDE_LENGTH;
+		target[pos++] = p.command == null ? NO_COMMAND : (byte) p.command.ordinal();
+		pos = writeVarint(target, pos, flags);
+		pos = writeBytes(target, pos, mesg);
+		pos = writeBytes(target, pos, filename);
+		pos = writeBytes(target, pos, chksum);
+		if (p.filepos != null) {
+			pos = writeVarint(target, pos, zigzag(p.filepos));
+		}
+		if (p.filesize != null) {
+			pos = writeVarint(target, pos, zigzag(p.filesize));
+		}
+		if (p.chunkSize != null) {
+			pos = writeVarint(target, pos, zigzag(p.chunkSize));
+		}
+		if (p.window != null) {
+			pos = writeVarint(target, pos, zigzag(p.window));
+		}
+		pos = writeBytes(target, pos, compress);
+		if (p.rawLength != null) {
+			pos = writeVarint(target, pos, zigzag(p.rawLength));
+		}
+		if (withChunk && chunkLength > 0) {
+			System.arraycopy(p.chunkBytes, 0, target, pos, chunkLength);
+		}
+		return target;
+	}
+
+	/**
+	 * @return 帧头中的包头长度.
+	 */
+	public static int headLength(byte[] prelude) {
+		checkPrelude(prelude);
+		return ((prelude[2] & 0xFF) << 8) | (prelude[3] & 0xFF);
+	}
+
+	/**
+	 * @return 帧头中的数据块长度, 超出Utils.MAX_CHUNK_SIZE时视为非法帧, 避免按对端给出的长度分配过大的缓冲.
+	 */
+	public static int chunkLength(byte[] prelude) {
+		checkPrelude(prelude);
+		int chunkLength = ((prelude[4] & 0xFF) << 24) | ((prelude[5] & 0xFF) << 16) | ((prelude[6] & 0xFF) << 8) | (prelude[7] & 0xFF);
+		if (chunkLength < 0 || chunkLength > Utils.MAX_CHUNK_SIZE) {
+			throw new RuntimeException("decode Packet exception, invalid chunk length " + chunkLength);
+		}
+		return chunkLength;
+	}
+
+	private static void checkPrelude(byte[] prelude) {
+		if (prelude == null || prelude.length < PRELUDE_LENGTH || prelude[0] != MAGIC) {
+			throw new RuntimeException("decode Packet exception, unexpected frame head");
+		}
+		if (prelude[1] != VERSION) {
+			throw new RuntimeException("decode Packet exception, unsupported frame version " + prelude[1]);
+		}
+	}
+
+	/**
+	 * 解码包头, 若包含数据块则按chunkLength分配chunkBytes, 由调用方随后填充.
+	 */
+	public static Packet decodeHead(byte[] head, int off, int len, int chunkLength) {
+		return decodeHead(head, off, len, chunkLength, true);
+	}
+
+	/**
+	 * 解码包头, 记录chunkLength; allocChunk为false时不分配chunkBytes, 数据块由调用方自行读取(可读入池化缓冲).<br>
+	 * 帧头带有数据块而包头未标记F_CHUNK时视为非法帧, 否则数据块不会被读取, 后续帧错位.
+	 */
+	public static Packet decodeHead(byte[] head, int off, int len, int chunkLength, boolean allocChunk) {
+		int[] cursor = new int[] { off };
+		int end = off + len;
+		try {
+			Packet p = new Packet();
+			byte cmd = head[cursor[0]++];
+			p.command = cmd == NO_COMMAND ? null : COMMANDS[cmd & 0xFF];
+			int flags = (int) readVarint(head, cursor, end);
+			p.cmdResult = (flags & F_RESULT) != 0;
+			p.cmdMesg = (flags & F_MESG) != 0 ? readString(head, cursor, end) : null;
+			p.filename = (flags & F_FILENAME) != 0 ? readString(head, cursor, end) : null;
+			p.chksum = (flags & F_CHKSUM) != 0 ? readString(head, cursor, end) : null;
+			p.filepos = (flags & F_FILEPOS) != 0 ? unzigzag(readVarint(head, cursor, end)) : null;
+			p.filesize = (flags & F_FILESIZE) != 0 ? unzigzag(readVarint(head, cursor, end)) : null;
+			p.chunkSize = (flags & F_CHUNKSIZE) != 0 ? unzigzag(readVarint(head, cursor, end)) : null;
+			p.window = (flags & F_WINDOW) != 0 ? unzigzag(readVarint(head, cursor, end)) : null;
+			p.compress = (flags & F_COMPRESS) != 0 ? readString(head, cursor, end) : null;
+			p.rawLength = (flags & F_RAWLENGTH) != 0 ? (int) unzigzag(readVarint(head, cursor, end)) : null;
+			if ((flags & F_CHUNK) == 0 && chunkLength > 0) {
+				throw new RuntimeException("decode Packet exception, chunk length " + chunkLength + " without chunk flag");
+			}
+			p.chunkLength = (flags & F_CHUNK) != 0 ? chunkLength : 0;
+			p.chunkBytes = (flags & F_CHUNK) != 0 && allocChunk ? new byte[chunkLength] : null;
+			return p;
+		} catch (ArrayIndexOutOfBoundsException e) {
+			throw new RuntimeException("decode Packet exception, malformed head", e);
+		}
+	}
+
+	/**
+	 * 解码完整的帧.
+	 */
+	public static Packet decode(byte[] frame) {
+		int headLength = headLength(frame);
+		int chunkLength = chunkLength(frame);
+		if (frame.length < PRELUDE_LENGTH + headLength + chunkLength) {
+			throw new RuntimeException("decode Packet exception, frame truncated");
+		}
+		Packet p = decodeHead(frame, PRELUDE_LENGTH, headLength, chunkLength);
+		if (p.chunkBytes != null && chunkLength > 0) {
+			System.arraycopy(frame, PRELUDE_LENGTH + headLength, p.chunkBytes, 0, chunkLength);
+		}
+		return p;
+	}
+
+	private static long zigzag(long v) {
+		return (v << 1) ^ (v >> 63);
+	}
+
+	private static long unzigzag(long v) {
+		return (v >>> 1) ^ -(v & 1);
+	}
+
+	static int sizeOfVarint(long v) {
+		int size = 1;
+		while ((v & ~0x7FL) != 0) {
+			v >>>= 7;
+			size++;
+		}
+		return size;
+	}
+
+	static int writeVarint(byte[] target, int pos, long v) {
+		while ((v & ~0x7FL) != 0) {
+			target[pos++] = (byte) ((v & 0x7F) | 0x80);
+			v >>>= 7;
+		}
+		target[pos++] = (byte) v;
+		return pos;
+	}
+
+	static int writeBytes(byte[] target, int pos, byte[] bytes) {
+		if (bytes == null) {
+			return pos;
+		}
+		pos = writeVarint(target, pos, bytes.length);
+		System.arraycopy(bytes, 0, target, pos, bytes.length);
+		return pos + bytes.length;
+	}
+
+	static long readVarint(byte[] head, int[] cursor, int end) {
+		long v = 0;
+		for (int shift = 0; shift < 64; shift += 7) {
+			if (cursor[0] >= end) {
+				throw new ArrayIndexOutOfBoundsException(cursor[0]);
+			}
+			byte b = head[cursor[0]++];
+			v |= (long) (b & 0x7F) << shift;
+			if ((b & 0x80) == 0) {
+				return v;
+			}
+		}
+		throw new RuntimeException("decode Packet exception, malformed varint");
+	}
+
+	static String readString(byte[] head, int[] cursor, int end) {
+		int len = (int) readVarint(head, cursor, end);
+		if (len < 0 || cursor[0] + len > end) {
+			throw new ArrayIndexOutOfBoundsException(cursor[0] + len);
+		}
+		String s = new String(head, cursor[0], len, UTF8);
+		cursor[0] += len;
+		return s;
+	}
+}
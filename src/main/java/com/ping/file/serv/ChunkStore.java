@@ -0,0 +1,245 @@
+package com.ping.file.serv;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.ping.file.util.ContentChunker;
+import com.ping.file.util.NamedThreadFactory;
+import com.ping.file.util.Utils;
+import com.ping.sync.ChangeManager;
+
+/**
+ * 服务端内容块索引.
+ * <p>
+ * 按块摘要索引已存储文件中的内容块位置(文件, 偏移, 长度), 上传时客户端只发送索引中没有的块. 文件仍完整存放在基础目录下,
+ * 索引只引用其中的区间, 使用前按摘要校验, 不一致的条目即丢弃.<br>
+ * 索引以追加方式持久化到changelog目录下的chunks.idx, 每行"摘要,长度,偏移,文件名"; 启动时加载, 失效行超过有效行时重写(运行中同样检查).<br>
+ * 内存中至多保留maxEntries个块, 超出时淘汰最久未使用的块. 后台分块的待处理文件至多MAX_PENDING个, 同一文件只排队一次, 超出时放弃入索引.
+ *
+ * @author lawnstein.chan
+ * @version $Revision:$
+ */
+class ChunkStore {
+	private static final Logger logger = LoggerFactory.getLogger(TcpServer.class);
+	public static final String INDEX_NAME = "chunks.idx";
+	public static final int DEFAULT_MAX_ENTRIES = 1000000;
+	private static final int MAX_PENDING = 1024;
+	/**
+	 * 文件行数少于此值时不重写.
+	 */
+	private static final long REWRITE_MIN_LINES = 65536;
+
+	private static ChunkStore instance = null;
+
+	/**
+	 * 块所在的文件区间, filename相对于基础目录.
+	 */
+	static class Location {
+		final String filename;
+		final long offset;
+		final int length;
+
+		Location(String filename, long offset, int length) {
+			this.filename = filename;
+			this.offset = offset;
+			this.length = length;
+		}
+	}
+
+	private final String indexPath;
+	private final Map<String, Location> index;
+	/**
+	 * 索引文件行数, 含已失效的行.
+	 */
+	private long lines = 0;
+	/**
+	 * 非内容块上传完成的文件由后台线程分块入索引.
+	 */
+	private final ExecutorService indexer = new ThreadPoolExecutor(1, 1, 0L, TimeUnit.MILLISECONDS, new LinkedBlockingQueue<Runnable>(MAX_PENDING),
+			new NamedThreadFactory("Chunker"));
+	private final Set<String> pending = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+
+	private ChunkStore(String dir, final int maxEntries) {
+		new File(dir).mkdirs();
+		this.indexPath = dir + INDEX_NAME;
+		this.index = new LinkedHashMap<String, Location>(16, 0.75f, true) {
+			private static final long serialVersionUID = 1L;
+
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<String, Location> eldest) {
+				return size() > maxEntries;
+			}
+		};
+	}
+
+	/**
+	 * 启用内容块索引, dir为索引文件目录, maxEntries为内存中的块数上限.
+	 */
+	public static synchronized void open(String dir, int maxEntries) {
+		if (instance != null) {
+			return;
+		}
+		ChunkStore s = new ChunkStore(dir, maxEntries > 0 ? maxEntries : DEFAULT_MAX_ENTRIES);
+		s.load();
+		instance = s;
+	}
+
+	/**
+	 * @return 未启用时为null.
+	 */
+	public static ChunkStore get() {
+		return instance;
+	}
+
+	public static synchronized void close() {
+		if (instance != null) {
+			instance.indexer.shutdown();
+			instance = null;
+		}
+	}
+
+	public synchronized int size() {
+		return index.size();
+	}
+
+	public synchronized Location find(String hash) {
+		return index.get(hash);
+	}
+
+	/**
+	 * 丢弃校验不一致的条目.
+	 */
+	public synchronized void forget(String hash, Location loc) {
+		index.remove(hash, loc);
+	}
+
+	/**
+	 * 登记文件的全部内容块, 同一摘要以最新位置为准.
+	 */
+	public synchronized void add(String filename, ContentChunker chunks) {
+		StringBuilder sb = new StringBuilder();
+		long offset = 0;
+		for (int i = 0; i < chunks.getCount(); i++) {
+			String hash = chunks.getHash(i);
+			index.put(hash, new Location(filename, offset, chunks.getLength(i)));
+			sb.append(hash).append(',').append(chunks.getLength(i)).append(',').append(offset).append(',').append(filename).append('\n');
+			offset += chunks.getLength(i);
+		}
+		try {
+			BufferedWriter writer = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(indexPath, true), Utils.DEFAULT_FILE_ENCODING));
+			try {
+				writer.write(sb.toString());
+			} finally {
+				writer.close();
+			}
+			lines += chunks.getCount();
+		} catch (IOException e) {
+			logger.warn("chunk index {} append failed, {}", indexPath, e.getMessage());
+		}
+		rewriteIfNeeded();
+	}
+
+	/**
+	 * 后台分块并登记文件, 该文件已在排队或队列已满时忽略.
+	 */
+	public void indexAsync(final String filename) {
+		if (!pending.add(filename)) {
+			return;
+		}
+		try {
+			indexer.execute(new Runnable() {
+				@Override
+				public void run() {
+					pending.remove(filename);
+					try {
+						ContentChunker chunks = ContentChunker.cut(ChangeManager.getBaseDir() + filename);
+						add(filename, chunks);
+						logger.debug("file {} indexed with {} chunk(s).", filename, chunks.getCount());
+					} catch (IOException e) {
+						logger.warn("file {} index failed, {}", filename, e.getMessage());
+					}
+				}
+			});
+		} catch (RejectedExecutionException e) {
+			pending.remove(filename);
+			logger.debug("file {} not indexed, indexer busy.", filename);
+		}
+	}
+
+	private void load() {
+		File f = new File(indexPath);
+		if (!f.exists()) {
+			return;
+		}
+		BufferedReader reader = null;
+		try {
+			reader = new BufferedReader(new InputStreamReader(new FileInputStream(f), Utils.DEFAULT_FILE_ENCODING));
+			String line;
+			while ((line = reader.readLine()) != null) {
+				String[] s = line.split(",", 4);
+				if (s.length == 4) {
+					index.put(s[0], new Location(s[3], Long.valueOf(s[2]), Integer.valueOf(s[1])));
+					lines++;
+				}
+			}
+		} catch (IOException | NumberFormatException e) {
+			logger.warn("chunk index {} load failed, {}", indexPath, e.getMessage());
+		} finally {
+			if (reader != null) {
+				try {
+					reader.close();
+				} catch (IOException e) {
+				}
+			}
+		}
+		logger.info("chunk index loaded, {} chunk(s).", index.size());
+		rewriteIfNeeded();
+	}
+
+	private void rewriteIfNeeded() {
+		if (lines > REWRITE_MIN_LINES && lines > 2L * index.size()) {
+			rewrite();
+		}
+	}
+
+	/**
+	 * 只保留内存中的条目重写索引文件, 调用方持有锁或在加载中.
+	 */
+	private void rewrite() {
+		try {
+			BufferedWriter writer = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(indexPath + ".tmp", false), Utils.DEFAULT_FILE_ENCODING));
+			try {
+				for (Map.Entry<String, Location> e : index.entrySet()) {
+					Location l = e.getValue();
+					writer.write(e.getKey() + "," + l.length + "," + l.offset + "," + l.filename + "\n");
+				}
+			} finally {
+				writer.close();
+			}
+			Utils.replaceFile(indexPath + ".tmp", indexPath);
+			logger.info("chunk index {} rewritten, {} -> {} line(s).", indexPath, lines, index.size());
+			lines = index.size();
+		} catch (IOException e) {
+			logger.warn("chunk index {} rewrite failed, {}", indexPath, e.getMessage());
+		}
+	}
+}
@@ -0,0 +1,264 @@
+package com.ping.file.serv;
+
+import java.io.IOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileSystems;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.ping.file.util.ChksumCache;
+import com.ping.file.util.NamedThreadFactory;
+import com.ping.file.util.RangeMap;
+import com.ping.file.util.Utils;
+import com.ping.sync.ChangeManager;
+
+/**
+ * 服务端摘要索引维护.
+ * <p>
+ * 启动后由后台线程遍历基础目录, 按scanRate(字节/秒)限速计算尚未缓存的文件摘要, 同时为每个目录注册WatchService.
+ * 文件新建, 修改或删除时立即丢弃其摘要, 新建和修改的文件在SETTLE_MILLIS内无新事件后重新计算, 下载确认即可直接使用.<br>
+ * 缓存本身按文件属性校验, 事件丢失(OVERFLOW)只影响预先计算, 不影响正确性.<br>
+ * changelog目录(摘要缓存, 变更日志等自身状态文件)和传输中的文件不计算也不监视.
+ *
+ * @author lawnstein.chan
+ * @version $Revision:$
+ */
+class DigestWatcher implements Runnable {
+	private static final Logger logger = LoggerFactory.getLogger(TcpServer.class);
+	private static final long SETTLE_MILLIS = 3000L;
+	private static final long POLL_MILLIS = 1000L;
+
+	private static DigestWatcher instance = null;
+
+	private final Path base;
+	private final Path changelog;
+	private final long scanRate;
+	private final WatchService watcher;
+	private final Map<WatchKey, Path> keys = new HashMap<WatchKey, Path>();
+	/**
+	 * 待重新计算的文件及其最后事件时间.
+	 */
+	private final Map<Path, Long> pending = new HashMap<Path, Long>();
+	private volatile boolean alived = true;
+	private long scanned = 0;
+	private long scanStart = 0;
+	private boolean registerFailed = false;
+
+	private DigestWatcher(String dir, long scanRate) throws IOException {
+		this.base = Paths.get(dir);
+		this.changelog = Paths.get(ChangeManager.getChangelogDir());
+		this.scanRate = scanRate;
+		this.watcher = FileSystems.getDefault().newWatchService();
+	}
+
+	/**
+	 * 启动摘要索引线程, 需先启用ChksumCache.
+	 */
+	public static synchronized void open(String dir, long scanRate) {
+		if (instance != null || ChksumCache.get() == null) {
+			return;
+		}
+		try {
+			instance = new DigestWatcher(dir, scanRate);
+		} catch (IOException e) {
+			logger.warn("digest watcher for {} not started, {}", dir, e.getMessage());
+			return;
+		}
+		Thread t = new NamedThreadFactory("Digest").newThread(instance);
+		t.setDaemon(true);
+		t.setPriority(Thread.MIN_PRIORITY);
+		t.start();
+	}
+
+	public static synchronized void close() {
+		if (instance != null) {
+			instance.alived = false;
+			try {
+				instance.watcher.close();
+			} catch (IOException e) {
+			}
+			instance = null;
+		}
+	}
+
+	@Override
+	public void run() {
+		try {
+			scanStart = System.currentTimeMillis();
+			scan(base);
+			logger.info("digest index of {} ready, {} file(s) cached, {} byte(s) hashed in {} ms.", base, ChksumCache.get().size(), scanned,
+					System.currentTimeMillis() - scanStart);
+			ChksumCache.get().flush();
+			while (alived) {
+				poll(POLL_MILLIS);
+				rehash();
+			}
+		} catch (ClosedWatchServiceException e) {
+		} catch (InterruptedException e) {
+		} catch (Exception e) {
+			logger.warn("digest watcher for {} stopped, {}", base, e.getMessage());
+		}
+	}
+
+	/**
+	 * 注册目录并计算其下文件的摘要, 每个文件之后处理已到达的事件.
+	 */
+	private void scan(Path dir) throws IOException {
+		Files.walkFileTree(dir, new SimpleFileVisitor<Path>() {
+			@Override
+			public FileVisitResult preVisitDirectory(Path d, BasicFileAttributes attrs) throws IOException {
+				if (d.startsWith(changelog)) {
+					return FileVisitResult.SKIP_SUBTREE;
+				}
+				register(d);
+				return alived ? FileVisitResult.CONTINUE : FileVisitResult.TERMINATE;
+			}
+
+			@Override
+			public FileVisitResult visitFile(Path f, BasicFileAttributes attrs) throws IOException {
+				if (attrs.isRegularFile()) {
+					try {
+						long now = System.currentTimeMillis();
+						if (now - attrs.lastModifiedTime().toMillis() < SETTLE_MILLIS) {
+							pending.put(f, now);
+						} else {
+							hash(f, attrs.size());
+						}
+						poll(0);
+					} catch (InterruptedException e) {
+						return FileVisitResult.TERMINATE;
+					}
+				}
+				return alived ? FileVisitResult.CONTINUE : FileVisitResult.TERMINATE;
+			}
+
+			@Override
+			public FileVisitResult visitFileFailed(Path f, IOException e) {
+				return FileVisitResult.CONTINUE;
+			}
+		});
+	}
+
+	/**
+	 * changelog目录下的文件, 续传记录和差量临时文件, 以及仍有续传记录的文件.
+	 */
+	private boolean ignored(Path f) {
+		if (f.startsWith(changelog)) {
+			return true;
+		}
+		String path = f.toString();
+		return Utils.isTransferingConf(path) || Files.exists(Paths.get(path + Utils.DEFAULT_TRANSFERING_CNF_SUFFIX))
+				|| RangeMap.exists(path);
+	}
+
+	/**
+	 * 注册失败(如超出系统监视数量上限)时该目录只依赖文件属性校验.
+	 */
+	private void register(Path dir) {
+		try {
+			WatchKey key = dir.register(watcher, StandardWatchEventKinds.ENTRY_CREATE, StandardWatchEventKinds.ENTRY_MODIFY,
+					StandardWatchEventKinds.ENTRY_DELETE);
+			keys.put(key, dir);
+		} catch (IOException e) {
+			if (!registerFailed) {
+				registerFailed = true;
+				logger.warn("watch {} failed, {}", dir, e.getMessage());
+			}
+		}
+	}
+
+	/**
+	 * 计算未缓存文件的摘要, 按scanRate限速.
+	 */
+	private void hash(Path f, long size) throws InterruptedException {
+		String path = f.toString();
+		if (ignored(f) || ChksumCache.get().isCached(path)) {
+			return;
+		}
+		ChksumCache.chksum(path);
+		scanned += size;
+		if (scanRate > 0) {
+			long wait = scanned * 1000 / scanRate - (System.currentTimeMillis() - scanStart);
+			if (wait > 0) {
+				Thread.sleep(wait);
+			}
+		}
+	}
+
+	/**
+	 * 处理到达的事件, timeout为0时不等待.
+	 */
+	private void poll(long timeout) throws InterruptedException {
+		WatchKey key = timeout > 0 ? watcher.poll(timeout, TimeUnit.MILLISECONDS) : watcher.poll();
+		while (key != null) {
+			Path dir = keys.get(key);
+			for (WatchEvent<?> event : key.pollEvents()) {
+				if (dir == null || event.kind() == StandardWatchEventKinds.OVERFLOW) {
+					continue;
+				}
+				Path f = dir.resolve((Path) event.context());
+				if (f.startsWith(changelog)) {
+					continue;
+				}
+				ChksumCache.get().invalidate(f.toString());
+				if (Utils.isTransferingConf(f.toString())) {
+					continue;
+				}
+				if (event.kind() == StandardWatchEventKinds.ENTRY_DELETE) {
+					pending.remove(f);
+				} else if (Files.isDirectory(f)) {
+					if (event.kind() == StandardWatchEventKinds.ENTRY_CREATE) {
+						try {
+							scan(f);
+						} catch (IOException e) {
+							logger.debug("scan {} failed, {}", f, e.getMessage());
+						}
+					}
+				} else {
+					pending.put(f, System.currentTimeMillis());
+				}
+			}
+			if (!key.reset()) {
+				keys.remove(key);
+			}
+			key = watcher.poll();
+		}
+	}
+
+	/**
+	 * 重新计算已稳定的文件.
+	 */
+	private void rehash() throws InterruptedException {
+		long now = System.currentTimeMillis();
+		Iterator<Map.Entry<Path, Long>> itr = pending.entrySet().iterator();
+		while (itr.hasNext()) {
+			Map.Entry<Path, Long> e = itr.next();
+			if (now - e.getValue() < SETTLE_MILLIS) {
+				continue;
+			}
+			itr.remove();
+			Path f = e.getKey();
+			if (Files.isRegularFile(f)) {
+				try {
+					hash(f, Files.size(f));
+				} catch (IOException ex) {
+				}
+			}
+		}
+	}
+}
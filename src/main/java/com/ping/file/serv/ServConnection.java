@@ -0,0 +1,725 @@
+package com.ping.file.serv;
+
+import com.ping.file.protocol.Command;
+import com.ping.file.protocol.Packet;
+import com.ping.file.protocol.PacketCodec;
+import com.ping.file.util.BufferPool;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.RejectedExecutionException;
+
+/**
+ * NIO连接: 非阻塞读取拆帧, 按指令分派处理器, 应答经发送队列写出.
+ * <p>
+ * 事件循环线程只负责读写套接字和拆帧, 完整的数据包放入接收队列后由处理线程池执行处理器(onPacket, onWritable),
+ * 同一连接同时至多一个处理任务, 数据包按到达顺序处理. 处理器只在处理线程中访问, 读写状态只在事件循环线程中访问,
+ * 两者共享的接收队列和发送队列以连接对象加锁.<br>
+ * 接收队列达到上限时暂停读取, 处理线程取走数据包后恢复.
+ *
+ * @author lawnstein.chan
+ * @version $Revision:$
+ */
+class ServConnection implements ServSession, Runnable {
+    private static final Logger logger = LoggerFactory.getLogger(TcpServer.class);
+
+    /**
+     * 发送队列高水位, 超过后暂停向处理器索取数据.
+     */
+    private static final int WRITE_HIGH_WATER = 256 * 1024;
+    /**
+     * 接收队列上限(数据包数和数据块字节数), 超过后暂停读取.
+     */
+    private static final int MAX_INBOUND = 64;
+    private static final int READ_HIGH_WATER = 1024 * 1024;
+    /**
+     * 单次就绪事件最多读取次数, 避免单个连接占满事件循环.
+     */
+    private static final int MAX_READS_PER_EVENT = 16;
+    private static final int MAX_GATHER = 16;
+
+    private final TcpServer owner;
+    private final ServReactor reactor;
+    private final SocketChannel ch;
+    private final SelectionKey key;
+    private final String name;
+
+    /**
+     * 读缓冲, 从BufferPool租用, 无未处理数据时归还.
+     */
+    private ByteBuffer readBuffer = null;
+    private final byte[] prelude = new byte[PacketCodec.PRELUDE_LENGTH];
+    /**
+     * 包头已解码, 数据块读取中.
+     */
+    private Packet reading = null;
+    private int chunkFilled = 0;
+
+    /**
+     * 接收队列, 待处理线程处理的数据包.
+     */
+    private final ArrayDeque<Packet> inbound = new ArrayDeque<Packet>();
+    private long inboundBytes = 0;
+    /**
+     * 发送队列, 元素为ByteBuffer, FileRegion或其前一ByteBuffer写完后待归还的池化数组.
+     */
+    private final ArrayDeque<Object> writeQueue = new ArrayDeque<Object>();
+    private long queuedBytes = 0;
+    private int queuedRegions = 0;
+    /**
+     * 处理任务已提交或执行中.
+     */
+    private boolean busy = false;
+    /**
+     * 处理器因发送队列达到高水位而暂停发送, 发送队列写空后由事件循环请求处理线程再次索取.
+     */
+    private boolean pumpPending = false;
+    private boolean pumpRequested = false;
+    /**
+     * 事件循环发现的读写失败, 由处理线程通知处理器后关闭连接; 此后事件循环不再读写该连接.
+     */
+    private Throwable failure = null;
+    private boolean aborting = false;
+    /**
+     * 处理线程已结束处理器, 由事件循环立即关闭连接.
+     */
+    private boolean closeNow = false;
+
+    private ServHandler handler = null;
+    /**
+     * 有进行中的处理器, 事件循环据此区分处理超时和空闲超时.
+     */
+    private volatile boolean active = false;
+    /**
+     * 已结束但发送队列中仍有其文件数据的处理器, 待文件数据发送完再关闭.
+     */
+    private final List<ServHandler> deferredClose = new ArrayList<ServHandler>();
+    /**
+     * 发送队列写完后关闭.
+     */
+    private volatile boolean closing = false;
+    private volatile boolean closed = false;
+    private volatile long lastActive = System.currentTimeMillis();
+
+    /**
+     * 待发送的文件区间.
+     */
+    private static class FileRegion {
+        final FileChannel fc;
+        long position;
+        long remaining;
+
+        FileRegion(FileChannel fc, long position, long remaining) {
+            this.fc = fc;
+            this.position = position;
+            this.remaining = remaining;
+        }
+    }
+
+    public ServConnection(TcpServer owner, ServReactor reactor, SocketChannel ch, Selector selector) throws IOException {
+        this.owner = owner;
+        this.reactor = reactor;
+        this.ch = ch;
+        this.name = String.valueOf(ch.socket());
+        this.key = ch.register(selector, SelectionKey.OP_READ, this);
+        logger.info("connection {} accepted", name);
+    }
+
+    @Override
+    public String toString() {
+        return name;
+    }
+
+    @Override
+    public synchronized void send(Packet send) throws Throwable {
+        if (send == null) {
+            return;
+        }
+        if (closed) {
+            throw new IOException("connection " + name + " closed.");
+        }
+        ByteBuffer hb = ByteBuffer.wrap(PacketCodec.encodeHead(send));
+        writeQueue.add(hb);
+        queuedBytes += hb.remaining();
+        if (send.chunkBytes != null && send.getChunkLength() > 0) {
+            writeQueue.add(ByteBuffer.wrap(send.chunkBytes, 0, send.getChunkLength()));
+            queuedBytes += send.getChunkLength();
+        }
+    }
+
+    @Override
+    public synchronized void sendPooled(Packet send) throws Throwable {
+        try {
+            send(send);
+        } catch (IOException e) {
+            BufferPool.get().release(send.chunkBytes);
+            send.chunkBytes = null;
+            throw e;
+        }
+        if (send != null && send.chunkBytes != null) {
+            writeQueue.add(send.chunkBytes);
+            send.chunkBytes = null;
+        }
+    }
+
+    @Override
+    public synchronized void sendFile(Packet send, FileChannel fc, long position, int count) throws Throwable {
+        if (closed) {
+            throw new IOException("connection " + name + " closed.");
+        }
+        ByteBuffer hb = ByteBuffer.wrap(PacketCodec.encodeHead(send, count));
+        writeQueue.add(hb);
+        queuedBytes += hb.remaining();
+        if (count > 0) {
+            writeQueue.add(new FileRegion(fc, position, count));
+            queuedBytes += count;
+            queuedRegions++;
+        }
+    }
+
+    /**
+     * 处理就绪事件, 在事件循环线程中调用.
+     */
+    public void onReady(int readyOps) {
+        synchronized (this) {
+            if (aborting) {
+                return;
+            }
+        }
+        try {
+            if ((readyOps & SelectionKey.OP_READ) != 0) {
+                onReadable();
+            }
+            if (!closed && (readyOps & SelectionKey.OP_WRITE) != 0) {
+                lastActive = System.currentTimeMillis();
+            }
+            if (!closed) {
+                drain();
+            }
+        } catch (Throwable th) {
+            abort(th);
+        }
+    }
+
+    /**
+     * 处理线程有新的应答或状态变化后, 在事件循环线程中调用.
+     */
+    public void onWakeup() {
+        if (closed) {
+            return;
+        }
+        boolean now;
+        synchronized (this) {
+            now = closeNow;
+            if (!now && aborting) {
+                return;
+            }
+        }
+        if (now) {
+            close();
+            return;
+        }
+        try {
+            drain();
+        } catch (Throwable th) {
+            abort(th);
+        }
+    }
+
+    /**
+     * 读超时检查, 处理中超时视为处理失败, 指令间超时为空闲超时; 处理线程执行中(如计算摘要)不计超时.
+     */
+    public void checkTimeout(long now) {
+        if (closed || now - lastActive < owner.timeout * 1000L) {
+            return;
+        }
+        synchronized (this) {
+            if (busy) {
+                return;
+            }
+        }
+        if (active) {
+            abort(new SocketTimeoutException("read timeout " + owner.timeout + " seconds."));
+        } else {
+            logger.info("connection {} idle timeout, {} seconds.", name, owner.timeout);
+            close();
+        }
+    }
+
+    private void onReadable() throws Throwable {
+        try {
+            for (int i = 0; i < MAX_READS_PER_EVENT && !closing && !closed && !inboundFull(); i++) {
+                int n;
+                if (reading != null && reading.chunkBytes != null && readBuffer == null) {
+                    /**
+                     * 大数据块直接读入目标数组, 不经读缓冲拷贝.
+                     */
+                    n = ch.read(ByteBuffer.wrap(reading.chunkBytes, chunkFilled, reading.chunkLength - chunkFilled));
+                    if (n > 0) {
+                        chunkFilled += n;
+                    }
+                } else {
+                    if (readBuffer == null) {
+                        readBuffer = reactor.leaseBuffer();
+                    }
+                    n = ch.read(readBuffer);
+                }
+                if (n < 0) {
+                    onEof();
+                    return;
+                } else if (n == 0) {
+                    return;
+                }
+                lastActive = System.currentTimeMillis();
+                parse();
+            }
+        } finally {
+            releaseBuffer(false);
+        }
+    }
+
+    private synchronized boolean inboundFull() {
+        return inbound.size() >= MAX_INBOUND || inboundBytes >= READ_HIGH_WATER;
+    }
+
+    private void releaseBuffer(boolean force) {
+        if (readBuffer != null && (force || readBuffer.position() == 0)) {
+            reactor.releaseBuffer(readBuffer);
+            readBuffer = null;
+        }
+    }
+
+    private void parse() throws Throwable {
+        if (readBuffer == null) {
+            if (reading != null && chunkFilled == reading.chunkLength) {
+                Packet p = reading;
+                reading = null;
+                deliver(p);
+            }
+            return;
+        }
+        readBuffer.flip();
+        try {
+            while (!closing && !closed) {
+                if (reading == null) {
+                    if (readBuffer.remaining() < PacketCodec.PRELUDE_LENGTH) {
+                        break;
+                    }
+                    int pos = readBuffer.position();
+                    readBuffer.get(prelude);
+                    int hsz = PacketCodec.headLength(prelude);
+                    int csz = PacketCodec.chunkLength(prelude);
+                    if (readBuffer.remaining() < hsz) {
+                        readBuffer.position(pos);
+                        break;
+                    }
+                    byte[] hb = new byte[hsz];
+                    readBuffer.get(hb);
+                    reading = PacketCodec.decodeHead(hb, 0, hsz, csz, false);
+                    chunkFilled = 0;
+                    if (csz > 0) {
+                        reading.chunkBytes = BufferPool.get().lease(csz);
+                    }
+                }
+                if (chunkFilled < reading.chunkLength) {
+                    int k = Math.min(readBuffer.remaining(), reading.chunkLength - chunkFilled);
+                    readBuffer.get(reading.chunkBytes, chunkFilled, k);
+                    chunkFilled += k;
+                    if (chunkFilled < reading.chunkLength) {
+                        break;
+                    }
+                }
+                Packet p = reading;
+                reading = null;
+                deliver(p);
+            }
+        } finally {
+            readBuffer.compact();
+        }
+    }
+
+    /**
+     * 数据包放入接收队列, 无处理任务时提交.
+     */
+    private void deliver(Packet recv) {
+        logger.debug("Recv [{}], {}", recv, name);
+        synchronized (this) {
+            inbound.add(recv);
+            inboundBytes += recv.chunkLength;
+            schedule();
+        }
+    }
+
+    /**
+     * 提交处理任务, 调用方持有连接锁.
+     */
+    private void schedule() {
+        if (busy) {
+            return;
+        }
+        busy = true;
+        try {
+            reactor.execute(this);
+        } catch (RejectedExecutionException e) {
+            busy = false;
+            closing = true;
+            closeNow = true;
+            reactor.wakeup(this);
+        }
+    }
+
+    /**
+     * 处理任务, 在处理线程中依次处理接收队列中的数据包并向处理器索取待发送数据, 每步之后唤醒事件循环写出应答.
+     */
+    @Override
+    public void run() {
+        boolean closedBefore;
+        for (; ; ) {
+            Packet recv;
+            Throwable th;
+            boolean pump;
+            synchronized (this) {
+                th = failure;
+                failure = null;
+                recv = th == null && !closed && !closeNow ? inbound.poll() : null;
+                if (recv != null) {
+                    inboundBytes -= recv.chunkLength;
+                }
+                pump = pumpRequested;
+                pumpRequested = false;
+                if (closed || (th == null && (closeNow || (recv == null && !pump)))) {
+                    busy = false;
+                    closedBefore = closed;
+                    break;
+                }
+            }
+            if (th != null) {
+                failed(th);
+            } else {
+                try {
+                    if (recv != null) {
+                        handle(recv);
+                    }
+                    pump();
+                } catch (Throwable e) {
+                    failed(e);
+                }
+            }
+            lastActive = System.currentTimeMillis();
+            reactor.wakeup(this);
+        }
+        if (closedBefore) {
+            closeHandler();
+        }
+        reactor.wakeup(this);
+    }
+
+    /**
+     * 分派数据包, 处理完后归还数据块缓冲.
+     */
+    private void handle(Packet recv) throws Throwable {
+        try {
+            if (handler == null) {
+                if (Command.BYE.equals(recv.command)) {
+                    logger.debug("connection {} session end", name);
+                    closing = true;
+                    return;
+                }
+                handler = ServHandler.create(owner, this, recv);
+                active = true;
+            }
+            try {
+                handler.onPacket(recv);
+            } catch (Throwable th) {
+                handler.failed(th);
+            }
+        } finally {
+            BufferPool.get().release(recv.chunkBytes);
+            recv.chunkBytes = null;
+        }
+        checkOver();
+    }
+
+    private synchronized boolean writable() {
+        return queuedBytes < WRITE_HIGH_WATER;
+    }
+
+    /**
+     * 向处理器索取待发送数据直到发送队列达到高水位.
+     */
+    private void pump() {
+        try {
+            while (handler != null && !handler.isOver()) {
+                if (!writable()) {
+                    synchronized (this) {
+                        pumpPending = true;
+                    }
+                    break;
+                }
+                if (!handler.onWritable()) {
+                    break;
+                }
+            }
+        } catch (Throwable th) {
+            handler.failed(th);
+        }
+        checkOver();
+    }
+
+    private void checkOver() {
+        if (handler == null || !handler.isOver()) {
+            return;
+        }
+        boolean deferred;
+        synchronized (this) {
+            deferred = queuedRegions > 0;
+            if (deferred) {
+                deferredClose.add(handler);
+            }
+        }
+        if (!deferred) {
+            handler.close();
+        }
+        if (handler.isBroken()) {
+            logger.info("connection {} closed for {}", name, handler.getFilename());
+            closing = true;
+        }
+        handler = null;
+        active = false;
+    }
+
+    /**
+     * 在处理线程中结束处理器, 连接随后由事件循环关闭.
+     */
+    private void failed(Throwable th) {
+        if (handler != null) {
+            handler.failed(th);
+            handler.close();
+            logger.info("connection {} closed for {}", name, handler.getFilename());
+            handler = null;
+            active = false;
+        } else if (owner.isDebug()) {
+            logger.error("connection filter failed, {}", th);
+        } else {
+            logger.error("connection filter failed, {}", th.getMessage());
+        }
+        closing = true;
+        synchronized (this) {
+            closeNow = true;
+        }
+    }
+
+    /**
+     * 事件循环中的读写失败: 有处理器时交给处理线程通知处理器, 否则直接关闭.
+     */
+    private void abort(Throwable th) {
+        synchronized (this) {
+            if (closed) {
+                return;
+            }
+            closing = true;
+            if (busy || active) {
+                failure = th;
+                aborting = true;
+                if (key.isValid()) {
+                    key.interestOps(0);
+                }
+                schedule();
+                return;
+            }
+        }
+        if (owner.isDebug()) {
+            logger.error("connection filter failed, {}", th);
+        } else {
+            logger.error("connection filter failed, {}", th.getMessage());
+        }
+        close();
+    }
+
+    private void drain() throws IOException {
+        flush();
+        synchronized (this) {
+            if (closed) {
+                return;
+            }
+            if (pumpPending && writeQueue.isEmpty()) {
+                pumpPending = false;
+                pumpRequested = true;
+                schedule();
+            }
+            if (closing && writeQueue.isEmpty() && !busy && !active) {
+                closeNow = true;
+            }
+            if (!closeNow) {
+                updateInterest();
+                return;
+            }
+        }
+        close();
+    }
+
+    /**
+     * 按发送队列和接收队列状态设置关注的事件, 调用方持有连接锁.
+     */
+    private void updateInterest() {
+        if (closed || !key.isValid()) {
+            return;
+        }
+        int ops = 0;
+        if (!closing && !inboundFull()) {
+            ops |= SelectionKey.OP_READ;
+        }
+        if (!writeQueue.isEmpty()) {
+            ops |= SelectionKey.OP_WRITE;
+        }
+        key.interestOps(ops);
+    }
+
+    private synchronized void flush() throws IOException {
+        ByteBuffer[] bufs = new ByteBuffer[MAX_GATHER];
+        while (!writeQueue.isEmpty()) {
+            if (writeQueue.peek() instanceof byte[]) {
+                BufferPool.get().release((byte[]) writeQueue.poll());
+                continue;
+            }
+            if (writeQueue.peek() instanceof FileRegion) {
+                if (!transfer((FileRegion) writeQueue.peek())) {
+                    break;
+                }
+                writeQueue.poll();
+                if (--queuedRegions == 0) {
+                    closeDeferred();
+                }
+                continue;
+            }
+
+            int cnt = 0;
+            Iterator<Object> itr = writeQueue.iterator();
+            while (cnt < bufs.length && itr.hasNext()) {
+                Object o = itr.next();
+                if (!(o instanceof ByteBuffer)) {
+                    break;
+                }
+                bufs[cnt++] = (ByteBuffer) o;
+            }
+            long n = ch.write(bufs, 0, cnt);
+            if (n > 0) {
+                queuedBytes -= n;
+                lastActive = System.currentTimeMillis();
+            }
+            while (!writeQueue.isEmpty() && writeQueue.peek() instanceof ByteBuffer && !((ByteBuffer) writeQueue.peek()).hasRemaining()) {
+                writeQueue.poll();
+            }
+            if (bufs[cnt - 1].hasRemaining()) {
+                break;
+            }
+        }
+    }
+
+    /**
+     * sendfile发送文件区间.
+     *
+     * @return 区间是否发送完毕.
+     */
+    private boolean transfer(FileRegion r) throws IOException {
+        long n = r.fc.transferTo(r.position, r.remaining, ch);
+        if (n > 0) {
+            r.position += n;
+            r.remaining -= n;
+            queuedBytes -= n;
+            lastActive = System.currentTimeMillis();
+        } else if (r.position >= r.fc.size()) {
+            throw new EOFException("file truncated at " + r.position + ", expect " + (r.position + r.remaining));
+        }
+        return r.remaining == 0;
+    }
+
+    private synchronized void closeDeferred() {
+        for (ServHandler h : deferredClose) {
+            h.close();
+        }
+        deferredClose.clear();
+    }
+
+    private void onEof() {
+        boolean buffered = readBuffer != null && readBuffer.position() > 0;
+        if (active || reading != null || buffered) {
+            abort(active && reading == null && !buffered ? new EOFException("connection closed by peer.")
+                    : new RuntimeException("read Packet exception: connection closed by peer in the middle of a frame."));
+            return;
+        }
+        logger.debug("connection {} closed by peer", name);
+        synchronized (this) {
+            closing = true;
+            if (busy) {
+                updateInterest();
+                return;
+            }
+        }
+        close();
+    }
+
+    /**
+     * 关闭连接关闭时遗留的处理器.
+     */
+    private void closeHandler() {
+        if (handler != null) {
+            handler.close();
+            handler = null;
+            active = false;
+        }
+    }
+
+    /**
+     * 在事件循环线程中关闭连接; 处理任务执行中时处理器由处理线程随后关闭.
+     */
+    public void close() {
+        boolean running;
+        synchronized (this) {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            running = busy;
+            for (Packet p : inbound) {
+                BufferPool.get().release(p.chunkBytes);
+                p.chunkBytes = null;
+            }
+            inbound.clear();
+            inboundBytes = 0;
+            closeDeferred();
+            for (Object o : writeQueue) {
+                if (o instanceof byte[]) {
+                    BufferPool.get().release((byte[]) o);
+                }
+            }
+            writeQueue.clear();
+        }
+        if (!running) {
+            closeHandler();
+        }
+        releaseBuffer(true);
+        if (reading != null) {
+            BufferPool.get().release(reading.chunkBytes);
+            reading = null;
+        }
+        key.cancel();
+        try {
+            ch.close();
+        } catch (IOException e) {
+        }
+        logger.info("connection {} closed", name);
+    }
+}
@@ -0,0 +1,143 @@
+package com.ping.file.serv;
+
+import com.ping.file.protocol.Command;
+import com.ping.file.protocol.Packet;
+import com.ping.file.util.BufferPool;
+import com.ping.file.util.ChksumCache;
+import com.ping.file.util.DeltaEncoder;
+import com.ping.file.util.DeltaSignature;
+import com.ping.file.util.Utils;
+import com.ping.sync.ChangeManager;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+
+/**
+ * 差量下载处理器.
+ * <p>
+ * DWDELTA携带客户端本地文件的块签名, 应答后按签名编码文件并连续推送DWDATA指令数据块, 不等待应答;
+ * 不带数据块的DWDATA结束传输. 文件无变化时应答filepos为Long.MAX_VALUE.
+ *
+ * @author lawnstein.chan
+ * @version $Revision:$
+ */
+class ServDwdeltaHandler extends ServHandler {
+    private static final Logger logger = LoggerFactory.getLogger(TcpServer.class);
+
+    private String filePath = null;
+    private String fileChksum = null;
+    private boolean confirmed = false;
+    private boolean streaming = false;
+    private DeltaEncoder encoder = null;
+
+    public ServDwdeltaHandler(TcpServer owner, ServSession session) {
+        super(owner, session, "dwdelta");
+    }
+
+    @Override
+    public void close() {
+        if (encoder != null) {
+            encoder.close();
+            encoder = null;
+        }
+        super.close();
+    }
+
+    private void confirmDelta() {
+        filename = recv.filename;
+        filePath = ChangeManager.getBaseDir() + recv.filename;
+
+        send = recv.clone();
+        send.filename = null;
+        if (!Utils.fileExists(filePath)) {
+            send.cmdResult = false;
+            send.cmdMesg = "down file " + filename + " not exists.";
+            logger.error("{}, filePath {}", send.cmdMesg, filePath);
+            return;
+        }
+
+        int stat = -1;
+        if (owner.isSync()) {
+            Object[] chgs = ChangeManager.getServChangedWithDwn(filename, recv.chksum);
+            stat = (int) chgs[0];
+            fileChksum = (String) chgs[1];
+        } else {
+            fileChksum = ChksumCache.chksumAs(filePath, recv.chksum);
+            stat = fileChksum.equals(recv.chksum) ? 1 : 3;
+        }
+        if (owner.isSync() && (stat == 1 || stat == 3)) {
+            ChangeManager.writeServChangelog(filename, fileChksum);
+        }
+        long fileSize = Utils.filesize(filePath);
+        if ((stat == 0 || stat == 1) && recv.filesize != null && recv.filesize == fileSize) {
+            send.filepos = Long.MAX_VALUE;
+            send.cmdMesg = "down file " + filename + " not changed, ignore.";
+            logger.debug(send.cmdMesg);
+            return;
+        }
+
+        try {
+            int blockSize = recv.chunkSize == null ? 0 : recv.chunkSize.intValue();
+            DeltaSignature sig = DeltaSignature.read(recv.chunkBytes, recv.chunkBytes == null ? 0 : recv.getChunkLength(), blockSize);
+            encoder = new DeltaEncoder(filePath, sig);
+        } catch (IOException | RuntimeException e) {
+            send.cmdResult = false;
+            send.cmdMesg = "down file " + filename + " delta failed, " + e.getMessage();
+            logger.error(send.cmdMesg);
+            return;
+        }
+        send.filesize = fileSize;
+        send.chksum = fileChksum;
+        streaming = true;
+    }
+
+    @Override
+    public void onPacket(Packet recv) throws Throwable {
+        this.recv = recv;
+        if (confirmed) {
+            logger.error("dwdelta {} stopped by remote, {}", filename, recv.cmdMesg);
+            broken = true;
+            return;
+        }
+        confirmed = true;
+        confirmDelta();
+        sendPacket(send);
+        if (!streaming) {
+            handleOver = true;
+        }
+    }
+
+    /**
+     * 每次发送一个指令数据包, 编码结束时发送不带数据块的DWDATA.
+     */
+    @Override
+    public boolean onWritable() throws Throwable {
+        if (!streaming || isOver()) {
+            return false;
+        }
+        Packet p = new Packet();
+        p.command = Command.DWDATA;
+        p.cmdResult = true;
+        byte[] out = BufferPool.get().lease(DeltaEncoder.CHUNK_SIZE);
+        int n;
+        try {
+            n = encoder.next(out, DeltaEncoder.CHUNK_SIZE);
+        } catch (IOException e) {
+            BufferPool.get().release(out);
+            throw e;
+        }
+        if (n > 0) {
+            p.chunkBytes = out;
+            p.chunkLength = n;
+            sendPooled(p);
+            return true;
+        }
+        BufferPool.get().release(out);
+        handleOver = true;
+        sendPacket(p);
+        logger.info("down file {} delta over, literal {} byte(s), copied {} byte(s).", filename, encoder.getLiteralBytes(), encoder.getCopyBytes());
+        return true;
+    }
+
+}
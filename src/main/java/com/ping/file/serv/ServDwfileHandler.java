@@ -11,15 +11,18 @@ package com.ping.file.serv;
 
 import com.ping.file.protocol.Command;
 import com.ping.file.protocol.Packet;
-import com.ping.file.util.ClientSocket;
+import com.ping.file.util.BufferPool;
+import com.ping.file.util.ChksumCache;
+import com.ping.file.util.ChunkCompressor;
 import com.ping.file.util.Utils;
 import com.ping.sync.ChangeManager;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.io.EOFException;
 import java.io.IOException;
 import java.io.RandomAccessFile;
-import java.net.Socket;
+import java.nio.ByteBuffer;
 
 /**
  * 下载处理器.
@@ -27,16 +30,12 @@ import java.net.Socket;
  * @author lawnstein.chan
  * @version $Revision:$
  */
-class ServDwfileHandler implements Runnable {
+class ServDwfileHandler extends ServHandler {
     private static final Logger logger = LoggerFactory.getLogger(TcpServer.class);
 
-    private TcpServer owner;
-
-    private Socket s;
     private Long chunkSize;
     // private String origName = null;
     // private String origPath = null;
-    private String filename = null;
     private String filePath = null;
     // private boolean fileAppend = false;
     private String fileChksum = null;
@@ -44,29 +43,41 @@ class ServDwfileHandler implements Runnable {
     private long fileSize = 0l;
     private RandomAccessFile fileRaf = null;
 
-    private Packet recv = null;
-    private Packet send = new Packet();
     private int stat = 2;
     // private boolean result = false;
-    private boolean handleOver = false;
+    private boolean confirmed = false;
+    /**
+     * 流式下载窗口大小, 0为逐块请求.
+     */
+    private long window = 0l;
+    private boolean streaming = false;
+    private long ackedPos = 0l;
+    /**
+     * 当前数据块在文件中的位置和长度.
+     */
+    private long chunkPos = 0l;
+    private int chunkLength = 0;
+    /**
+     * 协商压缩后的压缩上下文, 为null表示不压缩.
+     */
+    private ChunkCompressor compressor = null;
 
-    public ServDwfileHandler(ServFilter filter) {
-        this.owner = filter.owner;
-        this.s = filter.s;
-        this.recv = filter.recv;
+    public ServDwfileHandler(TcpServer owner, ServSession session) {
+        super(owner, session, "dwfile");
     }
 
-    private void close() {
-        logger.info("connection {} closed for {}", s, filename);
-        if (s != null) {
-            ClientSocket.close(s);
-        }
+    @Override
+    public void close() {
         if (fileRaf != null) {
             try {
                 fileRaf.close();
             } catch (IOException e) {
             }
         }
+        if (compressor != null) {
+            compressor.end();
+        }
+        super.close();
     }
 
     private void confirmChunk() {
@@ -79,11 +90,8 @@ class ServDwfileHandler implements Runnable {
         fileChksum = recv.chksum;
         fileSize = recv.filesize;
         filePos = recv.filepos;
-        if (recv.chunkSize != null) {
-            this.chunkSize = recv.chunkSize;
-        } else {
-            this.chunkSize = Utils.DEFAULT_CHUNK_SIZE;
-        }
+        this.chunkSize = Utils.DEFAULT_CHUNK_SIZE;
+        updateChunkSize();
 
         send = recv.clone();
         send.filename = null;
@@ -106,7 +114,7 @@ class ServDwfileHandler implements Runnable {
             stat = (int) chgs[0];
             fileChksum = (String) chgs[1];
         } else {
-            String fcs = Utils.chksum(filePath);
+            String fcs = ChksumCache.chksumAs(filePath, fileChksum);
             stat = fcs.equals(fileChksum) ? 1 : 3;
             fileChksum = fcs;
         }
@@ -142,6 +150,14 @@ class ServDwfileHandler implements Runnable {
             send.filepos = filePos;
             send.filesize = fileSize;
             send.chksum = fileChksum;
+            if (recv.window != null && recv.window > 0) {
+                window = recv.window > Utils.MAX_WINDOW_SIZE ? Utils.MAX_WINDOW_SIZE : recv.window;
+                send.window = window;
+            }
+            if (ChunkCompressor.DEFLATE.equals(recv.compress) && owner.isCompress() && ChunkCompressor.isCompressible(filePath)) {
+                compressor = new ChunkCompressor();
+                send.compress = ChunkCompressor.DEFLATE;
+            }
         } catch (IOException e) {
             send.cmdResult = false;
             send.cmdMesg = "down file " + filename + ", RandomAccess failed, " + e.getMessage();
@@ -152,76 +168,142 @@ class ServDwfileHandler implements Runnable {
         logger.debug("file {} filePos expect {}, real {}", filename, recv.filepos, send.filepos);
     }
 
+    /**
+     * 客户端可在DWCHUNK和每个DWDATA中调整后续数据块大小.
+     */
+    private void updateChunkSize() {
+        if (recv.chunkSize != null && recv.chunkSize > 0) {
+            this.chunkSize = recv.chunkSize > Utils.MAX_CHUNK_SIZE ? Utils.MAX_CHUNK_SIZE : recv.chunkSize;
+        }
+    }
+
     private void handleData() {
         if (!Command.DWDATA.equals(recv.command)) {
             return;
         }
+        updateChunkSize();
 
         send = recv.clone();
         send.filename = null;
+        send.chunkBytes = null;
 
         int cursize = (int) ((fileSize - filePos) > chunkSize ? chunkSize : (fileSize - filePos));
         if (cursize > 0) {
-            send.chunkBytes = new byte[cursize];
-            try {
-                fileRaf.read(send.chunkBytes);
-                send.filepos = filePos;
-            } catch (IOException e) {
-                send.cmdResult = false;
-                send.cmdMesg = "down file " + filename + ", read failed, " + e.getMessage();
-                logger.error(send.cmdMesg);
-            }
+            send.filepos = filePos;
+            chunkPos = filePos;
+            chunkLength = cursize;
             filePos += cursize;
         } else {
             send.filepos = Long.MAX_VALUE;
+            chunkLength = 0;
             handleOver = true;
         }
     }
 
-    @Override
-    public void run() {
-        try {
-            for (; ; ) {
-                confirmChunk();
-                ClientSocket.sendPacket(s, send);
-                logger.debug("Sended [{}], {}.", send, s);
-                if (!send.cmdResult) {
-                    break;
-                }
-
-                recv = ClientSocket.recvPacket(s, owner.timeout);
-                logger.debug("Recv [{}], {}", recv, s);
-
-                while (recv.cmdResult && !handleOver) {
-                    handleData();
-                    ClientSocket.sendPacket(s, send);
-                    logger.debug("Sended [{}], {}.", send, s);
-
-                    if (handleOver) {
-                        break;
-                    }
+    /**
+     * 发送handleData准备的数据包, 数据块由文件直接发送, 压缩时读入缓冲压缩后发送.
+     */
+    private void sendData() throws Throwable {
+        if (chunkLength > 0 && compressor != null && compressor.isEnabled()) {
+            sendCompressed();
+        } else if (chunkLength > 0) {
+            sendFile(send, fileRaf.getChannel(), chunkPos, chunkLength);
+        } else {
+            sendPacket(send);
+        }
+    }
 
-                    recv = ClientSocket.recvPacket(s, owner.timeout);
-                    logger.debug("Recv [{}], {}", recv, s);
+    /**
+     * 压缩无收益时发送原始数据块, 客户端据此重置解压上下文.
+     */
+    private void sendCompressed() throws Throwable {
+        byte[] raw = BufferPool.get().lease(chunkLength);
+        byte[] out = null;
+        try {
+            ByteBuffer bb = ByteBuffer.wrap(raw, 0, chunkLength);
+            while (bb.hasRemaining()) {
+                if (fileRaf.getChannel().read(bb, chunkPos + bb.position()) < 0) {
+                    throw new EOFException("file truncated at " + (chunkPos + bb.position()) + ", expect " + (chunkPos + chunkLength));
                 }
-
-                break;
             }
-
-            logger.debug("dwfile {} over", filename);
-        } catch (Throwable th) {
-            if (owner.isDebug()) {
-                logger.error("dwfile {} failed, {}", filename, th);
+            out = BufferPool.get().lease(chunkLength);
+            int n = compressor.compress(raw, chunkLength, out);
+            if (n > 0) {
+                send.chunkBytes = out;
+                send.chunkLength = n;
+                send.rawLength = chunkLength;
+                out = null;
             } else {
-                logger.error("dwfile {} failed, {}", filename, th.getMessage());
+                send.chunkBytes = raw;
+                send.chunkLength = chunkLength;
+                raw = null;
             }
+            sendPooled(send);
         } finally {
-            try {
-                Thread.sleep(1000);
-            } catch (InterruptedException e) {
+            BufferPool.get().release(raw);
+            BufferPool.get().release(out);
+        }
+    }
+
+    @Override
+    public void onPacket(Packet recv) throws Throwable {
+        this.recv = recv;
+        if (!confirmed) {
+            confirmed = true;
+            confirmChunk();
+            sendPacket(send);
+            if (!send.cmdResult) {
+                handleOver = true;
             }
-            close();
+            return;
+        }
+
+        if (window > 0) {
+            onStreamAck();
+            return;
+        }
+
+        if (!recv.cmdResult) {
+            handleOver = true;
+            return;
+        }
+        handleData();
+        sendData();
+    }
+
+    /**
+     * 流式下载: 收到首个DWDATA后连续推送数据块, 在途数据不超过window, 客户端按filepos累计应答.
+     */
+    private void onStreamAck() throws Throwable {
+        if (!recv.cmdResult || !Command.DWDATA.equals(recv.command)) {
+            logger.error("dwfile {} stream stopped by remote, {}", filename, recv.cmdMesg);
+            broken = true;
+            return;
+        }
+        if (!streaming) {
+            streaming = true;
+            ackedPos = filePos;
+        } else if (recv.filepos != null) {
+            ackedPos = recv.filepos;
+        }
+        updateChunkSize();
+        if (ackedPos >= fileSize) {
+            handleData();
+            sendData();
+        }
+    }
+
+    @Override
+    public boolean onWritable() throws Throwable {
+        if (!streaming || isOver() || filePos >= fileSize || filePos - ackedPos >= window) {
+            return false;
+        }
+        handleData();
+        sendData();
+        if (!send.cmdResult) {
+            broken = true;
         }
+        return true;
     }
 
-}
\ No newline at end of file
+}
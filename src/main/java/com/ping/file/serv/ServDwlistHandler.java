@@ -10,7 +10,6 @@
 package com.ping.file.serv;
 
 import java.io.UnsupportedEncodingException;
-import java.net.Socket;
 import java.util.ArrayList;
 import java.util.List;
 
@@ -19,7 +18,7 @@ import org.slf4j.LoggerFactory;
 
 import com.ping.file.protocol.Command;
 import com.ping.file.protocol.Packet;
-import com.ping.file.util.ClientSocket;
+import com.ping.file.util.BufferPool;
 import com.ping.file.util.Utils;
 import com.ping.sync.ChangeManager;
 
@@ -29,35 +28,20 @@ import com.ping.sync.ChangeManager;
  * @author lawnstein.chan
  * @version $Revision:$
  */
-class ServDwlistHandler implements Runnable {
+class ServDwlistHandler extends ServHandler {
 	private static final Logger logger = LoggerFactory.getLogger(TcpServer.class);
 
-	private TcpServer owner;
-
-	private Socket s;
 	private Long chunkSize;
-	private String filename = null;
 	private String filePath = null;
 	private byte[] fileBytes = null;
 	private long fileSize = 0l;
 	private long fileCount = 0l;
 	private long filePos = 0l;
 //	private long fileChunkIndex = 0l;
-	private Packet recv = null;
-	private Packet send = new Packet();
-	private boolean handleOver = false;
-
-	public ServDwlistHandler(ServFilter filter) {
-		this.owner = filter.owner;
-		this.s = filter.s;
-		this.recv = filter.recv;
-	}
+	private boolean confirmed = false;
 
-	private void close() {
-		logger.info("connection {} closed for {}", s, filename);
-		if (s != null) {
-			ClientSocket.close(s);
-		}
+	public ServDwlistHandler(TcpServer owner, ServSession session) {
+		super(owner, session, "dwlist");
 	}
 
 	private void confirmList() {
@@ -137,7 +121,8 @@ class ServDwlistHandler implements Runnable {
 			cursize = 0;
 		}
 		if (cursize > 0) {
-			send.chunkBytes = new byte[cursize];
+			send.chunkBytes = BufferPool.get().lease(cursize);
+			send.chunkLength = cursize;
 //			send.filepos = filePos;
 			System.arraycopy(fileBytes, (int) filePos, send.chunkBytes, 0, cursize);
 
@@ -149,50 +134,27 @@ class ServDwlistHandler implements Runnable {
 	}
 
 	@Override
-	public void run() {
-		try {
-			for (;;) {
-				confirmList();
-				if (!send.cmdResult) {
-					handleData();
-				}
-				ClientSocket.sendPacket(s, send);
-				logger.debug("Sended [{}], {}.", send, s);
-				if (!send.cmdResult) {
-					break;
-				}
-
-				recv = ClientSocket.recvPacket(s, owner.timeout);
-				logger.debug("Recv [{}], {}", recv, s);
-				while (recv.cmdResult && !handleOver) {
-					handleData();
-					ClientSocket.sendPacket(s, send);
-					logger.debug("Sended [{}], {}.", send, s);
-
-					if (handleOver) {
-						break;
-					}
-
-					recv = ClientSocket.recvPacket(s, owner.timeout);
-					logger.debug("Recv [{}], {}", recv, s);
-				}
-				break;
+	public void onPacket(Packet recv) throws Throwable {
+		this.recv = recv;
+		if (!confirmed) {
+			confirmed = true;
+			confirmList();
+			if (!send.cmdResult) {
+				handleData();
 			}
-			
-			logger.debug("dwlist {} over.", filename);
-		} catch (Throwable th) {
-			if (owner.isDebug()) {
-				logger.error("dwlist {} failed, {}", filename, th);			
-			} else {
-				logger.error("dwlist {} failed, {}", filename, th.getMessage());
+			sendPooled(send);
+			if (!send.cmdResult) {
+				handleOver = true;
 			}
-		} finally {
-			try {
-				Thread.sleep(1000);
-			} catch (InterruptedException e) {
-			}
-			close();
+			return;
+		}
+
+		if (!recv.cmdResult) {
+			handleOver = true;
+			return;
 		}
+		handleData();
+		sendPooled(send);
 	}
 
-}
\ No newline at end of file
+}
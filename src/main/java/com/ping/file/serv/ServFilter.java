@@ -11,11 +11,18 @@ package com.ping.file.serv;
 
 import com.ping.file.protocol.Command;
 import com.ping.file.protocol.Packet;
+import com.ping.file.protocol.PacketCodec;
+import com.ping.file.util.BufferPool;
 import com.ping.file.util.ClientSocket;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.io.EOFException;
 import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SocketChannel;
 
 /**
  * 主过滤器/分流器.
@@ -23,7 +30,7 @@ import java.net.Socket;
  * @author lawnstein.chan
  * @version $Revision:$
  */
-class ServFilter implements Runnable {
+class ServFilter implements Runnable, ServSession {
     private static final Logger logger = LoggerFactory.getLogger(TcpServer.class);
 
     protected TcpServer owner;
@@ -31,6 +38,12 @@ class ServFilter implements Runnable {
     protected Socket s;
     protected Packet recv = null;
 
+    /**
+     * 处理器直接接收数据块时的复用读缓冲, 从BufferPool租用, 连接关闭时归还.
+     */
+    private static final int CHUNK_BUFFER_SIZE = 64 * 1024;
+    private byte[] chunkBuffer = null;
+
     public ServFilter(TcpServer owner, Socket socket) {
         this.owner = owner;
         this.s = socket;
@@ -38,6 +51,10 @@ class ServFilter implements Runnable {
     }
 
     private void close() {
+        if (chunkBuffer != null) {
+            BufferPool.get().release(chunkBuffer);
+            chunkBuffer = null;
+        }
         logger.info("connection {} closed", s);
         if (s != null) {
             ClientSocket.close(s);
@@ -45,34 +62,155 @@ class ServFilter implements Runnable {
     }
 
     @Override
-    public void run() {
+    public void send(Packet send) throws Throwable {
+        ClientSocket.sendPacket(s, send);
+    }
+
+    @Override
+    public void sendPooled(Packet send) throws Throwable {
         try {
-            recv = ClientSocket.recvPacket(s, owner.timeout);
-            logger.debug("Recv [{}], {}", recv, s);
-
-            Runnable r = null;
-            if (Command.UPLIST.equals(recv.command)) {
-				r = new ServUplistHandler(this);
-            } else if (Command.UPCHUNK.equals(recv.command)) {
-                r = new ServUpfileHandler(this);
-            } else if (Command.DWLIST.equals(recv.command)) {
-                r = new ServDwlistHandler(this);
-            } else if (Command.DWCHUNK.equals(recv.command)) {
-                r = new ServDwfileHandler(this);
-            } else {
-                throw new RuntimeException("unexpected first handle type.");
+            ClientSocket.sendPacket(s, send);
+        } finally {
+            BufferPool.get().release(send.chunkBytes);
+            send.chunkBytes = null;
+        }
+    }
+
+    @Override
+    public void sendFile(Packet send, FileChannel fc, long position, int count) throws Throwable {
+        byte[] hb = PacketCodec.encodeHead(send, count);
+        ClientSocket.write(s, hb, 0, hb.length);
+        SocketChannel ch = s.getChannel();
+        if (ch == null) {
+            /**
+             * 非通道套接字无法sendfile, 退化为读入堆内存后写出.
+             */
+            ByteBuffer bb = ByteBuffer.allocate(count);
+            while (bb.hasRemaining()) {
+                if (fc.read(bb, position + bb.position()) < 0) {
+                    throw new EOFException("file truncated at " + (position + bb.position()) + ", expect " + (position + count));
+                }
             }
+            ClientSocket.write(s, bb.array(), 0, count);
+            return;
+        }
+        long sent = 0;
+        while (sent < count) {
+            long n = fc.transferTo(position + sent, count - sent, ch);
+            if (n <= 0 && position + sent >= fc.size()) {
+                throw new EOFException("file truncated at " + (position + sent) + ", expect " + (position + count));
+            }
+            sent += n;
+        }
+    }
 
-            r.run();
+    @Override
+    public String toString() {
+        return String.valueOf(s);
+    }
+
+    /**
+     * 读取一个数据包, 处理器接收数据块时数据块经复用缓冲分段交给处理器, 不分配chunkBytes.
+     */
+    private Packet recvPacket(ServHandler h) throws Throwable {
+        byte[] hb = new byte[PacketCodec.PRELUDE_LENGTH];
+        ClientSocket.read(s, hb, 0, hb.length, owner.timeout);
+        int hsz = PacketCodec.headLength(hb);
+        int csz = PacketCodec.chunkLength(hb);
+        byte[] db = new byte[hsz];
+        try {
+            ClientSocket.read(s, db, 0, hsz, owner.timeout);
+            Packet p = PacketCodec.decodeHead(db, 0, hsz, csz, false);
+            if (csz > 0 && h.acceptChunk(p)) {
+                if (chunkBuffer == null) {
+                    chunkBuffer = BufferPool.get().lease(CHUNK_BUFFER_SIZE);
+                }
+                for (int e = 0; e < csz; ) {
+                    int r = ClientSocket.read(s, chunkBuffer, 0, Math.min(CHUNK_BUFFER_SIZE, csz - e), owner.timeout);
+                    h.writeChunk(ByteBuffer.wrap(chunkBuffer, 0, r));
+                    e += r;
+                }
+            } else if (csz > 0) {
+                p.chunkBytes = BufferPool.get().lease(csz);
+                try {
+                    ClientSocket.read(s, p.chunkBytes, 0, csz, owner.timeout);
+                } catch (Throwable e) {
+                    BufferPool.get().release(p.chunkBytes);
+                    throw e;
+                }
+            }
+            return p;
+        } catch (EOFException e) {
+            throw new RuntimeException("read Packet exception: connection closed by peer in the middle of a frame.");
+        }
+    }
+
+    /**
+     * 阻塞驱动处理器: 先发送处理器允许的全部数据, 再读取下一个数据包.
+     *
+     * @return 连接是否可继续.
+     */
+    private boolean handle(ServHandler h) {
+        try {
+            Packet p = recv;
+            for (; ; ) {
+                try {
+                    h.onPacket(p);
+                } finally {
+                    BufferPool.get().release(p.chunkBytes);
+                    p.chunkBytes = null;
+                }
+                while (!h.isOver() && h.onWritable()) {
+                }
+                if (h.isOver()) {
+                    break;
+                }
+                p = recvPacket(h);
+                logger.debug("Recv [{}], {}", p, s);
+            }
+        } catch (Throwable th) {
+            h.failed(th);
+        } finally {
+            h.close();
+        }
+        if (h.isBroken()) {
+            logger.info("connection {} closed for {}", s, h.getFilename());
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * 一个连接上依次处理多个指令, 直到收到BYE, 对端关闭或空闲超时.
+     */
+    @Override
+    public void run() {
+        try {
+            for (; ; ) {
+                recv = ClientSocket.recvPacket(s, owner.timeout);
+                logger.debug("Recv [{}], {}", recv, s);
+                if (Command.BYE.equals(recv.command)) {
+                    logger.debug("connection {} session end", s);
+                    break;
+                }
+
+                if (!handle(ServHandler.create(owner, this, recv))) {
+                    return;
+                }
+            }
+        } catch (EOFException e) {
+            logger.debug("connection {} closed by peer", s);
+        } catch (SocketTimeoutException e) {
+            logger.info("connection {} idle timeout, {}", s, e.getMessage());
         } catch (Throwable th) {
             if (owner.isDebug()) {
                 logger.error("connection filter failed, {}", th);
             } else {
                 logger.error("connection filter failed, {}", th.getMessage());
             }
-            close();
         } finally {
+            close();
         }
     }
 
-}
\ No newline at end of file
+}
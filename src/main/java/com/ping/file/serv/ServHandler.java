@@ -0,0 +1,137 @@
+package com.ping.file.serv;
+
+import com.ping.file.protocol.Command;
+import com.ping.file.protocol.Packet;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * 指令处理状态机.
+ * <p>
+ * 由连接驱动: 每收到一个数据包调用onPacket, 可继续发送时调用onWritable, 直到isOver.
+ * 阻塞引擎和NIO引擎共用同一套处理器.
+ *
+ * @author lawnstein.chan
+ * @version $Revision:$
+ */
+abstract class ServHandler {
+    private static final Logger logger = LoggerFactory.getLogger(TcpServer.class);
+
+    protected final TcpServer owner;
+    protected final ServSession session;
+    protected final String name;
+    protected String filename = null;
+    protected Packet recv = null;
+    protected Packet send = new Packet();
+    protected boolean handleOver = false;
+    /**
+     * 连接状态未知, 会话不可继续.
+     */
+    protected boolean broken = false;
+
+    protected ServHandler(TcpServer owner, ServSession session, String name) {
+        this.owner = owner;
+        this.session = session;
+        this.name = name;
+    }
+
+    /**
+     * 按指令创建处理器.
+     */
+    public static ServHandler create(TcpServer owner, ServSession session, Packet recv) {
+        if (Command.UPLIST.equals(recv.command)) {
+            return new ServUplistHandler(owner, session);
+        } else if (Command.UPCHUNK.equals(recv.command) || Command.UPRANGE.equals(recv.command)) {
+            return new ServUpfileHandler(owner, session);
+        } else if (Command.DWLIST.equals(recv.command)) {
+            return new ServDwlistHandler(owner, session);
+        } else if (Command.DWCHUNK.equals(recv.command)) {
+            return new ServDwfileHandler(owner, session);
+        } else if (Command.UPBUNDLE.equals(recv.command)) {
+            return new ServUpbundleHandler(owner, session);
+        } else if (Command.UPDELTA.equals(recv.command)) {
+            return new ServUpdeltaHandler(owner, session);
+        } else if (Command.DWDELTA.equals(recv.command)) {
+            return new ServDwdeltaHandler(owner, session);
+        } else if (Command.UPDEDUP.equals(recv.command)) {
+            return new ServUpdedupHandler(owner, session);
+        }
+        throw new RuntimeException("unexpected handle type " + recv.command + ".");
+    }
+
+    /**
+     * 处理收到的数据包, 首个数据包为指令本身.
+     */
+    public abstract void onPacket(Packet recv) throws Throwable;
+
+    /**
+     * 连接可继续发送时调用, 至多发送一个数据包.
+     *
+     * @return 是否发送了数据包.
+     */
+    public boolean onWritable() throws Throwable {
+        return false;
+    }
+
+    /**
+     * 是否由处理器直接接收该数据包的数据块: 为true时驱动不分配chunkBytes, 而是分段调用writeChunk, 之后再调用onPacket.
+     */
+    public boolean acceptChunk(Packet head) {
+        return false;
+    }
+
+    /**
+     * 写入数据块的一段, 调用方负责推进src之外的读位置, 写入失败也须消费完整个数据块.
+     */
+    public void writeChunk(ByteBuffer src) {
+    }
+
+    public boolean isOver() {
+        return handleOver || broken;
+    }
+
+    public boolean isBroken() {
+        return broken;
+    }
+
+    public String getFilename() {
+        return filename;
+    }
+
+    public void failed(Throwable th) {
+        if (owner.isDebug()) {
+            logger.error("{} {} failed, {}", name, filename, th);
+        } else {
+            logger.error("{} {} failed, {}", name, filename, th.getMessage());
+        }
+        broken = true;
+    }
+
+    /**
+     * 释放文件等资源, 不关闭连接.
+     */
+    public void close() {
+        logger.debug("{} {} over.", name, filename);
+    }
+
+    protected void sendPacket(Packet p) throws Throwable {
+        session.send(p);
+        logger.debug("Sended [{}], {}.", p, session);
+    }
+
+    /**
+     * 发送数据包, chunkBytes借自BufferPool, 发送后不得再访问.
+     */
+    protected void sendPooled(Packet p) throws Throwable {
+        logger.debug("Sending [{}], {}.", p, session);
+        session.sendPooled(p);
+    }
+
+    protected void sendFile(Packet p, FileChannel fc, long position, int count) throws Throwable {
+        session.sendFile(p, fc, position, count);
+        logger.debug("Sended [{}] with {} file byte(s), {}.", p, count, session);
+    }
+}
@@ -0,0 +1,146 @@
+package com.ping.file.serv;
+
+import com.ping.file.util.BufferPool;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+
+/**
+ * NIO事件循环, 一个线程驱动多个连接.
+ * <p>
+ * 事件循环只处理连接的读写就绪, 处理器在workers线程池中执行, 处理线程有待发送的应答时通过wakeup通知事件循环.
+ *
+ * @author lawnstein.chan
+ * @version $Revision:$
+ */
+class ServReactor implements Runnable {
+    private static final Logger logger = LoggerFactory.getLogger(TcpServer.class);
+
+    /**
+     * 超时检查间隔.
+     */
+    private static final long CHECK_INTERVAL_MILLIS = 1000;
+    /**
+     * 读缓冲大小, 需能容纳帧头和最大包头.
+     */
+    private static final int READ_BUFFER_SIZE = 128 * 1024;
+
+    private final TcpServer owner;
+    private final Selector selector;
+    private final ExecutorService workers;
+    private final Queue<SocketChannel> registrations = new ConcurrentLinkedQueue<SocketChannel>();
+    private final Queue<ServConnection> wakeups = new ConcurrentLinkedQueue<ServConnection>();
+    private volatile boolean alived = true;
+
+    public ServReactor(TcpServer owner, ExecutorService workers) throws IOException {
+        this.owner = owner;
+        this.workers = workers;
+        this.selector = Selector.open();
+    }
+
+    /**
+     * 由接入线程调用, 连接在事件循环线程中注册.
+     */
+    public void register(SocketChannel ch) {
+        registrations.add(ch);
+        selector.wakeup();
+    }
+
+    /**
+     * 从BufferPool租用读缓冲, 连接只在有未处理数据时持有读缓冲.
+     */
+    public ByteBuffer leaseBuffer() {
+        return BufferPool.get().leaseBuffer(READ_BUFFER_SIZE);
+    }
+
+    public void releaseBuffer(ByteBuffer b) {
+        BufferPool.get().release(b);
+    }
+
+    /**
+     * 在处理线程池中执行连接的处理任务.
+     */
+    public void execute(Runnable task) {
+        workers.execute(task);
+    }
+
+    /**
+     * 由处理线程调用, 连接在事件循环线程中写出应答并更新关注的事件.
+     */
+    public void wakeup(ServConnection conn) {
+        wakeups.add(conn);
+        selector.wakeup();
+    }
+
+    public void stop() {
+        alived = false;
+        selector.wakeup();
+    }
+
+    @Override
+    public void run() {
+        long lastCheck = System.currentTimeMillis();
+        while (alived) {
+            try {
+                selector.select(CHECK_INTERVAL_MILLIS);
+
+                SocketChannel ch;
+                while ((ch = registrations.poll()) != null) {
+                    try {
+                        new ServConnection(owner, this, ch, selector);
+                    } catch (IOException e) {
+                        logger.error("register connection {} failed, {}", ch, e.getMessage());
+                        try {
+                            ch.close();
+                        } catch (IOException e1) {
+                        }
+                    }
+                }
+
+                ServConnection conn;
+                while ((conn = wakeups.poll()) != null) {
+                    conn.onWakeup();
+                }
+
+                Iterator<SelectionKey> itr = selector.selectedKeys().iterator();
+                while (itr.hasNext()) {
+                    SelectionKey key = itr.next();
+                    itr.remove();
+                    if (key.isValid()) {
+                        ((ServConnection) key.attachment()).onReady(key.readyOps());
+                    }
+                }
+
+                long now = System.currentTimeMillis();
+                if (now - lastCheck >= CHECK_INTERVAL_MILLIS) {
+                    lastCheck = now;
+                    for (SelectionKey key : new ArrayList<SelectionKey>(selector.keys())) {
+                        if (key.isValid()) {
+                            ((ServConnection) key.attachment()).checkTimeout(now);
+                        }
+                    }
+                }
+            } catch (Throwable th) {
+                logger.error("reactor loop failed, {}", th.getMessage(), th);
+            }
+        }
+
+        for (SelectionKey key : new ArrayList<SelectionKey>(selector.keys())) {
+            ((ServConnection) key.attachment()).close();
+        }
+        try {
+            selector.close();
+        } catch (IOException e) {
+        }
+    }
+}
@@ -0,0 +1,29 @@
+package com.ping.file.serv;
+
+import com.ping.file.protocol.Packet;
+
+import java.nio.channels.FileChannel;
+
+/**
+ * 服务端连接会话, 处理器通过它发送应答.
+ *
+ * @author lawnstein.chan
+ * @version $Revision:$
+ */
+interface ServSession {
+
+    /**
+     * 发送数据包: 阻塞引擎直接写出, NIO引擎放入发送队列.
+     */
+    void send(Packet send) throws Throwable;
+
+    /**
+     * 发送数据包, chunkBytes借自BufferPool, 由会话在数据块写出后归还.
+     */
+    void sendPooled(Packet send) throws Throwable;
+
+    /**
+     * 发送数据包, 数据块为文件fc从position起的count字节, 由FileChannel.transferTo直接发送, 不经用户态拷贝.
+     */
+    void sendFile(Packet send, FileChannel fc, long position, int count) throws Throwable;
+}
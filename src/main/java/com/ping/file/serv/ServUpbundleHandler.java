@@ -0,0 +1,140 @@
+package com.ping.file.serv;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.ping.file.protocol.BundleCodec;
+import com.ping.file.protocol.Command;
+import com.ping.file.protocol.Packet;
+import com.ping.file.util.BufferPool;
+import com.ping.file.util.ChksumCache;
+import com.ping.file.util.Utils;
+import com.ping.sync.ChangeManager;
+
+/**
+ * 小文件打包上传处理器.
+ * <p>
+ * 客户端连续发送UPBUNDLE数据包, 每个数据块包含若干完整条目, 不逐包应答; 不带数据块的UPBUNDLE结束本次打包,
+ * 服务端以一个应答返回每个条目的状态. 每个条目按UPCHUNK相同的规则判断是否变化并记录变更日志,
+ * 写入临时文件并校验摘要后才替换目标文件.
+ *
+ * @author lawnstein.chan
+ * @version $Revision:$
+ */
+class ServUpbundleHandler extends ServHandler {
+	private static final Logger logger = LoggerFactory.getLogger(TcpServer.class);
+
+	private byte[] statuses = new byte[64];
+	private int count = 0;
+	private int written = 0;
+	private int failed = 0;
+
+	public ServUpbundleHandler(TcpServer owner, ServSession session) {
+		super(owner, session, "upbundle");
+	}
+
+	private void addStatus(byte status) {
+		if (count == statuses.length) {
+			statuses = Arrays.copyOf(statuses, count * 2);
+		}
+		statuses[count++] = status;
+		if (status == BundleCodec.WRITTEN) {
+			written++;
+		} else if (status == BundleCodec.FAILED) {
+			failed++;
+		}
+	}
+
+	/**
+	 * 写入一个条目, 已存在且无变化的文件跳过.
+	 */
+	private byte apply(BundleCodec.Entry e, byte[] chunk) {
+		filename = e.filename;
+		String filePath = ChangeManager.getBaseDir() + e.filename;
+		if (!Utils.mkdirsForFile(filePath)) {
+			logger.error("mdkir for {} failed.", filePath);
+			return BundleCodec.FAILED;
+		}
+		File cnf = new File(filePath + Utils.DEFAULT_TRANSFERING_CNF_SUFFIX);
+		if (Utils.fileExists(filePath) && !cnf.exists()) {
+			int stat = owner.isSync() ? ChangeManager.getServChangedWithUp(e.filename, e.chksum) : e.chksum.equals(ChksumCache.chksumAs(filePath, e.chksum)) ? 0 : 2;
+			if (stat == 0 || stat == 1) {
+				logger.debug("file {} exist and no changes.", e.filename);
+				if (owner.isSync() && stat == 1) {
+					ChangeManager.writeServChangelog(e.filename, e.chksum);
+				}
+				return BundleCodec.UNCHANGED;
+			}
+		}
+
+		String tempPath = filePath + Utils.DEFAULT_TRANSFERING_DLT_SUFFIX;
+		FileOutputStream os = null;
+		try {
+			os = new FileOutputStream(tempPath, false);
+			os.write(chunk, e.offset, e.size);
+			os.close();
+			os = null;
+			// 先校验临时文件摘要再替换, 条目损坏时保留原文件并单独报告失败
+			if (!e.chksum.equals(Utils.chksumAs(tempPath, e.chksum))) {
+				logger.error("file {} chksum mismatch, {} expected.", e.filename, e.chksum);
+				new File(tempPath).delete();
+				return BundleCodec.FAILED;
+			}
+			Utils.replaceFile(tempPath, filePath);
+		} catch (IOException ex) {
+			logger.error("file {} write failed, {}", e.filename, ex.getMessage());
+			new File(tempPath).delete();
+			return BundleCodec.FAILED;
+		} finally {
+			if (os != null) {
+				try {
+					os.close();
+				} catch (IOException ex) {
+				}
+			}
+		}
+		if (cnf.exists()) {
+			cnf.delete();
+		}
+		if (owner.isSync()) {
+			ChangeManager.writeServChangelog(e.filename, e.chksum);
+		}
+		logger.debug("file {} write over, {} byte(s).", e.filename, e.size);
+		return BundleCodec.WRITTEN;
+	}
+
+	@Override
+	public void onPacket(Packet recv) throws Throwable {
+		this.recv = recv;
+		if (!Command.UPBUNDLE.equals(recv.command)) {
+			throw new RuntimeException("unexpected command " + recv.command + " in bundle.");
+		}
+		if (recv.chunkBytes != null && recv.getChunkLength() > 0) {
+			for (BundleCodec.Entry e : BundleCodec.decode(recv.chunkBytes, recv.getChunkLength())) {
+				addStatus(apply(e, recv.chunkBytes));
+			}
+			return;
+		}
+
+		handleOver = true;
+		send = recv.clone();
+		send.command = Command.UPBUNDLE;
+		send.filesize = (long) count;
+		send.cmdMesg = "bundle " + count + " file(s), " + written + " written, " + failed + " failed.";
+		logger.info(send.cmdMesg);
+		if (count == 0) {
+			sendPacket(send);
+			return;
+		}
+		send.chunkBytes = BufferPool.get().lease(count);
+		send.chunkLength = count;
+		System.arraycopy(statuses, 0, send.chunkBytes, 0, count);
+		sendPooled(send);
+	}
+
+}
@@ -0,0 +1,332 @@
+package com.ping.file.serv;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.security.MessageDigest;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.ping.file.protocol.Command;
+import com.ping.file.protocol.Packet;
+import com.ping.file.util.BufferPool;
+import com.ping.file.util.ChksumCache;
+import com.ping.file.util.ContentChunker;
+import com.ping.file.util.RangeMap;
+import com.ping.file.util.Utils;
+import com.ping.sync.ChangeManager;
+
+/**
+ * 内容块去重上传处理器.
+ * <p>
+ * UPDEDUP确认文件有变化后, 客户端以首个UPDATA发送文件的块清单, 服务端把索引中已有的块复制到临时文件, 应答按位表示的已有块;
+ * 客户端随后在UPDATA中按顺序发送缺少的块, 每个数据包只含完整的块, 不逐包应答. 不带数据块的UPDATA结束传输,
+ * 新文件摘要与UPDEDUP中一致时替换原文件, 登记其内容块并应答.<br>
+ * 未启用内容块索引或有未完成的续传时应答失败, 客户端改为完整上传.
+ *
+ * @author lawnstein.chan
+ * @version $Revision:$
+ */
+class ServUpdedupHandler extends ServHandler {
+	private static final Logger logger = LoggerFactory.getLogger(TcpServer.class);
+
+	private ChunkStore store = null;
+	private String filePath = null;
+	private String tempPath = null;
+	private String fileChksum = null;
+	private long fileSize = 0l;
+	private boolean confirmed = false;
+	private ContentChunker chunks = null;
+	private boolean[] have = null;
+	private long[] offsets = null;
+	/**
+	 * 下一个待接收块.
+	 */
+	private int next = 0;
+	private long reused = 0;
+	private RandomAccessFile target = null;
+	private MessageDigest md = ContentChunker.newDigest();
+	/**
+	 * 复制已有块时打开的原文件, 相邻的块多来自同一文件.
+	 */
+	private RandomAccessFile source = null;
+	private String sourceName = null;
+	private Exception writeError = null;
+
+	public ServUpdedupHandler(TcpServer owner, ServSession session) {
+		super(owner, session, "updedup");
+	}
+
+	@Override
+	public void close() {
+		closeSource();
+		if (target != null) {
+			closeTarget();
+			Utils.fileDelete(tempPath);
+		}
+		super.close();
+	}
+
+	private void closeSource() {
+		if (source != null) {
+			try {
+				source.close();
+			} catch (IOException e) {
+			}
+			source = null;
+			sourceName = null;
+		}
+	}
+
+	private void closeTarget() {
+		try {
+			target.close();
+		} catch (IOException e) {
+		}
+		target = null;
+	}
+
+	private void confirmDedup() {
+		filename = recv.filename;
+		filePath = ChangeManager.getBaseDir() + recv.filename;
+		fileChksum = recv.chksum;
+		fileSize = recv.filesize;
+		store = ChunkStore.get();
+
+		send = recv.clone();
+		send.filename = null;
+		handleOver = true;
+		if (store == null) {
+			/**
+			 * filepos为-1表示本服务端不接受去重上传, 客户端本次会话不再尝试.
+			 */
+			send.cmdResult = false;
+			send.filepos = -1L;
+			send.cmdMesg = "chunk store disabled.";
+			logger.debug("file {} not accepted for dedup, {}", filename, send.cmdMesg);
+			return;
+		}
+		if (new File(filePath + Utils.DEFAULT_TRANSFERING_CNF_SUFFIX).exists() || RangeMap.exists(filePath)) {
+			send.cmdResult = false;
+			send.cmdMesg = "file " + filename + " not accepted for dedup.";
+			logger.debug(send.cmdMesg);
+			return;
+		}
+		if (Utils.fileExists(filePath)) {
+			int stat = owner.isSync() ? ChangeManager.getServChangedWithUp(filename, fileChksum) : fileChksum.equals(ChksumCache.chksumAs(filePath, fileChksum)) ? 0 : 2;
+			if (stat == 0 || stat == 1) {
+				send.filepos = Long.MAX_VALUE;
+				send.cmdMesg = "file " + filename + " exist and no changes.";
+				logger.info(send.cmdMesg);
+				if (owner.isSync() && stat == 1) {
+					ChangeManager.writeServChangelog(filename, fileChksum);
+				}
+				return;
+			}
+		}
+		handleOver = false;
+	}
+
+	/**
+	 * 读取块清单, 复制已有块到临时文件, 应答已有块位图.
+	 */
+	private void confirmList() throws IOException {
+		send = recv.clone();
+		chunks = ContentChunker.read(recv.chunkBytes, recv.chunkBytes == null ? 0 : recv.getChunkLength());
+		offsets = new long[chunks.getCount()];
+		long pos = 0;
+		for (int i = 0; i < chunks.getCount(); i++) {
+			offsets[i] = pos;
+			pos += chunks.getLength(i);
+		}
+		if (pos != fileSize) {
+			throw new IOException("chunk list covers " + pos + " byte(s), expect " + fileSize);
+		}
+
+		tempPath = filePath + Utils.DEFAULT_TRANSFERING_DLT_SUFFIX;
+		File parent = new File(tempPath).getParentFile();
+		if (parent != null && !parent.exists()) {
+			parent.mkdirs();
+		}
+		target = new RandomAccessFile(tempPath, "rw");
+		target.setLength(0);
+		have = new boolean[chunks.getCount()];
+		for (int i = 0; i < chunks.getCount(); i++) {
+			if (copyChunk(i)) {
+				have[i] = true;
+				reused += chunks.getLength(i);
+			}
+		}
+		closeSource();
+		int bitmapLength = (have.length + 7) / 8;
+		if (bitmapLength > 0) {
+			byte[] bitmap = BufferPool.get().lease(bitmapLength);
+			for (int i = 0; i < bitmapLength; i++) {
+				bitmap[i] = 0;
+			}
+			for (int i = 0; i < have.length; i++) {
+				if (have[i]) {
+					bitmap[i / 8] |= 0x80 >>> (i % 8);
+				}
+			}
+			send.chunkBytes = bitmap;
+			send.chunkLength = bitmapLength;
+		}
+		send.filepos = reused;
+		logger.info("file {} dedup with {} chunk(s), {} byte(s) reused.", filename, chunks.getCount(), reused);
+	}
+
+	/**
+	 * 按索引读取第i块, 摘要一致时写入临时文件.
+	 */
+	private boolean copyChunk(int i) throws IOException {
+		String hash = chunks.getHash(i);
+		ChunkStore.Location loc = store.find(hash);
+		if (loc == null || loc.length != chunks.getLength(i)) {
+			return false;
+		}
+		byte[] buf = BufferPool.get().lease(loc.length);
+		try {
+			if (!loc.filename.equals(sourceName)) {
+				closeSource();
+				String path = ChangeManager.getBaseDir() + loc.filename;
+				if (!Utils.fileExists(path)) {
+					store.forget(hash, loc);
+					return false;
+				}
+				source = new RandomAccessFile(path, "r");
+				sourceName = loc.filename;
+			}
+			if (loc.offset + loc.length > source.length()) {
+				store.forget(hash, loc);
+				return false;
+			}
+			source.seek(loc.offset);
+			source.readFully(buf, 0, loc.length);
+			md.update(buf, 0, loc.length);
+			if (!chunks.hashEquals(i, md.digest())) {
+				store.forget(hash, loc);
+				return false;
+			}
+			target.seek(offsets[i]);
+			target.write(buf, 0, loc.length);
+			return true;
+		} finally {
+			BufferPool.get().release(buf);
+		}
+	}
+
+	/**
+	 * 写入按顺序到达的缺少块, 每块先校验摘要.
+	 */
+	private void writeChunks(byte[] chunk, int length) throws IOException {
+		int p = 0;
+		while (p < length) {
+			while (next < have.length && have[next]) {
+				next++;
+			}
+			if (next >= have.length) {
+				throw new IOException("unexpected data after last chunk");
+			}
+			int l = chunks.getLength(next);
+			if (p + l > length) {
+				throw new IOException("chunk " + next + " split across packets");
+			}
+			md.update(chunk, p, l);
+			if (!chunks.hashEquals(next, md.digest())) {
+				throw new IOException("chunk " + next + " digest mismatch");
+			}
+			target.seek(offsets[next]);
+			target.write(chunk, p, l);
+			p += l;
+			next++;
+		}
+	}
+
+	/**
+	 * 校验并替换原文件.
+	 */
+	private void finishDedup() {
+		send = recv.clone();
+		send.filepos = Long.MAX_VALUE;
+		try {
+			if (writeError != null) {
+				throw writeError;
+			}
+			while (next < have.length && have[next]) {
+				next++;
+			}
+			if (next < have.length) {
+				throw new IOException("chunk " + next + " missing");
+			}
+			closeTarget();
+			if (Utils.filesize(tempPath) != fileSize || !fileChksum.equals(Utils.chksumAs(tempPath, fileChksum))) {
+				throw new IOException("chksum mismatch");
+			}
+			Utils.replaceFile(tempPath, filePath);
+			store.add(filename, chunks);
+			if (owner.isSync()) {
+				ChangeManager.writeServChangelog(filename, fileChksum);
+			}
+			send.cmdMesg = "file " + filename + " dedup applied.";
+			logger.info(send.cmdMesg);
+		} catch (Exception e) {
+			if (target != null) {
+				closeTarget();
+			}
+			Utils.fileDelete(tempPath);
+			send.cmdResult = false;
+			send.cmdMesg = "file " + filename + " dedup failed, " + e.getMessage();
+			logger.error(send.cmdMesg);
+		}
+	}
+
+	@Override
+	public void onPacket(Packet recv) throws Throwable {
+		this.recv = recv;
+		if (!confirmed) {
+			confirmed = true;
+			confirmDedup();
+			sendPacket(send);
+			return;
+		}
+
+		if (!Command.UPDATA.equals(recv.command)) {
+			throw new RuntimeException("unexpected command " + recv.command + " in dedup.");
+		}
+		if (chunks == null) {
+			try {
+				confirmList();
+			} catch (IOException | RuntimeException e) {
+				send = recv.clone();
+				send.cmdResult = false;
+				send.cmdMesg = "file " + filename + " dedup failed, " + e.getMessage();
+				logger.error(send.cmdMesg);
+				handleOver = true;
+				sendPacket(send);
+				return;
+			}
+			if (send.chunkBytes != null) {
+				sendPooled(send);
+			} else {
+				sendPacket(send);
+			}
+			return;
+		}
+		if (recv.chunkBytes != null && recv.getChunkLength() > 0) {
+			if (writeError == null) {
+				try {
+					writeChunks(recv.chunkBytes, recv.getChunkLength());
+				} catch (IOException e) {
+					writeError = e;
+				}
+			}
+			return;
+		}
+		handleOver = true;
+		finishDedup();
+		sendPacket(send);
+	}
+
+}
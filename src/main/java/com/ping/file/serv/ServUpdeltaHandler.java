@@ -0,0 +1,163 @@
+package com.ping.file.serv;
+
+import java.io.File;
+import java.io.IOException;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.ping.file.protocol.Command;
+import com.ping.file.protocol.Packet;
+import com.ping.file.util.BufferPool;
+import com.ping.file.util.ChksumCache;
+import com.ping.file.util.DeltaApplier;
+import com.ping.file.util.DeltaSignature;
+import com.ping.file.util.RangeMap;
+import com.ping.file.util.Utils;
+import com.ping.sync.ChangeManager;
+
+/**
+ * 差量上传处理器.
+ * <p>
+ * 收到UPDELTA后返回原文件的块签名, 客户端随后连续发送UPDATA指令数据块, 不逐包应答;
+ * 不带数据块的UPDATA结束传输, 新文件摘要与UPDELTA中一致时替换原文件并应答.<br>
+ * 原文件不存在或有未完成的续传时应答失败, 客户端改为完整上传.
+ *
+ * @author lawnstein.chan
+ * @version $Revision:$
+ */
+class ServUpdeltaHandler extends ServHandler {
+	private static final Logger logger = LoggerFactory.getLogger(TcpServer.class);
+
+	private String filePath = null;
+	private String tempPath = null;
+	private String fileChksum = null;
+	private long fileSize = 0l;
+	private boolean confirmed = false;
+	private DeltaApplier applier = null;
+	private Exception applyError = null;
+
+	public ServUpdeltaHandler(TcpServer owner, ServSession session) {
+		super(owner, session, "updelta");
+	}
+
+	@Override
+	public void close() {
+		if (applier != null) {
+			applier.close();
+			applier = null;
+			Utils.fileDelete(tempPath);
+		}
+		super.close();
+	}
+
+	private void confirmDelta() {
+		filename = recv.filename;
+		filePath = ChangeManager.getBaseDir() + recv.filename;
+		fileChksum = recv.chksum;
+		fileSize = recv.filesize;
+
+		send = recv.clone();
+		send.filename = null;
+		handleOver = true;
+		if (!Utils.fileExists(filePath) || new File(filePath + Utils.DEFAULT_TRANSFERING_CNF_SUFFIX).exists() || RangeMap.exists(filePath)) {
+			send.cmdResult = false;
+			send.cmdMesg = "file " + filename + " has no basis for delta.";
+			logger.debug(send.cmdMesg);
+			return;
+		}
+		int stat = owner.isSync() ? ChangeManager.getServChangedWithUp(filename, fileChksum) : fileChksum.equals(ChksumCache.chksumAs(filePath, fileChksum)) ? 0 : 2;
+		if (stat == 0 || stat == 1) {
+			send.filepos = Long.MAX_VALUE;
+			send.cmdMesg = "file " + filename + " exist and no changes.";
+			logger.info(send.cmdMesg);
+			if (owner.isSync() && stat == 1) {
+				ChangeManager.writeServChangelog(filename, fileChksum);
+			}
+			return;
+		}
+
+		try {
+			DeltaSignature sig = DeltaSignature.compute(filePath);
+			tempPath = filePath + Utils.DEFAULT_TRANSFERING_DLT_SUFFIX;
+			applier = new DeltaApplier(filePath, tempPath, sig.getBlockSize());
+			send.chunkSize = (long) sig.getBlockSize();
+			if (sig.length() > 0) {
+				send.chunkBytes = BufferPool.get().lease(sig.length());
+				send.chunkLength = sig.length();
+				sig.write(send.chunkBytes);
+			}
+			handleOver = false;
+			logger.info("file {} delta with {} block(s) of {} byte(s)", filename, sig.getCount(), sig.getBlockSize());
+		} catch (IOException e) {
+			send.cmdResult = false;
+			send.cmdMesg = "file " + filename + " signature failed, " + e.getMessage();
+			logger.error(send.cmdMesg);
+		}
+	}
+
+	/**
+	 * 校验并替换原文件.
+	 */
+	private void finishDelta() {
+		applier.close();
+		applier = null;
+		send = recv.clone();
+		send.filepos = Long.MAX_VALUE;
+		try {
+			if (applyError != null) {
+				throw applyError;
+			}
+			if (Utils.filesize(tempPath) != fileSize || !fileChksum.equals(Utils.chksumAs(tempPath, fileChksum))) {
+				throw new IOException("chksum mismatch");
+			}
+			Utils.replaceFile(tempPath, filePath);
+			if (ChunkStore.get() != null) {
+				ChunkStore.get().indexAsync(filename);
+			}
+			if (owner.isSync()) {
+				ChangeManager.writeServChangelog(filename, fileChksum);
+			}
+			send.cmdMesg = "file " + filename + " delta applied.";
+			logger.info(send.cmdMesg);
+		} catch (Exception e) {
+			Utils.fileDelete(tempPath);
+			send.cmdResult = false;
+			send.cmdMesg = "file " + filename + " delta failed, " + e.getMessage();
+			logger.error(send.cmdMesg);
+		}
+	}
+
+	@Override
+	public void onPacket(Packet recv) throws Throwable {
+		this.recv = recv;
+		if (!confirmed) {
+			confirmed = true;
+			confirmDelta();
+			if (send.chunkBytes != null) {
+				sendPooled(send);
+			} else {
+				sendPacket(send);
+			}
+			return;
+		}
+
+		if (!Command.UPDATA.equals(recv.command)) {
+			throw new RuntimeException("unexpected command " + recv.command + " in delta.");
+		}
+		if (recv.chunkBytes != null && recv.getChunkLength() > 0) {
+			if (applyError == null) {
+				try {
+					applier.apply(recv.chunkBytes, recv.getChunkLength());
+				} catch (IOException | RuntimeException e) {
+					applyError = e;
+				}
+			}
+			return;
+		}
+		handleOver = true;
+		finishDelta();
+		sendPacket(send);
+	}
+
+}
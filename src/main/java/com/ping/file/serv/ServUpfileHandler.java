@@ -15,14 +15,22 @@ import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.OutputStreamWriter;
-import java.net.Socket;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.zip.DataFormatException;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import com.ping.file.protocol.Command;
 import com.ping.file.protocol.Packet;
-import com.ping.file.util.ClientSocket;
+import com.ping.file.util.BufferPool;
+import com.ping.file.util.ChksumCache;
+import com.ping.file.util.ChunkCompressor;
+import com.ping.file.util.ChunkDecompressor;
+import com.ping.file.util.ContentChunker;
+import com.ping.file.util.RangeMap;
 import com.ping.file.util.Utils;
 import com.ping.sync.ChangeManager;
 
@@ -32,44 +40,59 @@ import com.ping.sync.ChangeManager;
  * @author lawnstein.chan
  * @version $Revision:$
  */
-class ServUpfileHandler implements Runnable {
+class ServUpfileHandler extends ServHandler {
 	private static final Logger logger = LoggerFactory.getLogger(TcpServer.class);
 
-	private TcpServer owner;
-
-	private Socket s;
 	private Long chunkSize;
-	private String filename = null;
 	private String filePath = null;
 	private boolean fileAppend = false;
 	private String fileChksum = null;
 	private long fileSize = 0l;
 	private long filePos = 0l;
-	private FileOutputStream fileOut = null;
-	private Packet recv = null;
-	private Packet send = new Packet();
+	private RandomAccessFile fileRaf = null;
+	private FileChannel fileChannel = null;
+	/**
+	 * 当前数据块已直接写入文件的字节数及写入异常.
+	 */
+	private long chunkWritten = 0l;
+	private IOException chunkError = null;
 	private int stat = 2;
-	private boolean handleOver = false;
+	private boolean confirmed = false;
+	private boolean ack = true;
+	/**
+	 * 滑动窗口大小, 0为逐块应答.
+	 */
+	private long window = 0l;
+	private long ackedPos = 0l;
+	/**
+	 * 协商压缩后的解压上下文, 为null表示不压缩.
+	 */
+	private ChunkDecompressor decompressor = null;
+	/**
+	 * UPRANGE分段上传时多个连接共用的已接收区间表, 为null表示按.@{cnf}单点续传.
+	 */
+	private RangeMap rangeMap = null;
 	// private boolean result = false;
 
-	public ServUpfileHandler(ServFilter filter) {
-		this.owner = filter.owner;
-		this.s = filter.s;
-		this.recv = filter.recv;
+	public ServUpfileHandler(TcpServer owner, ServSession session) {
+		super(owner, session, "upfile");
 	}
 
-	private void close() {
-		logger.info("connection {} closed for {}", s, filename);
-		if (s != null) {
-			ClientSocket.close(s);
+	@Override
+	public void close() {
+		if (rangeMap != null) {
+			RangeMap.release(rangeMap, fileChannel);
 		}
-		if (fileOut != null) {
+		if (fileRaf != null) {
 			try {
-				fileOut.flush();
-				fileOut.close();
+				fileRaf.close();
 			} catch (IOException e) {
 			}
 		}
+		if (decompressor != null) {
+			decompressor.end();
+		}
+		super.close();
 	}
 
 	public String[] getConf() {
@@ -120,20 +143,136 @@ class ServUpfileHandler implements Runnable {
 		cnf.delete();
 	}
 
-	public void writeBytes(byte[] contents) throws IOException {
-		if (fileOut == null) {
-			File file = new File(filePath);
-			fileOut = new FileOutputStream(file.getAbsolutePath(), fileAppend);
+	private void openFile() throws IOException {
+		if (fileChannel != null) {
+			return;
+		}
+		fileRaf = new RandomAccessFile(new File(filePath), "rw");
+		/**
+		 * 续传位置以cnf为准, 丢弃cnf之后未确认的数据; 非续传从头写; 分段上传只截去超出文件长度的部分.
+		 */
+		long keep = rangeMap != null ? fileSize : fileAppend ? filePos : 0l;
+		if (fileRaf.length() > keep) {
+			fileRaf.setLength(keep);
+		}
+		fileChannel = fileRaf.getChannel();
+	}
+
+	public void writeBytes(byte[] contents, int length) throws IOException {
+		openFile();
+		if (contents == null || length == 0) {
+			return;
+		}
+		ByteBuffer bb = ByteBuffer.wrap(contents, 0, length);
+		while (bb.hasRemaining()) {
+			fileChannel.write(bb, filePos + bb.position());
+		}
+	}
+
+	/**
+	 * 解压数据块并写入文件.
+	 */
+	private void writeCompressed() throws IOException {
+		if (decompressor == null || recv.rawLength <= 0 || recv.rawLength > Utils.MAX_CHUNK_SIZE) {
+			throw new IOException("unexpected compressed chunk, rawLength " + recv.rawLength);
+		}
+		byte[] raw = BufferPool.get().lease(recv.rawLength);
+		try {
+			decompressor.decompress(recv.chunkBytes, recv.getChunkLength(), raw, recv.rawLength);
+			writeBytes(raw, recv.rawLength);
+		} catch (DataFormatException e) {
+			throw new IOException("inflate failed, " + e.getMessage(), e);
+		} finally {
+			BufferPool.get().release(raw);
+		}
+	}
+
+	@Override
+	public boolean acceptChunk(Packet head) {
+		return confirmed && !isOver() && Command.UPDATA.equals(head.command) && head.chunkLength > 0 && head.rawLength == null
+				&& (window == 0 || head.filepos == null || head.filepos == filePos);
+	}
+
+	@Override
+	public void writeChunk(ByteBuffer src) {
+		if (chunkError != null) {
+			return;
+		}
+		try {
+			openFile();
+			while (src.hasRemaining()) {
+				chunkWritten += fileChannel.write(src, filePos + chunkWritten);
+			}
+		} catch (IOException e) {
+			chunkError = e;
+		}
+	}
+
+	/**
+	 * 文件已存在且无变化时应答filepos为Long.MAX_VALUE, 结束本次上传.
+	 */
+	private boolean unchanged() {
+		stat = owner.isSync() ? ChangeManager.getServChangedWithUp(filename, fileChksum) : fileChksum.equals(ChksumCache.chksumAs(filePath, fileChksum)) ? 0 : 2;
+		if (stat != 0 && stat != 1) {
+			return false;
+		}
+		handleOver = true;
+		// fileWrite = false;
+		send.filepos = Long.MAX_VALUE;
+		send.cmdMesg = "file " + filename + " exist and no changes.";
+		logger.info(send.cmdMesg);
+		if (owner.isSync() && stat == 1) {
+			ChangeManager.writeServChangelog(filename, fileChksum);
+		}
+		return true;
+	}
+
+	/**
+	 * 分段上传: 从recv.filepos所在的已接收区间之后续传, 首个分段连接负责判断文件是否变化.
+	 */
+	private boolean confirmRange() {
+		if (Utils.fileExists(filePath) && getConf() == null && !RangeMap.exists(filePath) && unchanged()) {
+			return false;
 		}
-		if (contents == null || contents.length == 0) {
+		rangeMap = RangeMap.acquire(filePath, fileSize, fileChksum);
+		filePos = rangeMap.resumeFrom(recv.filepos == null ? 0l : recv.filepos);
+		fileAppend = true;
+		delConf();
+		return true;
+	}
+
+	/**
+	 * 已接收区间覆盖整个文件时收尾, 仅由完成覆盖的连接执行一次; 整个文件摘要校验通过后才删除区间记录并记录变更日志.
+	 */
+	private void addRange(long start, long end) throws IOException {
+		if (!rangeMap.add(start, end, fileChannel)) {
 			return;
 		}
-		fileOut.write(contents);
-		fileOut.flush();
+		if (!fileChksum.equals(ChksumCache.chksumAs(filePath, fileChksum))) {
+			// 区间记录与文件内容不符, 丢弃记录, 下次上传重新传输
+			rangeMap.delete();
+			throw new IOException("chksum mismatch after all ranges received");
+		}
+		rangeMap.delete();
+		logger.debug("file {} recv complete by range.", filename);
+		indexChunks();
+		if (owner.isSync()) {
+			ChangeManager.writeServChangelog(filename, fileChksum);
+		}
+	}
+
+	/**
+	 * 启用内容块索引时, 完整上传的文件在后台入索引.
+	 */
+	private void indexChunks() {
+		ChunkStore store = ChunkStore.get();
+		if (store != null && fileSize >= ContentChunker.MIN_SIZE) {
+			store.indexAsync(filename);
+		}
 	}
 
 	private void confirmChunk() {
-		if (!Command.UPCHUNK.equals(recv.command)) {
+		if (!Command.UPCHUNK.equals(recv.command) && !Command.UPRANGE.equals(recv.command)) {
 			return;
 		}
 
@@ -155,20 +294,15 @@ class ServUpfileHandler implements Runnable {
 			logger.error(send.cmdMesg);
 			return;
 		}
-		if (Utils.fileExists(filePath)) {
+		if (Command.UPRANGE.equals(recv.command)) {
+			if (!confirmRange()) {
+				return;
+			}
+		} else if (Utils.fileExists(filePath)) {
 			String[] ci = getConf();
 			if (ci == null) {
 				// if (fileChksum.equals(Utils.chksum(path))) {
-				stat = owner.isSync() ? ChangeManager.getServChangedWithUp(filename, fileChksum) : fileChksum.equals(Utils.chksum(filePath)) ? 0 : 2;
-				if (stat == 0 || stat == 1) {
-					handleOver = true;
-					// fileWrite = false;
-					send.filepos = Long.MAX_VALUE;
-					send.cmdMesg = "file " + filename + " exist and no changes.";
-					logger.info(send.cmdMesg);
-					if (owner.isSync() && stat == 1) {
-						ChangeManager.writeServChangelog(filename, fileChksum);
-					}
+				if (unchanged()) {
 					return;
 				}
 			} else if (fileChksum.equals(ci[2]) && fileSize == Long.valueOf(ci[1])) {
@@ -184,37 +318,87 @@ class ServUpfileHandler implements Runnable {
 			filePos = 0;
 		}
 		send.filepos = filePos;
+		ackedPos = filePos;
+		if (recv.window != null && recv.window > 0) {
+			window = recv.window > Utils.MAX_WINDOW_SIZE ? Utils.MAX_WINDOW_SIZE : recv.window;
+			send.window = window;
+		}
+		if (ChunkCompressor.DEFLATE.equals(recv.compress) && owner.isCompress()) {
+			decompressor = new ChunkDecompressor();
+			send.compress = ChunkCompressor.DEFLATE;
+		}
 		logger.info("file {} expect filePos {}", filename, send.filepos);
 	}
 
 	private void handleData() {
+		ack = true;
+		chunkWritten = 0l;
 		if (!Command.UPDATA.equals(recv.command)) {
 			return;
 		}
-		if (recv.chunkBytes == null || recv.chunkBytes.length == 0) {
+		int length = recv.rawLength != null ? recv.rawLength : recv.getChunkLength();
+		if (length == 0) {
 			handleOver = true;
+			send = recv.clone();
+			send.filepos = Long.MAX_VALUE;
+			send.cmdMesg = "file " + filename + " write over.";
+			ack = window > 0;
+			if (rangeMap != null) {
+				try {
+					addRange(ackedPos, filePos);
+				} catch (IOException e) {
+					send.cmdResult = false;
+					send.cmdMesg = "file " + filename + " write range failed, " + e.getMessage();
+					logger.error(send.cmdMesg);
+				}
+				logger.debug("file {} range over at {}.", filename, filePos);
+				return;
+			}
 			if (fileSize == filePos) {
 				delConf();
 				logger.debug("file {} recv complete.", filename);
+				indexChunks();
+				if (owner.isSync()) {
+					ChangeManager.writeServChangelog(filename, fileChksum);
+				}
 			} else {
+				// 未收全的文件不记录变更日志, 以免记录的摘要与文件内容不符
 				logger.debug("file {} recv over, but not complete.", filename);
 			}
-
-			send = recv.clone();
-			send.filepos = Long.MAX_VALUE;
-			send.cmdMesg = "file " + filename + " write over.";
-			if (owner.isSync()) {
-				ChangeManager.writeServChangelog(filename, fileChksum);
-			}
 		} else {
 			send = recv.clone();
+			if (window > 0 && recv.filepos != null && recv.filepos != filePos) {
+				send.cmdResult = false;
+				send.cmdMesg = "file " + filename + " unexpected position " + recv.filepos + ", expect " + filePos;
+				logger.error(send.cmdMesg);
+				return;
+			}
 			try {
-				writeBytes(recv.chunkBytes);
-				logger.debug("file {} write filePos {}, {} byte(s)", filename, filePos, recv.chunkBytes.length);
-				filePos += recv.chunkBytes.length;
-				writeConf(filePos + "," + fileSize + "," + fileChksum);
+				if (recv.rawLength != null) {
+					writeCompressed();
+				} else if (recv.chunkBytes != null) {
+					writeBytes(recv.chunkBytes, length);
+				} else if (chunkError != null) {
+					throw chunkError;
+				}
+				if (decompressor != null && recv.rawLength == null) {
+					decompressor.reset();
+				}
+				logger.debug("file {} write filePos {}, {} byte(s)", filename, filePos, length);
+				filePos += length;
+				if (window > 0 && filePos - ackedPos < Math.max(window / 2, 1)) {
+					ack = false;
+					return;
+				}
+				if (rangeMap != null) {
+					addRange(ackedPos, filePos);
+				} else {
+					writeConf(filePos + "," + fileSize + "," + fileChksum);
+				}
+				ackedPos = filePos;
 				send.filepos = filePos;
 			} catch (IOException e) {
+				chunkError = null;
 				send.cmdResult = false;
 				send.cmdMesg = "file " + filename + " write failed, " + e.getMessage();
 				logger.error(send.cmdMesg);
@@ -224,37 +408,28 @@ class ServUpfileHandler implements Runnable {
 	}
 
 	@Override
-	public void run() {
-		try {
+	public void onPacket(Packet recv) throws Throwable {
+		this.recv = recv;
+		if (!confirmed) {
+			confirmed = true;
 			confirmChunk();
-			ClientSocket.sendPacket(s, send);
-			logger.debug("Sended [{}], {}.", send, s);
-
-			while (send.cmdResult && !handleOver) {
-				recv = ClientSocket.recvPacket(s, owner.timeout);
-				logger.debug("Recv [{}], {}", recv, s);
-
-				handleData();
-				if (!handleOver) {
-					ClientSocket.sendPacket(s, send);
-					logger.debug("Sended [{}], {}.", send, s);
-				}
+			sendPacket(send);
+		} else {
+			handleData();
+			if (ack) {
+				sendPacket(send);
 			}
+		}
 
-			logger.debug("upfile {} over.", filename);
-		} catch (Throwable th) {
-			if (owner.isDebug()) {
-				logger.error("upfile {} failed, {}", filename, th);
-			} else {
-				logger.error("upfile {} failed, {}", filename, th.getMessage());
-			}
-		} finally {
-			try {
-				Thread.sleep(1000);
-			} catch (InterruptedException e) {
+		if (!send.cmdResult) {
+			handleOver = true;
+			if (window > 0) {
+				/**
+				 * 窗口内仍有在途数据块.
+				 */
+				broken = true;
 			}
-			close();
 		}
 	}
 
-}
\ No newline at end of file
+}
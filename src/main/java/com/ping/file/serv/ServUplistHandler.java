@@ -11,14 +11,12 @@ package com.ping.file.serv;
 
 import com.ping.file.protocol.Command;
 import com.ping.file.protocol.Packet;
-import com.ping.file.util.ClientSocket;
 import com.ping.file.util.Utils;
 import com.ping.sync.ChangeManager;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.io.File;
-import java.net.Socket;
 import java.nio.ByteBuffer;
 import java.util.ArrayList;
 import java.util.Collections;
@@ -30,36 +28,15 @@ import java.util.List;
  * @author lawnstein.chan
  * @version $Revision:$
  */
-class ServUplistHandler implements Runnable {
+class ServUplistHandler extends ServHandler {
     private static final Logger logger = LoggerFactory.getLogger(TcpServer.class);
 
-    private TcpServer owner;
-
-    private Socket s;
-    private Long chunkSize;
-    private String filename = null;
     //    private String filePath = null;
     private ByteBuffer fileBytes = null;
-    private long fileSize = 0l;
-    private long fileCount = 0l;
-    private long filePos = 0l;
-    //	private long fileChunkIndex = 0l;
-    private Packet recv = null;
-    private Packet send = new Packet();
-    private boolean handleOver = false;
 //    private String[] files = null;
 
-    public ServUplistHandler(ServFilter filter) {
-        this.owner = filter.owner;
-        this.s = filter.s;
-        this.recv = filter.recv;
-    }
-
-    private void close() {
-        logger.info("connection {} closed for {}", s, filename);
-        if (s != null) {
-            ClientSocket.close(s);
-        }
+    public ServUplistHandler(TcpServer owner, ServSession session) {
+        super(owner, session, "uplist");
     }
 
     private void doCleanUnexist(String firstDir, List<String> syncList) {
@@ -76,7 +53,7 @@ class ServUplistHandler implements Runnable {
         Collections.reverse(l);
         logger.debug("Serv localFiles : {}", l);
         for (String fn : l) {
-            if (fn.endsWith(Utils.DEFAULT_TRANSFERING_CNF_SUFFIX)) {
+            if (Utils.isTransferingConf(fn)) {
                 continue;
             }
 
@@ -118,82 +95,59 @@ class ServUplistHandler implements Runnable {
     }
 
     @Override
-    public void run() {
-        try {
-            for (; ; ) {
-
-                /**
-                 * recv the file list.
-                 */
-                // recv = ClientSocket.recvPacket(s, owner.timeout);
-                fileBytes = ByteBuffer.allocate((int) (recv.filesize > 0 ? recv.filesize : 1024));
-                logger.debug("first recv {}", recv);
-                while (recv.cmdResult) {
-                    if (recv.filepos != null && recv.filepos == Long.MAX_VALUE) {
-                        break;
-                    }
-                    if (recv.chunkBytes != null && recv.chunkBytes.length > 0) {
-                        fileBytes.put(recv.chunkBytes);
-                    }
-
-                    send = recv.clone();
-                    send.filepos = 0l;
-                    send.command = Command.UPLIST;
-                    ClientSocket.sendPacket(s, send);
-                    logger.debug("send {}", send);
+    public void onPacket(Packet recv) throws Throwable {
+        this.recv = recv;
+        if (fileBytes == null) {
+            fileBytes = ByteBuffer.allocate((int) (recv.filesize > 0 ? recv.filesize : 1024));
+            logger.debug("first recv {}", recv);
+        }
 
-                    recv = ClientSocket.recvPacket(s, owner.timeout);
-                    logger.debug("recv {}", recv);
-                }
+        /**
+         * recv the file list.
+         */
+        if (recv.cmdResult && (recv.filepos == null || recv.filepos != Long.MAX_VALUE)) {
+            if (recv.chunkBytes != null && recv.getChunkLength() > 0) {
+                fileBytes.put(recv.chunkBytes, 0, recv.getChunkLength());
+            }
 
-                String[] files = null;
-                if (fileBytes != null && fileBytes.position() > 0) {
-                    String fileListStr = new String(fileBytes.array(), Utils.DEFAULT_FILE_ENCODING);
-                    logger.debug("fileListStr {}", fileListStr);
-                    String[] fileListArray = fileListStr.split("[,]");
-                    List<String> fileL = new ArrayList<String>();
-                    if (fileListArray != null && fileListArray.length > 0) {
-                        for (int i = 0; i < fileListArray.length; i++) {
-                            String fs = fileListArray[i];
-                            if (fs == null || fs.trim().length() == 0) {
-                                continue;
-                            }
-                            fs = Utils.decodeBase64(fs.trim());
-                            fileL.add(fs);
-                            logger.debug("up file {}/{}  {}", i, fileListArray.length, fs);
-                        }
-                    }
-                    if (fileL.size() > 0) {
-                        files = new String[fileL.size()];
-                        Collections.sort(fileL);
-                        Collections.reverse(fileL);
-                        fileL.toArray(files);
+            send = recv.clone();
+            send.filepos = 0l;
+            send.command = Command.UPLIST;
+            sendPacket(send);
+            return;
+        }
 
-                        doSyncClean(fileL);
+        String[] files = null;
+        if (fileBytes != null && fileBytes.position() > 0) {
+            String fileListStr = new String(fileBytes.array(), Utils.DEFAULT_FILE_ENCODING);
+            logger.debug("fileListStr {}", fileListStr);
+            String[] fileListArray = fileListStr.split("[,]");
+            List<String> fileL = new ArrayList<String>();
+            if (fileListArray != null && fileListArray.length > 0) {
+                for (int i = 0; i < fileListArray.length; i++) {
+                    String fs = fileListArray[i];
+                    if (fs == null || fs.trim().length() == 0) {
+                        continue;
                     }
+                    fs = Utils.decodeBase64(fs.trim());
+                    fileL.add(fs);
+                    logger.debug("up file {}/{}  {}", i, fileListArray.length, fs);
                 }
-
-                send = recv.clone();
-                send.filepos = Long.MAX_VALUE;
-                ClientSocket.sendPacket(s, send);
-                logger.debug("send {}", send);
-
-                logger.debug("uplist {} over.", filename);
-                break;
             }
-        } catch (Throwable th) {
-            if (owner.isDebug()) {
-                logger.error("uplist {} failed, {}", filename, th);
-            } else {
-                logger.error("uplist {} failed, {}", filename, th.getMessage());
-            }
-        } finally {
-            try {
-                Thread.sleep(1000);
-            } catch (InterruptedException e) {
+            if (fileL.size() > 0) {
+                files = new String[fileL.size()];
+                Collections.sort(fileL);
+                Collections.reverse(fileL);
+                fileL.toArray(files);
+
+                doSyncClean(fileL);
             }
-            close();
         }
+
+        send = recv.clone();
+        send.filepos = Long.MAX_VALUE;
+        sendPacket(send);
+        handleOver = true;
     }
 
-}
\ No newline at end of file
+}
@@ -5,13 +5,19 @@ import java.io.IOException;
 import java.net.InetSocketAddress;
 import java.net.ServerSocket;
 import java.net.Socket;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import com.ping.configure.ServProperties;
+import com.ping.file.util.BufferPool;
+import com.ping.file.util.ChksumCache;
 import com.ping.file.util.NamedThreadFactory;
 import com.ping.file.util.Utils;
 import com.ping.sync.ChangeManager;
@@ -28,6 +34,10 @@ public class TcpServer {
 	protected static String DEFAULT_FILE_ENCODING = Utils.DEFAULT_FILE_ENCODING;
 	protected final int HEADLENGTH = Utils.HEADLENGTH;
 	protected final int EXPIRED_MILLIS = 30 * 1000;
+	public static final String ENGINE_BLOCKING = "blocking";
+	public static final String ENGINE_NIO = "nio";
+	protected final int NIO_BACKLOG = 1024;
+	protected final int STATS_INTERVAL_SEC = 60;
 
 	private TcpServer instance = null;
 
@@ -53,6 +63,50 @@ public class TcpServer {
 	protected boolean sync = true;
 
 	public boolean debug = false;
+
+	/**
+	 * 服务引擎: blocking - 每连接一个处理线程; nio - 少量事件循环线程驱动全部连接.
+	 */
+	protected String engine = ENGINE_BLOCKING;
+
+	/**
+	 * JDK 21+ 下每个连接使用一个虚拟线程, 不受maxHandleThreads限制.
+	 */
+	protected boolean virtualThreads = false;
+
+	/**
+	 * nio引擎事件循环线程数.
+	 */
+	protected int ioThreads = Runtime.getRuntime().availableProcessors();
+
+	/**
+	 * 数据块缓冲池容量(字节)及读缓冲是否使用直接内存.
+	 */
+	protected long bufferPoolSize = BufferPool.DEFAULT_MAX_BYTES;
+
+	protected boolean bufferDirect = true;
+
+	/**
+	 * 是否接受客户端的数据块压缩请求.
+	 */
+	protected boolean compress = true;
+
+	/**
+	 * 是否启用内容块索引, 接受客户端的去重上传.
+	 */
+	protected boolean chunkStore = false;
+
+	/**
+	 * 内容块索引在内存中的块数上限.
+	 */
+	protected int chunkStoreSize = ChunkStore.DEFAULT_MAX_ENTRIES;
+
+	/**
+	 * 基础目录摘要索引的条目上限, 0为不建立索引; 启动时后台计算摘要的限速(字节/秒), 0为不限速.
+	 */
+	protected int chksumCacheSize = 0;
+
+	protected long chksumScanRate = 0;
 	
 	/**
 	 * TCP请求处理并发处理线程池.
@@ -61,6 +115,12 @@ public class TcpServer {
 
 	private ServerSocket server = null;
 
+	private ServerSocketChannel serverChannel = null;
+
+	private ServReactor[] reactors = null;
+
+	private ScheduledExecutorService statsTimer = null;
+
 	private volatile boolean alived = false;
 
 	/**
@@ -107,7 +167,83 @@ public class TcpServer {
 			this.debug = propties.debug;
 		}
 
+		String virtualThreadsStr = System.getProperty("server.virtual-threads");
+		if (virtualThreadsStr != null && virtualThreadsStr.length() > 0) {
+			this.virtualThreads = Boolean.valueOf(virtualThreadsStr);
+		} else if (propties != null) {
+			this.virtualThreads = propties.virtualThreads;
+		}
+
+		String engineStr = System.getProperty("server.engine");
+		if (engineStr != null && engineStr.length() > 0) {
+			this.engine = engineStr;
+		} else if (propties != null && propties.engine != null && propties.engine.length() > 0) {
+			this.engine = propties.engine;
+		}
+
+		String ioThreadsStr = System.getProperty("server.io-threads");
+		if (ioThreadsStr != null && ioThreadsStr.length() > 0) {
+			this.ioThreads = Integer.valueOf(ioThreadsStr);
+		} else if (propties != null && propties.ioThreads > 0) {
+			this.ioThreads = (int) propties.ioThreads;
+		}
+
+		String bufferPoolSizeStr = System.getProperty("server.buffer-pool-size");
+		if (bufferPoolSizeStr != null && bufferPoolSizeStr.length() > 0) {
+			this.bufferPoolSize = Long.valueOf(bufferPoolSizeStr);
+		} else if (propties != null && propties.bufferPoolSize > 0) {
+			this.bufferPoolSize = propties.bufferPoolSize;
+		}
+
+		String bufferDirectStr = System.getProperty("server.buffer-direct");
+		if (bufferDirectStr != null && bufferDirectStr.length() > 0) {
+			this.bufferDirect = Boolean.valueOf(bufferDirectStr);
+		} else if (propties != null) {
+			this.bufferDirect = propties.bufferDirect;
+		}
+		BufferPool.configure(this.bufferPoolSize, this.bufferDirect);
+
+		String compressStr = System.getProperty("server.compress");
+		if (compressStr != null && compressStr.length() > 0) {
+			this.compress = Boolean.valueOf(compressStr);
+		} else if (propties != null) {
+			this.compress = propties.compress;
+		}
+
+		String chunkStoreStr = System.getProperty("server.chunk-store");
+		if (chunkStoreStr != null && chunkStoreStr.length() > 0) {
+			this.chunkStore = Boolean.valueOf(chunkStoreStr);
+		} else if (propties != null) {
+			this.chunkStore = propties.chunkStore;
+		}
+
+		String chunkStoreSizeStr = System.getProperty("server.chunk-store-size");
+		if (chunkStoreSizeStr != null && chunkStoreSizeStr.length() > 0) {
+			this.chunkStoreSize = Integer.valueOf(chunkStoreSizeStr);
+		} else if (propties != null && propties.chunkStoreSize > 0) {
+			this.chunkStoreSize = (int) propties.chunkStoreSize;
+		}
+
+		String chksumCacheSizeStr = System.getProperty("server.chksum-cache-size");
+		if (chksumCacheSizeStr != null && chksumCacheSizeStr.length() > 0) {
+			this.chksumCacheSize = Integer.valueOf(chksumCacheSizeStr);
+		} else if (propties != null && propties.chksumCacheSize > 0) {
+			this.chksumCacheSize = (int) propties.chksumCacheSize;
+		}
+
+		String chksumScanRateStr = System.getProperty("server.chksum-scan-rate");
+		if (chksumScanRateStr != null && chksumScanRateStr.length() > 0) {
+			this.chksumScanRate = Long.valueOf(chksumScanRateStr);
+		} else if (propties != null && propties.chksumScanRate > 0) {
+			this.chksumScanRate = propties.chksumScanRate;
+		}
+
 		ChangeManager.setBasePath(this.dir, null);
+		if (this.chunkStore) {
+			ChunkStore.open(ChangeManager.getChangelogDir(), chunkStoreSize);
+		}
+		ChksumCache.open(ChangeManager.getChangelogDir(), chksumCacheSize);
+		DigestWatcher.open(ChangeManager.getBaseDir(), chksumScanRate);
 		instance = this;
 	}
 
@@ -125,13 +261,27 @@ public class TcpServer {
 		}
 
 		alived = true;
+		startStats();
+
+		if (ENGINE_NIO.equalsIgnoreCase(engine)) {
+			startNio();
+			return;
+		}
 
 		server = createServerSocket(port);
-		handlePool = Executors.newFixedThreadPool(maxHandleThreads, new NamedThreadFactory("Handler"));
+		final boolean virtual = virtualThreads && NamedThreadFactory.isVirtualSupported();
+		if (virtualThreads && !virtual) {
+			logger.warn("virtual threads not supported by JVM {}, use {} platform handlers.", System.getProperty("java.version"), maxHandleThreads);
+		}
+		handlePool = NamedThreadFactory.newExecutor("Handler", maxHandleThreads, virtual);
 		Runnable acceptRunnable = new Runnable() {
 			@Override
 			public void run() {
-				logger.info("TcpServer on port {} started, with {} handlers. ", port, maxHandleThreads);
+				if (virtual) {
+					logger.info("TcpServer on port {} started, with virtual thread handlers. ", port);
+				} else {
+					logger.info("TcpServer on port {} started, with {} handlers. ", port, maxHandleThreads);
+				}
 				while (alived) {
 					try {
 						Socket s = server.accept();
@@ -179,12 +329,94 @@ public class TcpServer {
 
 	}
 
+	/**
+	 * NIO引擎: 接入线程轮流把连接分派给各事件循环, 处理器在handlePool中执行.
+	 */
+	private void startNio() {
+		serverChannel = createServerChannel(port);
+		handlePool = NamedThreadFactory.newExecutor("Handler", maxHandleThreads, virtualThreads && NamedThreadFactory.isVirtualSupported());
+		reactors = new ServReactor[ioThreads > 0 ? ioThreads : 1];
+		NamedThreadFactory factory = new NamedThreadFactory("Reactor");
+		for (int i = 0; i < reactors.length; i++) {
+			try {
+				reactors[i] = new ServReactor(instance, handlePool);
+			} catch (IOException e) {
+				throw new RuntimeException("Create TcpServer reactor failed.", e);
+			}
+			factory.newThread(reactors[i]).start();
+		}
+
+		logger.info("TcpServer on port {} started, with {} reactors and {} handlers. ", port, reactors.length, maxHandleThreads);
+		int next = 0;
+		while (alived) {
+			try {
+				SocketChannel ch = serverChannel.accept();
+				if (ch != null) {
+					logger.debug("Accepted connection {}", ch);
+					ch.configureBlocking(false);
+					ch.socket().setTcpNoDelay(true);
+					reactors[next].register(ch);
+					next = (next + 1) % reactors.length;
+				}
+			} catch (Throwable thr) {
+				if (alived) {
+					logger.warn("TcpServer accept on port [{}] failed.", port, thr);
+				}
+			}
+		}
+	}
+
+	/**
+	 * 定时输出缓冲池统计, 无新的借出时不输出; 同时保存有变化的摘要索引.
+	 */
+	private void startStats() {
+		if (statsTimer != null) {
+			return;
+		}
+		statsTimer = Executors.newSingleThreadScheduledExecutor(new NamedThreadFactory("Stats"));
+		statsTimer.scheduleAtFixedRate(new Runnable() {
+			private long lastLeases = 0;
+
+			@Override
+			public void run() {
+				long leases = BufferPool.get().getLeases();
+				if (leases != lastLeases) {
+					lastLeases = leases;
+					logger.info("buffer pool {}", BufferPool.get().getStats());
+				}
+				ChksumCache c = ChksumCache.get();
+				if (c != null) {
+					c.flush();
+				}
+			}
+		}, STATS_INTERVAL_SEC, STATS_INTERVAL_SEC, TimeUnit.SECONDS);
+	}
+
 	public void stop() {
 		alived = false;
+		if (statsTimer != null) {
+			statsTimer.shutdown();
+			statsTimer = null;
+		}
 		if (acceptThread != null) {
 			acceptThread.interrupt();
 			acceptThread = null;
 		}
+		if (serverChannel != null) {
+			try {
+				serverChannel.close();
+			} catch (IOException e) {
+			}
+			serverChannel = null;
+		}
+		if (reactors != null) {
+			for (ServReactor r : reactors) {
+				if (r != null) {
+					r.stop();
+				}
+			}
+			reactors = null;
+		}
 		if (server != null) {
 			try {
 				server.close();
@@ -196,7 +428,11 @@ public class TcpServer {
 			handlePool.shutdown();
 			handlePool = null;
 		}
-		logger.warn("TcpServer was stopped.");
+		ChunkStore.close();
+		DigestWatcher.close();
+		ChksumCache.close();
+		ChangeManager.close();
+		logger.warn("TcpServer was stopped, buffer pool {}", BufferPool.get().getStats());
 	}
 
 	public int getPort() {
@@ -230,11 +466,18 @@ public class TcpServer {
 	public boolean isDebug() {
 		return debug;
 	}
+
+	public boolean isCompress() {
+		return compress;
+	}
 	
+	/**
+	 * 通过ServerSocketChannel创建, 接入的Socket带有通道, 下载可使用FileChannel.transferTo.
+	 */
 	private ServerSocket createServerSocket(int port) {
 		ServerSocket s;
 		try {
-			s = new ServerSocket();
+			s = ServerSocketChannel.open().socket();
 			s.setReuseAddress(true);
 			s.bind(new InetSocketAddress(port));
 			return s;
@@ -244,6 +487,18 @@ public class TcpServer {
 		}
 	}
 
+	private ServerSocketChannel createServerChannel(int port) {
+		try {
+			ServerSocketChannel s = ServerSocketChannel.open();
+			s.socket().setReuseAddress(true);
+			s.socket().bind(new InetSocketAddress(port), NIO_BACKLOG);
+			return s;
+		} catch (Throwable e) {
+			logger.error("Create TcpServer on port {} IOException.", port, e);
+			throw new RuntimeException("Create TcpServer bind on port " + port + " failed.", e);
+		}
+	}
+
 	private void closeServerSocket(ServerSocket s) {
 		if (s == null) {
 			return;
@@ -0,0 +1,209 @@
+package com.ping.file.util;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 数据块缓冲池.
+ * <p>
+ * 按2的幂分级(1KB ~ 4MB)复用byte[]和ByteBuffer, 借出的缓冲可能长于申请长度, 有效长度由调用方记录.<br>
+ * 池内缓冲(借出 + 空闲)总量受上限约束, 超出上限或超过最大级别的申请直接分配, 归还时由GC回收.<br>
+ * 缓冲归还后调用方不得再访问, 也不得重复归还.
+ *
+ * @author lawnstein.chan
+ * @version $Revision:$
+ */
+public final class BufferPool {
+	public static final long DEFAULT_MAX_BYTES = 64L * 1024 * 1024;
+
+	private static final int MIN_CLASS_SHIFT = 10;
+	private static final int MAX_CLASS_SHIFT = 22;
+	private static final int CLASS_COUNT = MAX_CLASS_SHIFT - MIN_CLASS_SHIFT + 1;
+
+	private static volatile BufferPool instance = new BufferPool(DEFAULT_MAX_BYTES, false);
+
+	private final long maxBytes;
+	private final boolean direct;
+
+	private final List<Queue<byte[]>> arrays;
+	private final List<Queue<ByteBuffer>> buffers;
+
+	/**
+	 * 池内空闲字节数.
+	 */
+	private final AtomicLong idleBytes = new AtomicLong();
+	/**
+	 * 已借出未归还的字节数.
+	 */
+	private final AtomicLong outstandingBytes = new AtomicLong();
+	private final AtomicLong peakBytes = new AtomicLong();
+	private final AtomicLong leases = new AtomicLong();
+	private final AtomicLong hits = new AtomicLong();
+	private final AtomicLong allocations = new AtomicLong();
+	private final AtomicLong unpooled = new AtomicLong();
+
+	private BufferPool(long maxBytes, boolean direct) {
+		this.maxBytes = maxBytes;
+		this.direct = direct;
+		this.arrays = new ArrayList<Queue<byte[]>>(CLASS_COUNT);
+		this.buffers = new ArrayList<Queue<ByteBuffer>>(CLASS_COUNT);
+		for (int i = 0; i < CLASS_COUNT; i++) {
+			arrays.add(new ConcurrentLinkedQueue<byte[]>());
+			buffers.add(new ConcurrentLinkedQueue<ByteBuffer>());
+		}
+	}
+
+	public static BufferPool get() {
+		return instance;
+	}
+
+	/**
+	 * 按配置重建全局缓冲池, 应在传输开始前调用.
+	 *
+	 * @param maxBytes 池内缓冲总量上限, 0为不池化.
+	 * @param direct   leaseBuffer是否分配直接内存.
+	 */
+	public static void configure(long maxBytes, boolean direct) {
+		instance = new BufferPool(maxBytes < 0 ? 0 : maxBytes, direct);
+	}
+
+	public boolean isDirect() {
+		return direct;
+	}
+
+	/**
+	 * 借出长度不小于size的数组.
+	 */
+	public byte[] lease(int size) {
+		int c = classOf(size);
+		leases.incrementAndGet();
+		byte[] b = c < 0 ? null : arrays.get(c).poll();
+		if (b != null) {
+			idleBytes.addAndGet(-b.length);
+			hits.incrementAndGet();
+		} else if (c >= 0 && reserve(classSize(c))) {
+			b = new byte[classSize(c)];
+			allocations.incrementAndGet();
+		} else {
+			b = new byte[size];
+			unpooled.incrementAndGet();
+		}
+		leased(b.length);
+		return b;
+	}
+
+	public void release(byte[] b) {
+		if (b == null) {
+			return;
+		}
+		outstandingBytes.addAndGet(-b.length);
+		int c = classOf(b.length);
+		if (c >= 0 && classSize(c) == b.length && retain(b.length)) {
+			arrays.get(c).offer(b);
+		}
+	}
+
+	/**
+	 * 借出容量不小于size的缓冲, limit为size; 直接内存或堆内存由配置决定.
+	 */
+	public ByteBuffer leaseBuffer(int size) {
+		int c = classOf(size);
+		leases.incrementAndGet();
+		ByteBuffer b = c < 0 ? null : buffers.get(c).poll();
+		if (b != null) {
+			idleBytes.addAndGet(-b.capacity());
+			hits.incrementAndGet();
+		} else if (c >= 0 && reserve(classSize(c))) {
+			b = allocate(classSize(c));
+			allocations.incrementAndGet();
+		} else {
+			b = allocate(size);
+			unpooled.incrementAndGet();
+		}
+		leased(b.capacity());
+		b.limit(size);
+		return b;
+	}
+
+	public void release(ByteBuffer b) {
+		if (b == null) {
+			return;
+		}
+		outstandingBytes.addAndGet(-b.capacity());
+		int c = classOf(b.capacity());
+		if (b.isDirect() == direct && c >= 0 && classSize(c) == b.capacity() && retain(b.capacity())) {
+			b.clear();
+			buffers.get(c).offer(b);
+		}
+	}
+
+	public String getStats() {
+		return (direct ? "direct" : "heap") + ", max " + maxBytes + ", outstanding " + outstandingBytes.get() + ", peak " + peakBytes.get()
+				+ ", idle " + idleBytes.get() + ", leases " + leases.get() + ", hits " + hits.get() + ", allocations " + allocations.get()
+				+ ", unpooled " + unpooled.get();
+	}
+
+	public long getOutstandingBytes() {
+		return outstandingBytes.get();
+	}
+
+	public long getPeakBytes() {
+		return peakBytes.get();
+	}
+
+	public long getLeases() {
+		return leases.get();
+	}
+
+	public long getAllocations() {
+		return allocations.get();
+	}
+
+	private ByteBuffer allocate(int size) {
+		return direct ? ByteBuffer.allocateDirect(size) : ByteBuffer.allocate(size);
+	}
+
+	private void leased(int size) {
+		long now = outstandingBytes.addAndGet(size);
+		long peak;
+		while (now > (peak = peakBytes.get()) && !peakBytes.compareAndSet(peak, now)) {
+		}
+	}
+
+	/**
+	 * 新分配池化缓冲前检查总量上限.
+	 */
+	private boolean reserve(int size) {
+		return outstandingBytes.get() + idleBytes.get() + size <= maxBytes;
+	}
+
+	/**
+	 * 归还时检查总量上限, 超出上限的缓冲丢弃.
+	 */
+	private boolean retain(int size) {
+		if (outstandingBytes.get() + idleBytes.get() + size > maxBytes) {
+			return false;
+		}
+		idleBytes.addAndGet(size);
+		return true;
+	}
+
+	private static int classOf(int size) {
+		if (size <= 0) {
+			return 0;
+		}
+		int shift = 32 - Integer.numberOfLeadingZeros(size - 1);
+		if (shift > MAX_CLASS_SHIFT) {
+			return -1;
+		}
+		return shift < MIN_CLASS_SHIFT ? 0 : shift - MIN_CLASS_SHIFT;
+	}
+
+	private static int classSize(int c) {
+		return 1 << (c + MIN_CLASS_SHIFT);
+	}
+}
@@ -1,9 +1,14 @@
 
 package com.ping.file.util;
 
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
 /**
  * 文件摘要算法.
- * 
+ * <p>
+ * 摘要以"算法名小写:十六进制"表示, SHA-512不带前缀以兼容已有的变更记录; CRC32C和XXH64为非加密的快速算法, 仅用于变化检测.
+ *
  * @author lawnstein.chan
  * @version $Revision:$
  */
@@ -11,7 +16,9 @@ public enum CheckSumAlgoType {
 MD5("MD5"),
 SHA_256("SHA-256"),
 SHA_512("SHA-512"),
-SHA_1("SHA1");
+SHA_1("SHA1"),
+CRC32C("CRC32C"),
+XXH64("XXH64");
 
 private String name;
 
@@ -28,4 +35,49 @@ public void setName(String name) {
 	this.name = name;
 }
 
-}
\ No newline at end of file
+/**
+ * 摘要前缀, SHA-512为空.
+ */
+public String getPrefix() {
+	return this == SHA_512 ? "" : name.toLowerCase() + ":";
+}
+
+public MessageDigest newDigest() throws NoSuchAlgorithmException {
+	if (this == CRC32C) {
+		return new Crc32cDigest();
+	}
+	if (this == XXH64) {
+		return new Xxh64Digest();
+	}
+	return MessageDigest.getInstance(name);
+}
+
+/**
+ * 按算法名(忽略大小写, 可省略'-')查找, 未知时为null.
+ */
+public static CheckSumAlgoType forName(String name) {
+	if (name == null) {
+		return null;
+	}
+	String n = name.trim().replace("-", "");
+	for (CheckSumAlgoType t : values()) {
+		if (t.name.replace("-", "").equalsIgnoreCase(n)) {
+			return t;
+		}
+	}
+	return null;
+}
+
+/**
+ * 由摘要前缀确定算法, 无前缀或未知前缀为SHA-512.
+ */
+public static CheckSumAlgoType of(String chksum) {
+	int i = chksum == null ? -1 : chksum.indexOf(':');
+	if (i <= 0) {
+		return SHA_512;
+	}
+	CheckSumAlgoType t = forName(chksum.substring(0, i));
+	return t == null ? SHA_512 : t;
+}
+
+}
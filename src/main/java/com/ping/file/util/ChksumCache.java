@@ -0,0 +1,388 @@
+package com.ping.file.util;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * 文件摘要缓存.
+ * <p>
+ * 客户端用于判断本地文件变化, 服务端用作基础目录的摘要索引. 按规范路径记录文件大小, 修改时间, 文件标识(inode等)和摘要, 三者均未变化时直接返回记录的摘要, 不再读取文件.
+ * 每个算法各保留一个摘要, 服务端按不同客户端的算法计算时互不覆盖.<br>
+ * 内存中至多保留maxEntries条, 超出时淘汰最久未使用的条目. 退出时以二进制格式整体写入changelog目录下的chksums.dat,
+ * 启动时顺序读入. 修改时间距计算时刻不足RACY_WINDOW的文件可能在同一时间粒度内再次被修改, 不缓存.<br>
+ * 同一文件(路径, 大小, 修改时间, 文件标识, 算法均相同)的并发计算只执行一次, 其余调用方等待并共用其结果, 未启用缓存时同样生效.
+ *
+ * @author lawnstein.chan
+ * @version $Revision:$
+ */
+public class ChksumCache {
+	private static final Logger logger = LoggerFactory.getLogger(ChksumCache.class);
+	public static final String CACHE_NAME = "chksums.dat";
+	private static final int MAGIC = 0x70636b32;
+	/**
+	 * 每个文件只记录一个摘要的旧格式, 仍可读入.
+	 */
+	private static final int MAGIC_V1 = 0x70636b31;
+	private static final long RACY_WINDOW = 2000L;
+
+	private static ChksumCache instance = null;
+	/**
+	 * 进行中的摘要计算.
+	 */
+	private static final ConcurrentHashMap<String, FutureTask<Result>> flights = new ConcurrentHashMap<String, FutureTask<Result>>();
+
+	/**
+	 * 文件属性及各算法的摘要, 按算法序号索引.
+	 */
+	private static class Attrs {
+		final long size;
+		final long mtime;
+		final String fileKey;
+		final String[] chksums = new String[CheckSumAlgoType.values().length];
+
+		Attrs(long size, long mtime, String fileKey) {
+			this.size = size;
+			this.mtime = mtime;
+			this.fileKey = fileKey;
+		}
+
+		boolean matches(Attrs o) {
+			return size == o.size && mtime == o.mtime && fileKey.equals(o.fileKey);
+		}
+
+		String get(CheckSumAlgoType algo) {
+			return chksums[algo.ordinal()];
+		}
+
+		void put(String chksum) {
+			chksums[CheckSumAlgoType.of(chksum).ordinal()] = chksum;
+		}
+
+		int count() {
+			int n = 0;
+			for (String c : chksums) {
+				if (c != null) {
+					n++;
+				}
+			}
+			return n;
+		}
+	}
+
+	/**
+	 * 摘要及开始读取文件的时刻.
+	 */
+	private static class Result {
+		final String chksum;
+		final long start;
+
+		Result(String chksum, long start) {
+			this.chksum = chksum;
+			this.start = start;
+		}
+	}
+
+	private final String cachePath;
+	private final Map<String, Attrs> entries;
+	private boolean dirty = false;
+	private long hits = 0;
+	private long misses = 0;
+
+	private ChksumCache(String dir, final int maxEntries) {
+		this.cachePath = dir + CACHE_NAME;
+		this.entries = new LinkedHashMap<String, Attrs>(16, 0.75f, true) {
+			private static final long serialVersionUID = 1L;
+
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<String, Attrs> eldest) {
+				return size() > maxEntries;
+			}
+		};
+	}
+
+	/**
+	 * 启用摘要缓存, dir为缓存文件目录.
+	 */
+	public static synchronized void open(String dir, int maxEntries) {
+		if (instance != null || maxEntries <= 0) {
+			return;
+		}
+		ChksumCache c = new ChksumCache(dir, maxEntries);
+		c.load();
+		instance = c;
+	}
+
+	/**
+	 * @return 未启用时为null.
+	 */
+	public static ChksumCache get() {
+		return instance;
+	}
+
+	/**
+	 * 保存并停用缓存.
+	 */
+	public static synchronized void close() {
+		if (instance != null) {
+			instance.save();
+			logger.debug("chksum cache {} entries, {} hits, {} misses.", instance.size(), instance.hits, instance.misses);
+			instance = null;
+		}
+	}
+
+	/**
+	 * 用本端算法计算文件摘要, 启用缓存时优先使用缓存.
+	 */
+	public static String chksum(String filename) {
+		return chksum(filename, Utils.getChksumAlgo());
+	}
+
+	/**
+	 * 用与reference相同的算法计算文件摘要, 启用缓存时优先使用缓存.
+	 */
+	public static String chksumAs(String filename, String reference) {
+		return chksum(filename, CheckSumAlgoType.of(reference));
+	}
+
+	public static String chksum(String filename, CheckSumAlgoType algo) {
+		ChksumCache c = instance;
+		if (c != null) {
+			return c.lookup(filename, algo);
+		}
+		String path = Utils.getCanonicalPath(filename);
+		Attrs now = stat(path);
+		return now == null ? Utils.chksum(filename, algo) : compute(path, now, algo).chksum;
+	}
+
+	/**
+	 * 计算文件摘要, 已有相同文件的计算进行中时等待其结果.
+	 */
+	private static Result compute(final String path, Attrs attrs, final CheckSumAlgoType algo) {
+		String key = path + '|' + attrs.size + '|' + attrs.mtime + '|' + attrs.fileKey + '|' + algo.name();
+		FutureTask<Result> task = new FutureTask<Result>(new Callable<Result>() {
+			@Override
+			public Result call() {
+				long start = System.currentTimeMillis();
+				return new Result(Utils.chksum(path, algo), start);
+			}
+		});
+		FutureTask<Result> running = flights.putIfAbsent(key, task);
+		if (running == null) {
+			running = task;
+			try {
+				task.run();
+			} finally {
+				flights.remove(key, task);
+			}
+		} else {
+			logger.debug("chksum of {} in progress, wait for it.", path);
+		}
+		boolean interrupted = false;
+		try {
+			while (true) {
+				try {
+					return running.get();
+				} catch (InterruptedException e) {
+					interrupted = true;
+				} catch (ExecutionException e) {
+					return new Result(null, 0);
+				}
+			}
+		} finally {
+			if (interrupted) {
+				Thread.currentThread().interrupt();
+			}
+		}
+	}
+
+	public synchronized int size() {
+		return entries.size();
+	}
+
+	/**
+	 * 文件已有与当前属性一致的本端算法摘要.
+	 */
+	public boolean isCached(String filename) {
+		String path = Utils.getCanonicalPath(filename);
+		Attrs now = stat(path);
+		if (now == null) {
+			return false;
+		}
+		synchronized (this) {
+			Attrs e = entries.get(path);
+			return e != null && e.matches(now) && e.get(Utils.getChksumAlgo()) != null;
+		}
+	}
+
+	/**
+	 * 丢弃文件的摘要, path为规范路径.
+	 */
+	public synchronized void invalidate(String path) {
+		if (entries.remove(path) != null) {
+			dirty = true;
+		}
+	}
+
+	/**
+	 * 有变化时写入缓存文件.
+	 */
+	public void flush() {
+		save();
+	}
+
+	private static Attrs stat(String path) {
+		try {
+			BasicFileAttributes attrs = Files.readAttributes(Paths.get(path), BasicFileAttributes.class);
+			if (!attrs.isRegularFile()) {
+				return null;
+			}
+			Object key = attrs.fileKey();
+			return new Attrs(attrs.size(), attrs.lastModifiedTime().toMillis(), key == null ? "" : key.toString());
+		} catch (IOException | RuntimeException e) {
+			return null;
+		}
+	}
+
+	private String lookup(String filename, CheckSumAlgoType algo) {
+		String path = Utils.getCanonicalPath(filename);
+		Attrs before = stat(path);
+		if (before == null) {
+			return Utils.chksum(filename, algo);
+		}
+		synchronized (this) {
+			Attrs e = entries.get(path);
+			if (e != null && e.matches(before) && e.get(algo) != null) {
+				hits++;
+				return e.get(algo);
+			}
+			misses++;
+		}
+		Result r = compute(path, before, algo);
+		String chksum = r.chksum;
+		Attrs after = stat(path);
+		if (chksum != null && after != null && after.matches(before) && r.start - after.mtime >= RACY_WINDOW) {
+			synchronized (this) {
+				// 文件未变化时补充该算法的摘要, 否则以新属性替换
+				Attrs e = entries.get(path);
+				if (e == null || !e.matches(after)) {
+					e = after;
+					entries.put(path, e);
+				}
+				e.put(chksum);
+				dirty = true;
+			}
+		}
+		return chksum;
+	}
+
+	private void load() {
+		File f = new File(cachePath);
+		if (!f.exists()) {
+			return;
+		}
+		DataInputStream in = null;
+		try {
+			in = new DataInputStream(new BufferedInputStream(new FileInputStream(f), 1024 * 1024));
+			int magic = in.readInt();
+			if (magic != MAGIC && magic != MAGIC_V1) {
+				throw new IOException("bad magic");
+			}
+			int count = in.readInt();
+			for (int i = 0; i < count; i++) {
+				String path = in.readUTF();
+				long size = in.readLong();
+				long mtime = in.readLong();
+				String fileKey = in.readUTF();
+				Attrs e = new Attrs(size, mtime, fileKey);
+				int n = magic == MAGIC_V1 ? 1 : in.readUnsignedByte();
+				for (int j = 0; j < n; j++) {
+					e.put(in.readUTF());
+				}
+				entries.put(path, e);
+			}
+			if (magic == MAGIC_V1) {
+				dirty = true;
+			}
+			logger.debug("chksum cache {} loaded, {} entries.", cachePath, entries.size());
+		} catch (IOException e) {
+			logger.warn("chksum cache {} load failed, {}", cachePath, e.getMessage());
+			entries.clear();
+			dirty = true;
+		} finally {
+			if (in != null) {
+				try {
+					in.close();
+				} catch (IOException e) {
+				}
+			}
+		}
+	}
+
+	/**
+	 * 按最久未使用到最近使用的顺序写入, 加载时超出上限的旧条目先被淘汰.
+	 */
+	private synchronized void save() {
+		if (!dirty) {
+			return;
+		}
+		String tempPath = cachePath + ".tmp";
+		if (!Utils.mkdirsForFile(tempPath)) {
+			logger.warn("create dir for chksum cache {} failed.", cachePath);
+			return;
+		}
+		DataOutputStream out = null;
+		try {
+			out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tempPath), 1024 * 1024));
+			out.writeInt(MAGIC);
+			out.writeInt(entries.size());
+			Iterator<Map.Entry<String, Attrs>> itr = entries.entrySet().iterator();
+			while (itr.hasNext()) {
+				Map.Entry<String, Attrs> me = itr.next();
+				Attrs e = me.getValue();
+				out.writeUTF(me.getKey());
+				out.writeLong(e.size);
+				out.writeLong(e.mtime);
+				out.writeUTF(e.fileKey);
+				out.writeByte(e.count());
+				for (String c : e.chksums) {
+					if (c != null) {
+						out.writeUTF(c);
+					}
+				}
+			}
+			out.close();
+			out = null;
+			Utils.replaceFile(tempPath, cachePath);
+			dirty = false;
+		} catch (IOException e) {
+			logger.warn("chksum cache {} save failed, {}", cachePath, e.getMessage());
+			Utils.fileDelete(tempPath);
+		} finally {
+			if (out != null) {
+				try {
+					out.close();
+				} catch (IOException e) {
+				}
+			}
+		}
+	}
+}
@@ -0,0 +1,114 @@
+package com.ping.file.util;
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Locale;
+import java.util.Set;
+import java.util.zip.Deflater;
+
+/**
+ * 数据块流式压缩.
+ * <p>
+ * 每个文件一个Deflater, 数据块以SYNC_FLUSH结束, 字典跨数据块延续.<br>
+ * 单个数据块压缩率高于MAX_RATIO时放弃压缩, 调用方发送原始数据块, 压缩上下文重置, 接收方收到原始数据块时同步重置;
+ * 连续MAX_MISSES个数据块不可压缩后该文件不再压缩.
+ *
+ * @author lawnstein.chan
+ * @version $Revision:$
+ */
+public class ChunkCompressor {
+	public static final String DEFLATE = "deflate";
+
+	/**
+	 * 压缩后与压缩前长度之比的上限.
+	 */
+	public static final double MAX_RATIO = 0.9;
+	protected static final int MAX_MISSES = 2;
+	protected static final int SAMPLE_SIZE = 64 * 1024;
+
+	/**
+	 * 已压缩格式的扩展名, 不做压缩.
+	 */
+	private static final Set<String> INCOMPRESSIBLE = new HashSet<String>(Arrays.asList("zip", "gz", "tgz", "bz2", "xz", "7z", "rar",
+			"zst", "lz4", "jar", "war", "apk", "jpg", "jpeg", "png", "gif", "webp", "mp3", "mp4", "mkv", "avi", "mov", "flac", "docx",
+			"xlsx", "pptx"));
+
+	private final Deflater deflater = new Deflater(Deflater.BEST_SPEED, true);
+	private int misses = 0;
+
+	public boolean isEnabled() {
+		return misses < MAX_MISSES;
+	}
+
+	/**
+	 * 压缩src[0, length)到dst.
+	 *
+	 * @return 压缩后长度, 压缩无收益时为-1, 调用方发送原始数据块.
+	 */
+	public int compress(byte[] src, int length, byte[] dst) {
+		if (!isEnabled() || length == 0) {
+			return -1;
+		}
+		int limit = Math.min(dst.length, (int) (length * MAX_RATIO));
+		deflater.setInput(src, 0, length);
+		int n = 0;
+		while (n < limit) {
+			int k = deflater.deflate(dst, n, limit - n, Deflater.SYNC_FLUSH);
+			n += k;
+			if (n < limit) {
+				misses = 0;
+				return n;
+			}
+		}
+		deflater.reset();
+		misses++;
+		return -1;
+	}
+
+	public void end() {
+		deflater.end();
+	}
+
+	/**
+	 * 扩展名不属于已压缩格式, 且文件开头SAMPLE_SIZE字节的压缩率不高于MAX_RATIO.
+	 */
+	public static boolean isCompressible(String path) {
+		int dot = path.lastIndexOf('.');
+		if (dot >= 0 && INCOMPRESSIBLE.contains(path.substring(dot + 1).toLowerCase(Locale.ENGLISH))) {
+			return false;
+		}
+		RandomAccessFile raf = null;
+		byte[] sample = BufferPool.get().lease(SAMPLE_SIZE);
+		byte[] out = BufferPool.get().lease(SAMPLE_SIZE);
+		Deflater d = new Deflater(Deflater.BEST_SPEED, true);
+		try {
+			raf = new RandomAccessFile(path, "r");
+			int n = raf.read(sample, 0, SAMPLE_SIZE);
+			if (n <= 0) {
+				return false;
+			}
+			d.setInput(sample, 0, n);
+			d.finish();
+			int limit = (int) (n * MAX_RATIO);
+			int c = 0;
+			while (!d.finished() && c < limit) {
+				c += d.deflate(out, c, limit - c);
+			}
+			return d.finished() && c < limit;
+		} catch (IOException e) {
+			return false;
+		} finally {
+			d.end();
+			BufferPool.get().release(sample);
+			BufferPool.get().release(out);
+			if (raf != null) {
+				try {
+					raf.close();
+				} catch (IOException e) {
+				}
+			}
+		}
+	}
+}
@@ -0,0 +1,56 @@
+package com.ping.file.util;
+
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+/**
+ * 数据块流式解压, 与ChunkCompressor对应, 每个文件一个Inflater.
+ *
+ * @author lawnstein.chan
+ * @version $Revision:$
+ */
+public class ChunkDecompressor {
+	private final Inflater inflater = new Inflater(true);
+	private final byte[] trailer = new byte[1];
+
+	/**
+	 * 解压src[0, length)到dst, 解压后长度应为rawLength.
+	 */
+	public void decompress(byte[] src, int length, byte[] dst, int rawLength) throws DataFormatException {
+		inflater.setInput(src, 0, length);
+		int n = 0;
+		while (n < rawLength) {
+			int k = inflater.inflate(dst, n, rawLength - n);
+			if (k == 0 && (inflater.needsInput() || inflater.needsDictionary() || inflater.finished())) {
+				break;
+			}
+			n += k;
+		}
+		/**
+		 * 输出已满时SYNC_FLUSH结尾的空块可能尚未消费.
+		 */
+		while (n == rawLength && inflater.getRemaining() > 0) {
+			int remaining = inflater.getRemaining();
+			if (inflater.inflate(trailer) > 0) {
+				throw new DataFormatException("inflate exceed " + rawLength + " byte(s)");
+			}
+			if (inflater.getRemaining() == remaining) {
+				break;
+			}
+		}
+		if (n != rawLength || inflater.getRemaining() > 0) {
+			throw new DataFormatException("inflate " + n + " byte(s), expect " + rawLength);
+		}
+	}
+
+	/**
+	 * 收到原始数据块, 发送方已重置压缩上下文.
+	 */
+	public void reset() {
+		inflater.reset();
+	}
+
+	public void end() {
+		inflater.end();
+	}
+}
@@ -1,15 +1,19 @@
 
 package com.ping.file.util;
 
+import java.io.EOFException;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
 import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.util.Arrays;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import com.ping.file.protocol.Packet;
+import com.ping.file.protocol.PacketCodec;
 
 /**
  * Socket操作.
@@ -19,7 +23,6 @@ import com.ping.file.protocol.Packet;
  */
 public class ClientSocket {
 	private static final Logger logger = LoggerFactory.getLogger(ClientSocket.class);
-	public static final int GRANULARITY = 5;
 
 	public static Socket connect(String address, int port) throws Exception {
 		return connect(address, port, true, 0, 30000);
@@ -27,6 +30,7 @@ public class ClientSocket {
 
 	public static Socket connect(String address, int port, boolean soLingerOn, int soLingerNum, int soTimeout) throws Exception {
 		Socket socket = new Socket(address, port);
+		socket.setTcpNoDelay(true);
 		socket.setSoLinger(soLingerOn, soLingerNum);
 		socket.setSoTimeout(soTimeout);
 		return socket;
@@ -35,8 +39,12 @@ public class ClientSocket {
 	public static void close(Socket socket) {
 		if (socket != null && !socket.isClosed()) {
 			try {
-				socket.shutdownOutput();
-				socket.shutdownInput();
+				if (!socket.isOutputShutdown()) {
+					socket.shutdownOutput();
+				}
+				if (!socket.isInputShutdown()) {
+					socket.shutdownInput();
+				}
 				socket.close();
 			} catch (IOException arg1) {
 				logger.error("close socket " + socket + " IOException " + arg1);
@@ -46,67 +54,34 @@ public class ClientSocket {
 	}
 
 	public static byte[] readBytes(Socket connect, int timeout) throws Exception {
-		Object bytes = null;
-
+		long deadline = deadline(timeout < 0 ? 10 : timeout);
+		InputStream ins = connect.getInputStream();
+		int first;
 		try {
-			boolean e = false;
-			int leftime = (timeout < 0 ? 10 : timeout) * 1000;
-
-			for (InputStream ins = connect.getInputStream(); leftime > 0; leftime -= 5) {
-				int e1;
-				if ((e1 = ins.available()) > 0) {
-					byte[] bytes1 = new byte[e1];
-					ins.read(bytes1, 0, e1);
-					return bytes1;
-				}
-
-				Thread.sleep(5L);
-			}
-
-			if (leftime <= 0) {
-				throw new RuntimeException("read timeout " + timeout + " second(s).");
-			} else {
-				return (byte[]) bytes;
-			}
-		} catch (IOException arg5) {
-			throw arg5;
-		} catch (InterruptedException arg6) {
-			throw arg6;
+			setReadTimeout(connect, deadline);
+			first = ins.read();
+		} catch (SocketTimeoutException e) {
+			throw new RuntimeException("read timeout " + timeout + " second(s).");
 		}
+		if (first < 0) {
+			throw new RuntimeException("read bytes exception: connection closed by peer.");
+		}
+
+		int available = ins.available();
+		byte[] bytes = new byte[1 + available];
+		bytes[0] = (byte) first;
+		int r = available > 0 ? ins.read(bytes, 1, available) : 0;
+		return r == available ? bytes : Arrays.copyOf(bytes, 1 + Math.max(r, 0));
 	}
 
 	public static int read(Socket connect, byte[] bytes, int pos, int timeout) throws Exception {
+		long deadline = deadline(timeout < 0 ? 10 : timeout);
+		InputStream ins = connect.getInputStream();
 		try {
-			boolean e = false;
-			boolean rsize = false;
-			int leftime = (timeout < 0 ? 10 : timeout) * 1000;
-
-			for (InputStream ins = connect.getInputStream(); leftime > 0; leftime -= 5) {
-				int e1;
-				if ((e1 = ins.available()) > 0) {
-					int rsize1;
-					if (e1 > bytes.length - pos) {
-						rsize1 = bytes.length - pos;
-					} else {
-						rsize1 = e1;
-					}
-
-					int r = ins.read(bytes, pos, rsize1);
-					return r;
-				}
-
-				Thread.sleep(5L);
-			}
-
-			if (leftime <= 0) {
-				throw new RuntimeException("read timeout " + timeout + " second(s).");
-			} else {
-				return -1;
-			}
-		} catch (IOException arg8) {
-			throw arg8;
-		} catch (InterruptedException arg9) {
-			throw arg9;
+			setReadTimeout(connect, deadline);
+			return ins.read(bytes, pos, bytes.length - pos);
+		} catch (SocketTimeoutException e) {
+			throw new RuntimeException("read timeout " + timeout + " second(s).");
 		}
 	}
 
@@ -115,53 +90,65 @@ public class ClientSocket {
 			return 0;
 		} else if (bytes.length < size) {
 			throw new RuntimeException("not enough byte array size " + bytes.length + " for expected size " + size);
-		} else {
-			try {
-				int e = 0;
-				boolean available = false;
-				boolean rsize = false;
-				int leftsize = size;
-				int leftime = (timeout <= 0 ? 10 : timeout) * 1000;
-
-				for (InputStream ins = connect.getInputStream(); leftime > 0; leftime -= 5) {
-					int available1;
-					if ((available1 = ins.available()) > 0) {
-						int rsize1 = leftsize;
-						if (leftsize > available1) {
-							rsize1 = available1;
-						}
-
-						int r = ins.read(bytes, pos + e, rsize1);
-						if (r < 0) {
-							throw new RuntimeException("read bytes exception: available " + available1 + ", readed " + r);
-						}
-
-						e += r;
-						leftsize -= r;
-						// logger.trace("read {} byte(s), total read {} byte(s), left {} byte(s).", new Object[] { Integer.valueOf(r), Integer.valueOf(e),
-						// Integer
-						// .valueOf(leftsize) });
-						if (leftsize <= 0) {
-							return e;
-						}
-					}
-
-					Thread.sleep(5L);
-				}
+		}
 
-				if (leftime <= 0) {
-					throw new RuntimeException("read " + size + " bytes timeout " + timeout + " seconds.");
-				} else {
-					return e;
+		long deadline = deadline(timeout <= 0 ? 10 : timeout);
+		InputStream ins = connect.getInputStream();
+		int e = 0;
+		try {
+			while (e < size) {
+				setReadTimeout(connect, deadline);
+				int r = ins.read(bytes, pos + e, size - e);
+				if (r < 0) {
+					if (e == 0) {
+						throw new EOFException("connection closed by peer.");
+					}
+					throw new RuntimeException("read bytes exception: connection closed by peer, readed " + e + "/" + size);
 				}
-			} catch (IOException arg11) {
-				throw arg11;
-			} catch (InterruptedException arg12) {
-				throw arg12;
+				e += r;
 			}
+		} catch (SocketTimeoutException arg) {
+			throw new SocketTimeoutException("read " + size + " bytes timeout " + timeout + " seconds.");
+		}
+		return e;
+	}
+
+	/**
+	 * 探测空闲连接是否存活: 对端已关闭或收到非预期数据均视为失效.
+	 */
+	public static boolean isAlive(Socket connect) {
+		if (connect.isClosed() || !connect.isConnected() || connect.isInputShutdown() || connect.isOutputShutdown()) {
+			return false;
+		}
+		try {
+			connect.setSoTimeout(1);
+			connect.getInputStream().read();
+			return false;
+		} catch (SocketTimeoutException e) {
+			return true;
+		} catch (IOException e) {
+			return false;
 		}
 	}
 
+	/**
+	 * 读超时截止时间.
+	 */
+	private static long deadline(int timeoutSec) {
+		return System.currentTimeMillis() + timeoutSec * 1000L;
+	}
+
+	/**
+	 * 按截止时间设置SO_TIMEOUT, 使read阻塞直到数据到达或超时.
+	 */
+	private static void setReadTimeout(Socket connect, long deadline) throws IOException {
+		long leftime = deadline - System.currentTimeMillis();
+		if (leftime <= 0) {
+			throw new SocketTimeoutException();
+		}
+		connect.setSoTimeout((int) Math.min(leftime, Integer.MAX_VALUE));
+	}
+
 	public static boolean write(Socket connect, byte[] bytes, int pos, int size) throws Exception {
 		try {
 			OutputStream e = connect.getOutputStream();
@@ -173,28 +160,42 @@ public class ClientSocket {
 		}
 	}
 
+	/**
+	 * 读取一个完整的包. 在帧边界上连接被对端关闭时抛出EOFException, 读超时抛出SocketTimeoutException.<br>
+	 * 数据块读入BufferPool借出的缓冲, 有效长度为chunkLength, 调用方处理完后归还.
+	 */
 	public static Packet recvPacket(Socket s, int timeout) throws Throwable {
-		byte[] hb = new byte[Utils.HEADLENGTH];
-		int r = read(s, hb, 0, 8, timeout);
-		int isz = Integer.valueOf(new String(hb, "UTF-8"));
-		byte[] db = new byte[isz];
-		r = read(s, db, 0, isz, timeout);
-		return Packet.valueOf(db);
+		byte[] hb = new byte[PacketCodec.PRELUDE_LENGTH];
+		read(s, hb, 0, hb.length, timeout);
+		int hsz = PacketCodec.headLength(hb);
+		int csz = PacketCodec.chunkLength(hb);
+		byte[] db = new byte[hsz];
+		try {
+			read(s, db, 0, hsz, timeout);
+			Packet recv = PacketCodec.decodeHead(db, 0, hsz, csz, false);
+			if (recv.chunkLength > 0) {
+				recv.chunkBytes = BufferPool.get().lease(csz);
+				try {
+					read(s, recv.chunkBytes, 0, csz, timeout);
+				} catch (Throwable e) {
+					BufferPool.get().release(recv.chunkBytes);
+					throw e;
+				}
+			}
+			return recv;
+		} catch (EOFException e) {
+			throw new RuntimeException("read Packet exception: connection closed by peer in the middle of a frame.");
+		}
 	}
 
 	public static void sendPacket(Socket s, Packet send) throws Throwable {
 		if (send == null) {
 			return;
 		}
-		byte[] db = send.getBytes();
-		String hs = "" + db.length;
-		if (hs.length() < Utils.HEADLENGTH) {
-			hs = "00000000".substring(hs.length()) + hs;
-		}
-		byte[] hb = hs.getBytes("UTF-8");
-		ClientSocket.write(s, hb, 0, Utils.HEADLENGTH);
-		if (db.length > 0) {
-			ClientSocket.write(s, db, 0, db.length);
+		byte[] hb = PacketCodec.encodeHead(send);
+		ClientSocket.write(s, hb, 0, hb.length);
+		if (send.chunkBytes != null && send.getChunkLength() > 0) {
+			ClientSocket.write(s, send.chunkBytes, 0, send.getChunkLength());
 		}
 	}
 }
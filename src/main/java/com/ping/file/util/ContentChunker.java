@@ -0,0 +1,179 @@
+package com.ping.file.util;
+
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.Random;
+
+/**
+ * 按内容分块(CDC)的块清单.
+ * <p>
+ * 以Gear滚动哈希确定块边界: 块长达到MIN_SIZE后, 哈希高位与MASK全为0处切分, 至多MAX_SIZE; 插入或删除内容只影响附近的块.<br>
+ * 每块一个SHA-256作为全局内容标识. 序列化为每块36字节: 32字节摘要 + 4字节块长.
+ *
+ * @author lawnstein.chan
+ * @version $Revision:$
+ */
+public class ContentChunker {
+	public static final int MIN_SIZE = 4 * 1024;
+	public static final int MAX_SIZE = 64 * 1024;
+	public static final int HASH_LENGTH = 32;
+	public static final int ENTRY_LENGTH = HASH_LENGTH + 4;
+	/**
+	 * 取哈希高14位, 平均块长约MIN_SIZE + 16KB.
+	 */
+	private static final long MASK = 0x3fffL << 50;
+	private static final int READ_BUFFER_SIZE = 1024 * 1024;
+	/**
+	 * 固定种子生成, 两端必须一致.
+	 */
+	private static final long[] GEAR = new long[256];
+
+	static {
+		Random r = new Random(0x70696e6770L);
+		for (int i = 0; i < GEAR.length; i++) {
+			GEAR[i] = r.nextLong();
+		}
+	}
+
+	private int count = 0;
+	private byte[] hashes;
+	private int[] lengths;
+
+	private ContentChunker(int capacity) {
+		this.hashes = new byte[capacity * HASH_LENGTH];
+		this.lengths = new int[capacity];
+	}
+
+	public int getCount() {
+		return count;
+	}
+
+	public int getLength(int i) {
+		return lengths[i];
+	}
+
+	/**
+	 * 第i块摘要的十六进制表示.
+	 */
+	public String getHash(int i) {
+		StringBuilder sb = new StringBuilder(HASH_LENGTH * 2);
+		for (int k = i * HASH_LENGTH; k < (i + 1) * HASH_LENGTH; k++) {
+			sb.append(Character.forDigit((hashes[k] >> 4) & 0xf, 16)).append(Character.forDigit(hashes[k] & 0xf, 16));
+		}
+		return sb.toString();
+	}
+
+	/**
+	 * 第i块摘要是否等于digest.
+	 */
+	public boolean hashEquals(int i, byte[] digest) {
+		for (int k = 0; k < HASH_LENGTH; k++) {
+			if (hashes[i * HASH_LENGTH + k] != digest[k]) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * 文件分块并计算各块摘要.
+	 */
+	public static ContentChunker cut(String path) throws IOException {
+		long fileSize = Utils.filesize(path);
+		if (fileSize < 0) {
+			throw new IOException("file " + path + " not exists");
+		}
+		ContentChunker c = new ContentChunker((int) Math.min(fileSize / MIN_SIZE + 1, 1 << 16));
+		MessageDigest md = newDigest();
+		byte[] buf = BufferPool.get().lease(READ_BUFFER_SIZE);
+		InputStream is = new FileInputStream(path);
+		try {
+			long h = 0;
+			int len = 0;
+			int n;
+			while ((n = is.read(buf, 0, READ_BUFFER_SIZE)) > 0) {
+				int start = 0;
+				for (int i = 0; i < n; i++) {
+					h = (h << 1) + GEAR[buf[i] & 0xff];
+					len++;
+					if ((len >= MIN_SIZE && (h & MASK) == 0) || len >= MAX_SIZE) {
+						md.update(buf, start, i + 1 - start);
+						c.add(md.digest(), len);
+						start = i + 1;
+						h = 0;
+						len = 0;
+					}
+				}
+				md.update(buf, start, n - start);
+			}
+			if (len > 0) {
+				c.add(md.digest(), len);
+			}
+		} finally {
+			is.close();
+			BufferPool.get().release(buf);
+		}
+		return c;
+	}
+
+	private void add(byte[] digest, int length) {
+		if (count == lengths.length) {
+			lengths = Arrays.copyOf(lengths, count * 2);
+			hashes = Arrays.copyOf(hashes, count * 2 * HASH_LENGTH);
+		}
+		System.arraycopy(digest, 0, hashes, count * HASH_LENGTH, HASH_LENGTH);
+		lengths[count++] = length;
+	}
+
+	/**
+	 * 序列化后的长度.
+	 */
+	public long length() {
+		return (long) count * ENTRY_LENGTH;
+	}
+
+	/**
+	 * 序列化到target, 长度为length().
+	 */
+	public void write(byte[] target) {
+		int pos = 0;
+		for (int i = 0; i < count; i++) {
+			System.arraycopy(hashes, i * HASH_LENGTH, target, pos, HASH_LENGTH);
+			pos += HASH_LENGTH;
+			int v = lengths[i];
+			target[pos++] = (byte) (v >>> 24);
+			target[pos++] = (byte) (v >>> 16);
+			target[pos++] = (byte) (v >>> 8);
+			target[pos++] = (byte) v;
+		}
+	}
+
+	public static ContentChunker read(byte[] src, int length) {
+		if (length % ENTRY_LENGTH != 0) {
+			throw new RuntimeException("unexpected chunk list, " + length + " byte(s)");
+		}
+		ContentChunker c = new ContentChunker(length / ENTRY_LENGTH);
+		for (int pos = 0; pos < length; pos += ENTRY_LENGTH) {
+			int p = pos + HASH_LENGTH;
+			int v = ((src[p] & 0xff) << 24) | ((src[p + 1] & 0xff) << 16) | ((src[p + 2] & 0xff) << 8) | (src[p + 3] & 0xff);
+			if (v <= 0 || v > MAX_SIZE) {
+				throw new RuntimeException("unexpected chunk length " + v);
+			}
+			System.arraycopy(src, pos, c.hashes, c.count * HASH_LENGTH, HASH_LENGTH);
+			c.lengths[c.count++] = v;
+		}
+		return c;
+	}
+
+	public static MessageDigest newDigest() {
+		try {
+			return MessageDigest.getInstance("SHA-256");
+		} catch (NoSuchAlgorithmException e) {
+			throw new RuntimeException(e);
+		}
+	}
+}
@@ -0,0 +1,83 @@
+package com.ping.file.util;
+
+import java.security.MessageDigest;
+import java.util.zip.Checksum;
+
+/**
+ * CRC32C(Castagnoli)摘要, 4字节大端.
+ * <p>
+ * JDK 9+ 使用java.util.zip.CRC32C(有硬件指令加速), 通过反射创建; 低版本JDK回退为查表计算.
+ *
+ * @author lawnstein.chan
+ * @version $Revision:$
+ */
+class Crc32cDigest extends MessageDigest {
+	private static final Class<?> JDK_CRC32C;
+	private static final int[] TABLE = new int[256];
+
+	static {
+		Class<?> c = null;
+		try {
+			c = Class.forName("java.util.zip.CRC32C");
+		} catch (Throwable e) {
+			c = null;
+		}
+		JDK_CRC32C = c;
+		for (int i = 0; i < 256; i++) {
+			int crc = i;
+			for (int k = 0; k < 8; k++) {
+				crc = (crc & 1) != 0 ? (crc >>> 1) ^ 0x82F63B78 : crc >>> 1;
+			}
+			TABLE[i] = crc;
+		}
+	}
+
+	private final Checksum jdk;
+	private int crc = 0xFFFFFFFF;
+
+	Crc32cDigest() {
+		super(CheckSumAlgoType.CRC32C.getName());
+		Checksum c = null;
+		if (JDK_CRC32C != null) {
+			try {
+				c = (Checksum) JDK_CRC32C.getDeclaredConstructor().newInstance();
+			} catch (Exception e) {
+				c = null;
+			}
+		}
+		this.jdk = c;
+	}
+
+	@Override
+	protected void engineUpdate(byte input) {
+		engineUpdate(new byte[] { input }, 0, 1);
+	}
+
+	@Override
+	protected void engineUpdate(byte[] input, int offset, int len) {
+		if (jdk != null) {
+			jdk.update(input, offset, len);
+			return;
+		}
+		int c = crc;
+		for (int i = offset; i < offset + len; i++) {
+			c = (c >>> 8) ^ TABLE[(c ^ input[i]) & 0xff];
+		}
+		crc = c;
+	}
+
+	@Override
+	protected byte[] engineDigest() {
+		int v = jdk != null ? (int) jdk.getValue() : ~crc;
+		engineReset();
+		return new byte[] { (byte) (v >>> 24), (byte) (v >>> 16), (byte) (v >>> 8), (byte) v };
+	}
+
+	@Override
+	protected void engineReset() {
+		if (jdk != null) {
+			jdk.reset();
+		}
+		crc = 0xFFFFFFFF;
+	}
+}
@@ -0,0 +1,97 @@
+package com.ping.file.util;
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+import com.ping.file.protocol.DeltaCodec;
+
+/**
+ * 差量应用: 按COPY/LITERAL指令由原文件和收到的数据生成新文件.
+ * <p>
+ * 新文件写入单独的临时文件, 调用方校验摘要后替换原文件.
+ *
+ * @author lawnstein.chan
+ * @version $Revision:$
+ */
+public class DeltaApplier {
+	private static final int COPY_BUFFER_SIZE = 1024 * 1024;
+
+	private final int bs;
+	private final RandomAccessFile basis;
+	private final RandomAccessFile target;
+	private final FileChannel targetChannel;
+	private final DeltaCodec.Op op = new DeltaCodec.Op();
+	private long written = 0;
+
+	public DeltaApplier(String basisPath, String targetPath, int blockSize) throws IOException {
+		this.bs = blockSize;
+		this.basis = new RandomAccessFile(basisPath, "r");
+		RandomAccessFile t = null;
+		try {
+			t = new RandomAccessFile(targetPath, "rw");
+			t.setLength(0);
+		} catch (IOException e) {
+			basis.close();
+			throw e;
+		}
+		this.target = t;
+		this.targetChannel = t.getChannel();
+	}
+
+	public long getWritten() {
+		return written;
+	}
+
+	/**
+	 * 应用数据块chunk[0, length)中的全部指令.
+	 */
+	public void apply(byte[] chunk, int length) throws IOException {
+		int pos = 0;
+		while (pos < length) {
+			pos = DeltaCodec.next(chunk, pos, length, op);
+			if (op.type == DeltaCodec.COPY) {
+				copy(op.index * bs, (long) op.count * bs);
+			} else {
+				write(chunk, op.offset, op.length);
+			}
+		}
+	}
+
+	private void copy(long from, long length) throws IOException {
+		if (from + length > basis.length()) {
+			throw new IOException("copy " + from + "+" + length + " exceed basis " + basis.length());
+		}
+		byte[] b = BufferPool.get().lease((int) Math.min(length, COPY_BUFFER_SIZE));
+		try {
+			basis.seek(from);
+			while (length > 0) {
+				int n = (int) Math.min(length, b.length);
+				basis.readFully(b, 0, n);
+				write(b, 0, n);
+				length -= n;
+			}
+		} finally {
+			BufferPool.get().release(b);
+		}
+	}
+
+	private void write(byte[] b, int offset, int length) throws IOException {
+		ByteBuffer bb = ByteBuffer.wrap(b, offset, length);
+		while (bb.hasRemaining()) {
+			written += targetChannel.write(bb);
+		}
+	}
+
+	public void close() {
+		try {
+			basis.close();
+		} catch (IOException e) {
+		}
+		try {
+			target.close();
+		} catch (IOException e) {
+		}
+	}
+}
@@ -0,0 +1,242 @@
+package com.ping.file.util;
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.security.MessageDigest;
+import java.util.HashMap;
+import java.util.Map;
+
+import com.ping.file.protocol.DeltaCodec;
+
+/**
+ * 差量编码: 按接收方的块签名扫描发送方文件, 生成COPY/LITERAL指令.
+ * <p>
+ * 以块大小的窗口逐字节滚动弱校验, 弱校验命中后再比较强校验; 命中时窗口跳过一整块, 未命中的字节累积为LITERAL.<br>
+ * 连续命中的块合并为一条COPY. 文件末尾不足一块的部分作为LITERAL发送. 由next分批取出, 便于按数据包发送.
+ *
+ * @author lawnstein.chan
+ * @version $Revision:$
+ */
+public class DeltaEncoder {
+	/**
+	 * 每个数据包中指令的长度上限.
+	 */
+	public static final int CHUNK_SIZE = 256 * 1024;
+	/**
+	 * 单条LITERAL的最大长度, 也是未发送数据在缓冲中的上限.
+	 */
+	protected static final int MAX_LITERAL = 64 * 1024;
+
+	private final DeltaSignature sig;
+	private final int bs;
+	private final RandomAccessFile raf;
+	private final MessageDigest md = DeltaSignature.newDigest();
+	/**
+	 * 弱校验 -> 首个块序号, 同一弱校验的其余块序号由chain串联.
+	 */
+	private final Map<Integer, Integer> index = new HashMap<Integer, Integer>();
+	private final int[] chain;
+
+	private final byte[] buf;
+	/**
+	 * 缓冲中的有效数据[0, end), 未发送的LITERAL起点ls, 当前窗口起点p.
+	 */
+	private int end = 0;
+	private int ls = 0;
+	private int p = 0;
+	private boolean eof = false;
+	private boolean rolling = false;
+	private int s1 = 0;
+	private int s2 = 0;
+	/**
+	 * 待合并发送的COPY.
+	 */
+	private long copyIndex = -1;
+	private int copyCount = 0;
+
+	private long literalBytes = 0;
+	private long copyBytes = 0;
+
+	public DeltaEncoder(String path, DeltaSignature sig) throws IOException {
+		this.sig = sig;
+		this.bs = sig.getBlockSize();
+		this.raf = new RandomAccessFile(path, "r");
+		this.chain = new int[sig.getCount()];
+		for (int i = sig.getCount() - 1; i >= 0; i--) {
+			Integer head = index.put(sig.getWeak(i), i);
+			chain[i] = head == null ? -1 : head;
+		}
+		this.buf = BufferPool.get().lease(MAX_LITERAL + 2 * bs);
+	}
+
+	public long getLiteralBytes() {
+		return literalBytes;
+	}
+
+	public long getCopyBytes() {
+		return copyBytes;
+	}
+
+	/**
+	 * 生成下一批指令到out[0, limit).
+	 *
+	 * @return 写入长度, 0表示编码结束.
+	 */
+	public int next(byte[] out, int limit) throws IOException {
+		int pos = 0;
+		for (;;) {
+			if (end - p < bs && !eof) {
+				fill();
+				continue;
+			}
+			if (end - p < bs) {
+				int n = flushLiteral(out, pos, limit, end);
+				if (n < 0 || ls < end) {
+					return n < 0 ? pos : n;
+				}
+				pos = n;
+				n = flushCopy(out, pos, limit);
+				return n < 0 ? pos : n;
+			}
+
+			if (!rolling) {
+				s1 = 0;
+				s2 = 0;
+				for (int i = 0; i < bs; i++) {
+					int x = buf[p + i] & 0xff;
+					s1 += x;
+					s2 += (bs - i) * x;
+				}
+				rolling = true;
+			}
+			int match = find((s1 & 0xffff) | (s2 << 16));
+			if (match >= 0) {
+				int n = flushLiteral(out, pos, limit, p);
+				if (n < 0 || ls < p) {
+					return n < 0 ? pos : n;
+				}
+				pos = n;
+				if (copyIndex >= 0 && match == copyIndex + copyCount) {
+					copyCount++;
+				} else {
+					n = flushCopy(out, pos, limit);
+					if (n < 0) {
+						return pos;
+					}
+					pos = n;
+					copyIndex = match;
+					copyCount = 1;
+				}
+				copyBytes += bs;
+				p += bs;
+				ls = p;
+				rolling = false;
+				continue;
+			}
+
+			if (p - ls >= MAX_LITERAL) {
+				int n = flushLiteral(out, pos, limit, p);
+				if (n < 0 || ls < p) {
+					return n < 0 ? pos : n;
+				}
+				pos = n;
+			}
+			if (p + bs < end) {
+				int x = buf[p] & 0xff;
+				int y = buf[p + bs] & 0xff;
+				s1 += y - x;
+				s2 += s1 - bs * x;
+			} else {
+				rolling = false;
+			}
+			p++;
+		}
+	}
+
+	public void close() {
+		try {
+			raf.close();
+		} catch (IOException e) {
+		}
+		BufferPool.get().release(buf);
+	}
+
+	/**
+	 * 强校验一致的块中优先选择可与待发送COPY合并的块.
+	 */
+	private int find(int weak) {
+		Integer head = index.get(weak);
+		if (head == null) {
+			return -1;
+		}
+		long strong = DeltaSignature.strong(md, buf, p, bs);
+		int found = -1;
+		for (int i = head; i >= 0; i = chain[i]) {
+			if (sig.getStrong(i) != strong) {
+				continue;
+			}
+			if (copyIndex >= 0 && i == copyIndex + copyCount) {
+				return i;
+			}
+			if (found < 0) {
+				found = i;
+			}
+		}
+		return found;
+	}
+
+	/**
+	 * 发送[ls, upto)的LITERAL, 之前先发送待合并的COPY; 空间不足时只发送一部分, 调用方由ls判断是否发送完.
+	 *
+	 * @return 写入后的位置, 连COPY也无空间写入时为-1.
+	 */
+	private int flushLiteral(byte[] out, int pos, int limit, int upto) {
+		if (upto <= ls) {
+			return pos;
+		}
+		pos = flushCopy(out, pos, limit);
+		if (pos < 0) {
+			return -1;
+		}
+		int room = limit - pos - DeltaCodec.MAX_HEAD_LENGTH;
+		if (room <= 0) {
+			return pos;
+		}
+		int n = Math.min(upto - ls, room);
+		pos = DeltaCodec.writeLiteral(out, pos, buf, ls, n);
+		ls += n;
+		literalBytes += n;
+		return pos;
+	}
+
+	private int flushCopy(byte[] out, int pos, int limit) {
+		if (copyIndex < 0) {
+			return pos;
+		}
+		if (limit - pos < DeltaCodec.MAX_HEAD_LENGTH) {
+			return -1;
+		}
+		pos = DeltaCodec.writeCopy(out, pos, copyIndex, copyCount);
+		copyIndex = -1;
+		copyCount = 0;
+		return pos;
+	}
+
+	/**
+	 * 丢弃已发送的数据并从文件补充缓冲.
+	 */
+	private void fill() throws IOException {
+		if (ls > 0) {
+			System.arraycopy(buf, ls, buf, 0, end - ls);
+			end -= ls;
+			p -= ls;
+			ls = 0;
+		}
+		int n = raf.read(buf, end, buf.length - end);
+		if (n < 0) {
+			eof = true;
+		} else {
+			end += n;
+		}
+	}
+}
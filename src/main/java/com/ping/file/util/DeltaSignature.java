@@ -0,0 +1,164 @@
+package com.ping.file.util;
+
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+/**
+ * 差量传输的块签名.
+ * <p>
+ * 接收方原文件按blockSize分块(末尾不足一块的部分不计), 每块一个弱校验(可滚动计算)和一个强校验(MD5前8字节).<br>
+ * 块大小随文件增大, 使块数不超过MAX_BLOCKS. 序列化为每块12字节: 4字节弱校验 + 8字节强校验.
+ *
+ * @author lawnstein.chan
+ * @version $Revision:$
+ */
+public class DeltaSignature {
+	public static final int MIN_BLOCK_SIZE = 2048;
+	public static final int MAX_BLOCKS = 1 << 17;
+	public static final int ENTRY_LENGTH = 12;
+
+	private final int blockSize;
+	private final int[] weak;
+	private final long[] strong;
+
+	private DeltaSignature(int blockSize, int count) {
+		this.blockSize = blockSize;
+		this.weak = new int[count];
+		this.strong = new long[count];
+	}
+
+	public int getBlockSize() {
+		return blockSize;
+	}
+
+	public int getCount() {
+		return weak.length;
+	}
+
+	public int getWeak(int i) {
+		return weak[i];
+	}
+
+	public long getStrong(int i) {
+		return strong[i];
+	}
+
+	public static int blockSize(long fileSize) {
+		int bs = MIN_BLOCK_SIZE;
+		while (fileSize / bs > MAX_BLOCKS) {
+			bs <<= 1;
+		}
+		return bs;
+	}
+
+	/**
+	 * 计算文件的块签名.
+	 */
+	public static DeltaSignature compute(String path) throws IOException {
+		long fileSize = Utils.filesize(path);
+		if (fileSize < 0) {
+			throw new IOException("file " + path + " not exists");
+		}
+		int bs = blockSize(fileSize);
+		DeltaSignature sig = new DeltaSignature(bs, (int) (fileSize / bs));
+		MessageDigest md = newDigest();
+		byte[] block = BufferPool.get().lease(bs);
+		InputStream is = new FileInputStream(path);
+		try {
+			for (int i = 0; i < sig.weak.length; i++) {
+				int n = 0;
+				while (n < bs) {
+					int k = is.read(block, n, bs - n);
+					if (k < 0) {
+						throw new IOException("file " + path + " truncated at block " + i);
+					}
+					n += k;
+				}
+				sig.weak[i] = weak(block, 0, bs);
+				sig.strong[i] = strong(md, block, 0, bs);
+			}
+		} finally {
+			is.close();
+			BufferPool.get().release(block);
+		}
+		return sig;
+	}
+
+	/**
+	 * 序列化后的长度.
+	 */
+	public int length() {
+		return weak.length * ENTRY_LENGTH;
+	}
+
+	/**
+	 * 序列化到target, 长度为length().
+	 */
+	public void write(byte[] target) {
+		int pos = 0;
+		for (int i = 0; i < weak.length; i++) {
+			pos = writeLong(target, pos, weak[i], 4);
+			pos = writeLong(target, pos, strong[i], 8);
+		}
+	}
+
+	public static DeltaSignature read(byte[] src, int length, int blockSize) {
+		if (blockSize < MIN_BLOCK_SIZE || length % ENTRY_LENGTH != 0 || length / ENTRY_LENGTH > MAX_BLOCKS) {
+			throw new RuntimeException("unexpected signature, " + length + " byte(s), block size " + blockSize);
+		}
+		DeltaSignature sig = new DeltaSignature(blockSize, length / ENTRY_LENGTH);
+		int pos = 0;
+		for (int i = 0; i < sig.weak.length; i++) {
+			sig.weak[i] = (int) readLong(src, pos, 4);
+			sig.strong[i] = readLong(src, pos + 4, 8);
+			pos += ENTRY_LENGTH;
+		}
+		return sig;
+	}
+
+	/**
+	 * 弱校验: a为字节和, b为按位置加权和, 均取低16位; 窗口右移一字节可由rollA/rollB更新.
+	 */
+	public static int weak(byte[] b, int offset, int length) {
+		int s1 = 0;
+		int s2 = 0;
+		for (int i = 0; i < length; i++) {
+			int x = b[offset + i] & 0xff;
+			s1 += x;
+			s2 += (length - i) * x;
+		}
+		return (s1 & 0xffff) | (s2 << 16);
+	}
+
+	public static long strong(MessageDigest md, byte[] b, int offset, int length) {
+		md.update(b, offset, length);
+		byte[] d = md.digest();
+		return readLong(d, 0, 8);
+	}
+
+	public static MessageDigest newDigest() {
+		try {
+			return MessageDigest.getInstance("MD5");
+		} catch (NoSuchAlgorithmException e) {
+			throw new RuntimeException(e);
+		}
+	}
+
+	private static int writeLong(byte[] target, int pos, long v, int bytes) {
+		for (int i = bytes - 1; i >= 0; i--) {
+			target[pos++] = (byte) (v >>> (i * 8));
+		}
+		return pos;
+	}
+
+	private static long readLong(byte[] src, int pos, int bytes) {
+		long v = 0;
+		for (int i = 0; i < bytes; i++) {
+			v = (v << 8) | (src[pos + i] & 0xff);
+		}
+		return v;
+	}
+}
@@ -1,13 +1,22 @@
 
 package com.ping.file.util;
 
+import java.lang.reflect.Method;
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.AbstractExecutorService;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
 import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * 命名线程工厂.
+ * <p>
+ * JDK 21+ 可创建虚拟线程, 通过反射调用Thread.ofVirtual(), 低版本JDK回退为平台线程.
  * 
  * @author Lawnstein.Chan
  * @version $Revision:$
@@ -15,12 +24,134 @@ import java.util.concurrent.atomic.AtomicInteger;
 public class NamedThreadFactory implements ThreadFactory {
 	private final static Map<String, AtomicInteger> threadNumber = new ConcurrentHashMap<String, AtomicInteger>();
 
+	/**
+	 * Thread.ofVirtual()及Thread.Builder的name/unstarted方法, 不支持虚拟线程时为null.
+	 */
+	private final static Method OF_VIRTUAL;
+	private final static Method BUILDER_NAME;
+	private final static Method BUILDER_UNSTARTED;
+
+	static {
+		Method ofVirtual = null;
+		Method builderName = null;
+		Method builderUnstarted = null;
+		try {
+			ofVirtual = Thread.class.getMethod("ofVirtual");
+			Class<?> builder = Class.forName("java.lang.Thread$Builder");
+			builderName = builder.getMethod("name", String.class);
+			builderUnstarted = builder.getMethod("unstarted", Runnable.class);
+		} catch (Throwable e) {
+			ofVirtual = null;
+		}
+		OF_VIRTUAL = ofVirtual;
+		BUILDER_NAME = builderName;
+		BUILDER_UNSTARTED = builderUnstarted;
+	}
+
 	private String namePrefix = "";
 
+	private boolean virtual = false;
+
 	public NamedThreadFactory(String namePrefix) {
 		this.namePrefix = namePrefix;
 	}
 
+	/**
+	 * @param virtual 是否创建虚拟线程, 当前JDK不支持时创建平台线程.
+	 */
+	public NamedThreadFactory(String namePrefix, boolean virtual) {
+		this.namePrefix = namePrefix;
+		this.virtual = virtual && isVirtualSupported();
+	}
+
+	/**
+	 * @return 当前JDK是否支持虚拟线程.
+	 */
+	public static boolean isVirtualSupported() {
+		return OF_VIRTUAL != null;
+	}
+
+	public boolean isVirtual() {
+		return virtual;
+	}
+
+	/**
+	 * 创建处理线程池: 虚拟线程模式下每个任务一个虚拟线程, 否则为maxThreads个平台线程的固定线程池.
+	 * 两种模式同时执行的任务均不超过maxThreads个, 超出的任务等待, 提交不阻塞.
+	 */
+	public static ExecutorService newExecutor(String namePrefix, int maxThreads, boolean virtual) {
+		NamedThreadFactory factory = new NamedThreadFactory(namePrefix, virtual);
+		if (!factory.isVirtual()) {
+			return Executors.newFixedThreadPool(maxThreads, factory);
+		}
+		ExecutorService executor;
+		try {
+			Method m = Executors.class.getMethod("newThreadPerTaskExecutor", ThreadFactory.class);
+			executor = (ExecutorService) m.invoke(null, factory);
+		} catch (Exception e) {
+			executor = Executors.newCachedThreadPool(factory);
+		}
+		return new BoundedExecutor(executor, maxThreads);
+	}
+
+	/**
+	 * 限制同时执行任务数的线程池, 任务开始前在虚拟线程中等待许可.
+	 */
+	private static class BoundedExecutor extends AbstractExecutorService {
+		private final ExecutorService executor;
+		private final Semaphore permits;
+
+		BoundedExecutor(ExecutorService executor, int maxThreads) {
+			this.executor = executor;
+			this.permits = new Semaphore(maxThreads > 0 ? maxThreads : 1);
+		}
+
+		@Override
+		public void execute(final Runnable command) {
+			executor.execute(new Runnable() {
+				@Override
+				public void run() {
+					try {
+						permits.acquire();
+					} catch (InterruptedException e) {
+						Thread.currentThread().interrupt();
+						return;
+					}
+					try {
+						command.run();
+					} finally {
+						permits.release();
+					}
+				}
+			});
+		}
+
+		@Override
+		public void shutdown() {
+			executor.shutdown();
+		}
+
+		@Override
+		public List<Runnable> shutdownNow() {
+			return executor.shutdownNow();
+		}
+
+		@Override
+		public boolean isShutdown() {
+			return executor.isShutdown();
+		}
+
+		@Override
+		public boolean isTerminated() {
+			return executor.isTerminated();
+		}
+
+		@Override
+		public boolean awaitTermination(long timeout, TimeUnit unit) throws InterruptedException {
+			return executor.awaitTermination(timeout, unit);
+		}
+	}
+
 	@Override
 	public Thread newThread(Runnable runnable) {
 		AtomicInteger ai = threadNumber.get(namePrefix);
@@ -34,6 +165,14 @@ public class NamedThreadFactory implements ThreadFactory {
 			}
 		}
 		String n = this.namePrefix + "-" + ai.getAndIncrement();
+		if (virtual) {
+			try {
+				Object builder = BUILDER_NAME.invoke(OF_VIRTUAL.invoke(null), n);
+				return (Thread) BUILDER_UNSTARTED.invoke(builder, runnable);
+			} catch (Exception e) {
+				throw new RuntimeException("create virtual thread " + n + " failed.", e);
+			}
+		}
 		Thread t = new Thread(runnable, n);
 		if (t.isDaemon()) {
 			t.setDaemon(false);
@@ -0,0 +1,263 @@
+package com.ping.file.util;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.nio.channels.FileChannel;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * 分段传输的已接收区间表.
+ * <p>
+ * 同一文件的多个分段连接共用一个实例, 已接收区间持久化到文件名加.@{rng}的文件: 首行为"文件长度,摘要", 之后每行一个"起始-结束"区间.<br>
+ * 文件长度或摘要与已有记录不一致时丢弃旧记录. 区间覆盖整个文件后由调用方收尾并删除记录.<br>
+ * 区间在内存中合并, 每累计STORE_EVERY_RANGES次或间隔STORE_INTERVAL_MILLIS才在区间表锁外写盘, 最后一个连接释放时补写;
+ * 异常中断最多丢失最近未写盘的区间, 续传时重传这部分数据. 写盘前先强制刷出数据文件, 记录的区间不会超出已落盘的数据.
+ *
+ * @author lawnstein.chan
+ * @version $Revision:$
+ */
+public class RangeMap {
+	/**
+	 * 传输中的文件, 按目标文件路径索引.
+	 */
+	private static final Map<String, RangeMap> OPEN = new HashMap<String, RangeMap>();
+
+	/**
+	 * 累计未写盘的区间数上限.
+	 */
+	public static final int STORE_EVERY_RANGES = 32;
+	/**
+	 * 未写盘区间的最长保留时间.
+	 */
+	public static final long STORE_INTERVAL_MILLIS = 1000;
+
+	private final String filePath;
+	private final long fileSize;
+	private final String chksum;
+	/**
+	 * 互不相邻的已接收区间, 起始 -> 结束(不含).
+	 */
+	private final TreeMap<Long, Long> ranges = new TreeMap<Long, Long>();
+	private int refs = 0;
+	private boolean completed = false;
+	/**
+	 * 区间版本, 每次合并加一; 写盘按版本跳过过期快照.
+	 */
+	private long version = 0;
+	private int unstored = 0;
+	// 首个区间立即写盘, 标记文件传输中
+	private long storedMillis = 0;
+	/**
+	 * 串行化写盘, 不与区间合并共用锁.
+	 */
+	private final Object storeLock = new Object();
+	private long storedVersion = 0;
+	private boolean deleted = false;
+
+	private RangeMap(String filePath, long fileSize, String chksum) {
+		this.filePath = filePath;
+		this.fileSize = fileSize;
+		this.chksum = chksum;
+	}
+
+	/**
+	 * 文件是否有未完成的分段传输.
+	 */
+	public static synchronized boolean exists(String filePath) {
+		return OPEN.containsKey(filePath) || new File(filePath + Utils.DEFAULT_TRANSFERING_RNG_SUFFIX).exists();
+	}
+
+	/**
+	 * 获取文件的区间表, 使用结束后调用release.
+	 */
+	public static synchronized RangeMap acquire(String filePath, long fileSize, String chksum) {
+		RangeMap m = OPEN.get(filePath);
+		if (m == null || m.fileSize != fileSize || !Utils.equals(m.chksum, chksum)) {
+			m = new RangeMap(filePath, fileSize, chksum);
+			m.load();
+			OPEN.put(filePath, m);
+		}
+		m.refs++;
+		return m;
+	}
+
+	/**
+	 * 释放区间表, 最后一个连接释放时写入未写盘的区间.
+	 *
+	 * @param data 数据文件的通道, 写入区间前强制刷盘; 须在关闭通道前释放.
+	 */
+	public static void release(RangeMap m, FileChannel data) {
+		synchronized (RangeMap.class) {
+			if (--m.refs > 0) {
+				return;
+			}
+			if (OPEN.get(m.filePath) == m) {
+				OPEN.remove(m.filePath);
+			}
+		}
+		try {
+			m.flush(data);
+		} catch (IOException e) {
+		}
+	}
+
+	/**
+	 * @return pos所在的已接收区间的结束位置, pos未接收时为pos.
+	 */
+	public synchronized long resumeFrom(long pos) {
+		Map.Entry<Long, Long> e = ranges.floorEntry(pos);
+		if (e != null && e.getValue() >= pos) {
+			return e.getValue();
+		}
+		return pos;
+	}
+
+	/**
+	 * 记录已写入的区间[start, end), 按STORE_EVERY_RANGES和STORE_INTERVAL_MILLIS批量持久化.
+	 *
+	 * @param data 数据文件的通道, 写入区间前强制刷盘. 同一文件任一通道刷盘即覆盖所有连接已写入的数据.
+	 * @return 本次记录后区间首次覆盖整个文件.
+	 */
+	public boolean add(long start, long end, FileChannel data) throws IOException {
+		String snapshot = null;
+		long v = 0;
+		boolean complete = false;
+		synchronized (this) {
+			if (end > start) {
+				merge(start, end);
+				long now = System.currentTimeMillis();
+				if (++unstored >= STORE_EVERY_RANGES || now - storedMillis >= STORE_INTERVAL_MILLIS) {
+					snapshot = snapshot();
+					v = version;
+					unstored = 0;
+					storedMillis = now;
+				}
+			}
+			if (!completed && isComplete()) {
+				// 完成后由调用方删除记录, 无需写盘
+				completed = true;
+				complete = true;
+				snapshot = null;
+			}
+		}
+		if (snapshot != null) {
+			store(snapshot, v, data);
+		}
+		return complete;
+	}
+
+	/**
+	 * 写入未写盘的区间.
+	 */
+	public void flush(FileChannel data) throws IOException {
+		String snapshot;
+		long v;
+		synchronized (this) {
+			if (unstored == 0 || completed) {
+				return;
+			}
+			snapshot = snapshot();
+			v = version;
+			unstored = 0;
+			storedMillis = System.currentTimeMillis();
+		}
+		store(snapshot, v, data);
+	}
+
+	private void merge(long start, long end) {
+		Map.Entry<Long, Long> e = ranges.floorEntry(start);
+		if (e != null && e.getValue() >= start) {
+			start = e.getKey();
+			end = Math.max(end, e.getValue());
+		}
+		Map.Entry<Long, Long> next = ranges.ceilingEntry(start);
+		while (next != null && next.getKey() <= end) {
+			end = Math.max(end, next.getValue());
+			ranges.remove(next.getKey());
+			next = ranges.ceilingEntry(start);
+		}
+		ranges.put(start, end);
+		version++;
+	}
+
+	public synchronized boolean isComplete() {
+		Long end = ranges.get(0L);
+		return end != null && end >= fileSize;
+	}
+
+	/**
+	 * 传输完成后删除记录.
+	 */
+	public void delete() {
+		synchronized (storeLock) {
+			deleted = true;
+			Utils.fileDelete(filePath + Utils.DEFAULT_TRANSFERING_RNG_SUFFIX);
+		}
+	}
+
+	private void load() {
+		File f = new File(filePath + Utils.DEFAULT_TRANSFERING_RNG_SUFFIX);
+		if (!f.exists()) {
+			return;
+		}
+		BufferedReader reader = null;
+		try {
+			reader = new BufferedReader(new InputStreamReader(new FileInputStream(f), Utils.DEFAULT_FILE_ENCODING));
+			String head = reader.readLine();
+			if (head == null || !head.equals(fileSize + "," + chksum)) {
+				return;
+			}
+			String line;
+			while ((line = reader.readLine()) != null) {
+				int i = line.indexOf('-');
+				if (i > 0) {
+					ranges.put(Long.valueOf(line.substring(0, i)), Long.valueOf(line.substring(i + 1)));
+				}
+			}
+		} catch (IOException | NumberFormatException e) {
+			ranges.clear();
+		} finally {
+			if (reader != null) {
+				try {
+					reader.close();
+				} catch (IOException e) {
+				}
+			}
+		}
+	}
+
+	private String snapshot() {
+		StringBuilder sb = new StringBuilder(32 + ranges.size() * 24);
+		sb.append(fileSize).append(',').append(chksum);
+		for (Map.Entry<Long, Long> e : ranges.entrySet()) {
+			sb.append('\n').append(e.getKey()).append('-').append(e.getValue());
+		}
+		return sb.toString();
+	}
+
+	private void store(String snapshot, long v, FileChannel data) throws IOException {
+		synchronized (storeLock) {
+			if (deleted || v <= storedVersion) {
+				return;
+			}
+			// 快照内的区间均在记录前写入, 先刷出数据再持久化区间
+			if (data != null && data.isOpen()) {
+				data.force(false);
+			}
+			FileOutputStream os = new FileOutputStream(filePath + Utils.DEFAULT_TRANSFERING_RNG_SUFFIX, false);
+			try {
+				os.write(snapshot.getBytes(Utils.DEFAULT_FILE_ENCODING));
+				os.getFD().sync();
+			} finally {
+				os.close();
+			}
+			storedVersion = v;
+		}
+	}
+}
@@ -1,11 +1,16 @@
 
 package com.ping.file.util;
 
+import com.ping.file.protocol.PacketCodec;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.AtomicMoveNotSupportedException;
 import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
 import java.util.ArrayList;
@@ -24,11 +29,48 @@ public class Utils {
     public final static String DEFAULT_CHECKSUM_ALGO = CheckSumAlgoType.SHA_512.getName();
     public final static String DEFAULT_FILE_ENCODING = "UTF-8";
     public final static String DEFAULT_TRANSFERING_CNF_SUFFIX = ".@{cnf}";
+    public final static String DEFAULT_TRANSFERING_RNG_SUFFIX = ".@{rng}";
+    public final static String DEFAULT_TRANSFERING_DLT_SUFFIX = ".@{dlt}";
     public final static long DEFAULT_CHUNK_SIZE = 1024;
-    public final static int HEADLENGTH = 8;
+    public final static long MAX_WINDOW_SIZE = 64L * 1024 * 1024;
+    public final static long MAX_CHUNK_SIZE = 16L * 1024 * 1024;
+    public final static int HEADLENGTH = PacketCodec.PRELUDE_LENGTH;
     public final static int DEFAULT_TIMEOUT_SEC = 30;
+    /**
+     * 计算文件摘要时每次读取的长度.
+     */
+    public final static int CHKSUM_SLICE_SIZE = 1024 * 1024;
+    /**
+     * 本端计算摘要的算法, 对端按摘要前缀使用相同算法比较.
+     */
+    private static volatile CheckSumAlgoType chksumAlgo = CheckSumAlgoType.SHA_512;
 
+    public static CheckSumAlgoType getChksumAlgo() {
+        return chksumAlgo;
+    }
+
+    public static void setChksumAlgo(CheckSumAlgoType algo) {
+        chksumAlgo = algo == null ? CheckSumAlgoType.SHA_512 : algo;
+    }
+
+    /**
+     * 用本端算法计算文件摘要.
+     */
     public static String chksum(String filename) {
+        return chksum(filename, chksumAlgo);
+    }
+
+    /**
+     * 用与reference相同的算法计算文件摘要, 用于和对端或变更记录中的摘要比较.
+     */
+    public static String chksumAs(String filename, String reference) {
+        return chksum(filename, CheckSumAlgoType.of(reference));
+    }
+
+    /**
+     * 文件摘要, 以CHKSUM_SLICE_SIZE大小的缓冲分段读取, 内存占用与文件大小无关.
+     */
+    public static String chksum(String filename, CheckSumAlgoType algo) {
         File file = new File(filename);
         if (file.isDirectory()) {
             return null;
@@ -36,20 +78,53 @@ public class Utils {
         if (!file.exists()) {
             return null;
         }
+        ByteBuffer buf = BufferPool.get().leaseBuffer(CHKSUM_SLICE_SIZE);
+        FileInputStream is = null;
         try {
-            MessageDigest messageDigest = MessageDigest.getInstance(DEFAULT_CHECKSUM_ALGO);
-            messageDigest.update(Files.readAllBytes(file.toPath()));
-            byte[] digestBytes = messageDigest.digest();
-            StringBuffer sb = new StringBuffer();
-            for (byte b : digestBytes) {
-                sb.append(Integer.toString((b & 0xff) + 0x100, 16).substring(1));
+            MessageDigest messageDigest = algo.newDigest();
+            is = new FileInputStream(file);
+            FileChannel fc = is.getChannel();
+            buf.clear();
+            while (fc.read(buf) >= 0) {
+                buf.flip();
+                messageDigest.update(buf);
+                buf.clear();
             }
-            return sb.toString();
-        } catch (NoSuchAlgorithmException | IOException e) {
+            return algo.getPrefix() + toHex(messageDigest.digest());
+        } catch (IOException | NoSuchAlgorithmException e) {
             return null;
+        } finally {
+            if (is != null) {
+                try {
+                    is.close();
+                } catch (IOException e) {
+                }
+            }
+            BufferPool.get().release(buf);
         }
     }
 
+    /**
+     * 已读入内存的文件内容的摘要, 与chksum(String)一致.
+     */
+    public static String chksum(byte[] bytes, int offset, int length) {
+        try {
+            MessageDigest messageDigest = chksumAlgo.newDigest();
+            messageDigest.update(bytes, offset, length);
+            return chksumAlgo.getPrefix() + toHex(messageDigest.digest());
+        } catch (NoSuchAlgorithmException e) {
+            return null;
+        }
+    }
+
+    private static String toHex(byte[] digestBytes) {
+        StringBuffer sb = new StringBuffer();
+        for (byte b : digestBytes) {
+            sb.append(Integer.toString((b & 0xff) + 0x100, 16).substring(1));
+        }
+        return sb.toString();
+    }
+
     private final static Base64.Encoder encoder = Base64.getEncoder();
     private final static Base64.Decoder decoder = Base64.getDecoder();
 
@@ -327,7 +402,7 @@ public class Utils {
                 }
             }
         } else if (file.isFile()) {
-            if (!file.getPath().endsWith(Utils.DEFAULT_TRANSFERING_CNF_SUFFIX)) {
+            if (!isTransferingConf(file.getPath())) {
                 list.add(file.getPath());
             }
         } else {
@@ -335,6 +410,25 @@ public class Utils {
         }
     }
 
+    /**
+     * 续传记录文件(.@{cnf}, .@{rng})和差量传输临时文件(.@{dlt}), 不参与传输和同步.
+     */
+    public static boolean isTransferingConf(String path) {
+        return path.endsWith(DEFAULT_TRANSFERING_CNF_SUFFIX) || path.endsWith(DEFAULT_TRANSFERING_RNG_SUFFIX)
+                || path.endsWith(DEFAULT_TRANSFERING_DLT_SUFFIX);
+    }
+
+    /**
+     * 以source替换target, 文件系统支持时为原子替换.
+     */
+    public static void replaceFile(String source, String target) throws IOException {
+        try {
+            Files.move(new File(source).toPath(), new File(target).toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (AtomicMoveNotSupportedException e) {
+            Files.move(new File(source).toPath(), new File(target).toPath(), StandardCopyOption.REPLACE_EXISTING);
+        }
+    }
+
     public static boolean isDirectoryPath(String path) {
         return path == null ? false : (path.endsWith("/") || path.endsWith("\\"));
     }
@@ -0,0 +1,139 @@
+package com.ping.file.util;
+
+import java.security.MessageDigest;
+
+/**
+ * XXH64摘要(种子0), 8字节大端.
+ * <p>
+ * 每32字节按4个64位累加器处理, 不足32字节的部分缓存到下次更新或结束时处理.
+ *
+ * @author lawnstein.chan
+ * @version $Revision:$
+ */
+class Xxh64Digest extends MessageDigest {
+	private static final long P1 = 0x9E3779B185EBCA87L;
+	private static final long P2 = 0xC2B2AE3D27D4EB4FL;
+	private static final long P3 = 0x165667B19E3779F9L;
+	private static final long P4 = 0x85EBCA77C2B2AE63L;
+	private static final long P5 = 0x27D4EB2F165667C5L;
+
+	private long v1;
+	private long v2;
+	private long v3;
+	private long v4;
+	private long total;
+	private final byte[] buf = new byte[32];
+	private int buffered;
+
+	Xxh64Digest() {
+		super(CheckSumAlgoType.XXH64.getName());
+		engineReset();
+	}
+
+	@Override
+	protected void engineUpdate(byte input) {
+		engineUpdate(new byte[] { input }, 0, 1);
+	}
+
+	@Override
+	protected void engineUpdate(byte[] input, int offset, int len) {
+		total += len;
+		int end = offset + len;
+		if (buffered > 0) {
+			int n = Math.min(32 - buffered, len);
+			System.arraycopy(input, offset, buf, buffered, n);
+			buffered += n;
+			offset += n;
+			if (buffered < 32) {
+				return;
+			}
+			stripe(buf, 0);
+			buffered = 0;
+		}
+		while (end - offset >= 32) {
+			stripe(input, offset);
+			offset += 32;
+		}
+		if (offset < end) {
+			System.arraycopy(input, offset, buf, 0, end - offset);
+			buffered = end - offset;
+		}
+	}
+
+	private void stripe(byte[] b, int p) {
+		v1 = round(v1, readLong(b, p));
+		v2 = round(v2, readLong(b, p + 8));
+		v3 = round(v3, readLong(b, p + 16));
+		v4 = round(v4, readLong(b, p + 24));
+	}
+
+	@Override
+	protected byte[] engineDigest() {
+		long h;
+		if (total >= 32) {
+			h = Long.rotateLeft(v1, 1) + Long.rotateLeft(v2, 7) + Long.rotateLeft(v3, 12) + Long.rotateLeft(v4, 18);
+			h = merge(h, v1);
+			h = merge(h, v2);
+			h = merge(h, v3);
+			h = merge(h, v4);
+		} else {
+			h = P5;
+		}
+		h += total;
+		int p = 0;
+		for (; p + 8 <= buffered; p += 8) {
+			h ^= round(0, readLong(buf, p));
+			h = Long.rotateLeft(h, 27) * P1 + P4;
+		}
+		if (p + 4 <= buffered) {
+			h ^= (readInt(buf, p) & 0xFFFFFFFFL) * P1;
+			h = Long.rotateLeft(h, 23) * P2 + P3;
+			p += 4;
+		}
+		for (; p < buffered; p++) {
+			h ^= (buf[p] & 0xff) * P5;
+			h = Long.rotateLeft(h, 11) * P1;
+		}
+		h ^= h >>> 33;
+		h *= P2;
+		h ^= h >>> 29;
+		h *= P3;
+		h ^= h >>> 32;
+		engineReset();
+		byte[] d = new byte[8];
+		for (int i = 0; i < 8; i++) {
+			d[i] = (byte) (h >>> (56 - i * 8));
+		}
+		return d;
+	}
+
+	@Override
+	protected void engineReset() {
+		v1 = P1 + P2;
+		v2 = P2;
+		v3 = 0;
+		v4 = -P1;
+		total = 0;
+		buffered = 0;
+	}
+
+	private static long round(long acc, long input) {
+		acc += input * P2;
+		acc = Long.rotateLeft(acc, 31);
+		return acc * P1;
+	}
+
+	private static long merge(long acc, long v) {
+		acc ^= round(0, v);
+		return acc * P1 + P4;
+	}
+
+	private static long readLong(byte[] b, int p) {
+		return (b[p] & 0xffL) | (b[p + 1] & 0xffL) << 8 | (b[p + 2] & 0xffL) << 16 | (b[p + 3] & 0xffL) << 24 | (b[p + 4] & 0xffL) << 32
+				| (b[p + 5] & 0xffL) << 40 | (b[p + 6] & 0xffL) << 48 | (b[p + 7] & 0xffL) << 56;
+	}
+
+	private static int readInt(byte[] b, int p) {
+		return (b[p] & 0xff) | (b[p + 1] & 0xff) << 8 | (b[p + 2] & 0xff) << 16 | (b[p + 3] & 0xff) << 24;
+	}
+}
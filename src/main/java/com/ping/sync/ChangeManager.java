@@ -1,6 +1,8 @@
 
 package com.ping.sync;
 
+import com.ping.file.util.CheckSumAlgoType;
+import com.ping.file.util.ChksumCache;
 import com.ping.file.util.Utils;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -11,6 +13,8 @@ import java.io.IOException;
 
 /**
  * 修改管理.
+ * <p>
+ * 变更记录保存在changelog目录下的ChangelogStore中, 客户端以文件规范路径, 服务端以相对基础目录的路径为键.
  *
  * @author lawnstein.chan
  * @version $Revision:$
@@ -25,6 +29,16 @@ public class ChangeManager {
     protected static String basePath = null;
     protected static String changePath = null;
 
+    /**
+     * 变更记录存储, 为null时(日志已被其他进程打开)仍按文件逐个保存.
+     */
+    protected static ChangelogStore store = null;
+
+    /**
+     * changelog目录下存在逐个文件保存的旧记录, 读取时迁移到存储中.
+     */
+    protected static boolean legacy = false;
+
     public static void setBasePath(String filePath, String changelogPath) {
         logger.debug("change base path {}, changelogPath {}", filePath, changelogPath);
         String canonicalFilePath = Utils.getCanonicalPath(filePath);
@@ -34,6 +48,28 @@ public class ChangeManager {
                 .equals(canonicalChangelogPath) ? canonicalFilePath + DEFAULT_CHANGLOG_DIR + File.separator : canonicalChangelogPath + File.separator + DEFAULT_CHANGLOG_DIR + File.separator;
         logger.debug("basePath {}", ChangeManager.basePath);
         logger.debug("changelogPath {}", ChangeManager.changePath);
+        close();
+        store = ChangelogStore.open(ChangeManager.changePath);
+        legacy = false;
+        String[] names = new File(ChangeManager.changePath).list();
+        if (names != null) {
+            for (String n : names) {
+                /**
+                 * 旧记录的目录和文件名为Base64编码, 不含'.'.
+                 */
+                if (n.indexOf('.') < 0) {
+                    legacy = true;
+                    break;
+                }
+            }
+        }
+    }
+
+    public static synchronized void close() {
+        if (store != null) {
+            store.close();
+            store = null;
+        }
     }
 
     public static String getBaseDir() {
@@ -106,6 +142,68 @@ public class ChangeManager {
         return fullPath.substring(getChangelogDir().length());
     }
 
+    private static String getServKey(String path) {
+        String changelogPath = Utils.getCanonicalPath(getBaseDir() + path);
+        return Utils.substring(changelogPath, getBaseDir().length());
+    }
+
+    /**
+     * 读取变更记录, 存储中没有时读取旧记录文件并迁移.
+     */
+    private static String readEntry(String key) {
+        ChangelogStore s = store;
+        if (s != null) {
+            String chksum = s.get(key);
+            if (chksum != null || !legacy) {
+                return chksum;
+            }
+        }
+        String legacyPath = getChangelogDir() + getEncodeName(key);
+        String chksum = readChksum(legacyPath);
+        if (chksum != null && chksum.length() > 0 && s != null) {
+            s.put(key, chksum, null);
+            deleteLegacy(legacyPath);
+        }
+        return chksum;
+    }
+
+    /**
+     * 写入变更记录, 存储中的记录在后台与dataPath的同步一起提交.
+     */
+    private static void writeEntry(String key, String chksum, String dataPath) {
+        ChangelogStore s = store;
+        if (s != null) {
+            s.put(key, chksum, dataPath);
+        } else {
+            Utils.fileWrite(getChangelogDir() + getEncodeName(key), chksum);
+        }
+    }
+
+    private static void deleteEntry(String key) {
+        ChangelogStore s = store;
+        if (s != null) {
+            s.remove(key);
+        }
+        if (s == null || legacy) {
+            deleteLegacy(getChangelogDir() + getEncodeName(key));
+        }
+    }
+
+    /**
+     * 删除旧记录文件及其空的上级目录.
+     */
+    private static void deleteLegacy(String legacyPath) {
+        File f = new File(legacyPath);
+        if (!f.delete()) {
+            return;
+        }
+        File root = new File(getChangelogDir());
+        File parent = f.getParentFile();
+        while (parent != null && !parent.equals(root) && parent.delete()) {
+            parent = parent.getParentFile();
+        }
+    }
+
     /**
      * @param path
      * @return 0 - no change. <br>
@@ -113,38 +211,60 @@ public class ChangeManager {
      * 3 - no sync config file but changed.<br>
      */
     public static int getClientChanged(String path) {
+        return getClientChanged(path, null);
+    }
+
+    /**
+     * @param fileChksum 已计算的文件摘要, 为null时计算.
+     */
+    public static int getClientChanged(String path, String fileChksum) {
         if (path == null) {
             return 2;
         }
 
-        String changelogPath = getChangelogDir() + getEncodeName(Utils.getCanonicalPath(path));
-        String confChksum = readChksum(changelogPath);
+        String confChksum = readEntry(Utils.getCanonicalPath(path));
         if (confChksum == null || confChksum.length() == 0) {
             return 3;
         }
-        String fileChksum = Utils.chksum(path);
+        if (fileChksum == null || CheckSumAlgoType.of(fileChksum) != CheckSumAlgoType.of(confChksum)) {
+            fileChksum = ChksumCache.chksumAs(path, confChksum);
+        }
         // if (!fileChksum.equals(confChksum)) {
         if (!Utils.equals(fileChksum, confChksum)) {
             return 2;
         }
+        if (CheckSumAlgoType.of(confChksum) != Utils.getChksumAlgo()) {
+            /**
+             * 变更记录为其他算法的摘要, 文件未变化时改写为本端算法的摘要.
+             */
+            writeClientChangelog(path, ChksumCache.chksum(path), false);
+        }
         return 0;
     }
 
+    /**
+     * 记录下载完成的文件, 提交变更记录前强制刷出本地数据.
+     */
     public static void writeClientChangelog(String path, String chksum) {
-        String changelogPath = getChangelogDir() + getEncodeName(Utils.getCanonicalPath(path));
+        writeClientChangelog(path, chksum, true);
+    }
 
+    /**
+     * @param dataWritten 本地数据是否由本次传输写入; 上传只读取本地文件, 为false时提交变更记录不对数据文件刷盘.
+     */
+    public static void writeClientChangelog(String path, String chksum, boolean dataWritten) {
         String fileChksum = chksum;
         if (fileChksum == null || fileChksum.length() == 0) {
             fileChksum = Utils.chksum(path);
         }
 
-        Utils.fileWrite(changelogPath, chksum);
+        String key = Utils.getCanonicalPath(path);
+        writeEntry(key, fileChksum, dataWritten ? key : null);
         logger.debug("file {} chksum wrote.", path);
     }
 
     public static void deleteClientChanged(String path) {
-        String changelogPath = getChangelogDir() + getEncodeName(Utils.getCanonicalPath(path));
-        Utils.fileDelete(changelogPath);
+        deleteEntry(Utils.getCanonicalPath(path));
         logger.debug("file {} chksum delete.", path);
     }
 
@@ -162,15 +282,15 @@ public class ChangeManager {
             return 2;
         }
 
-        String changelogPath = Utils.getCanonicalPath(getBaseDir() + path);
-        changelogPath = Utils.substring(changelogPath, getBaseDir().length());
-        changelogPath = getChangelogDir() + getEncodeName(changelogPath);
-        String confChksum = readChksum(changelogPath);
+        String confChksum = readEntry(getServKey(path));
 
         int stat = -1;
-        if (confChksum == null || confChksum.length() == 0) {
+        if (confChksum == null || confChksum.length() == 0 || CheckSumAlgoType.of(confChksum) != CheckSumAlgoType.of(chksum)) {
+            /**
+             * 无变更记录或记录的摘要算法与对端不同时按对端算法计算文件摘要.
+             */
             stat = 1;
-            String fileChksum = Utils.chksum(getBaseDir() + path);
+            String fileChksum = ChksumCache.chksumAs(getBaseDir() + path, chksum);
             // if (!chksum.equals(fileChksum)) {
             if (!Utils.equals(chksum, fileChksum)) {
                 stat = 3;
@@ -200,16 +320,13 @@ public class ChangeManager {
             return new Object[]{2, null};
         }
 
-        String changelogPath = Utils.getCanonicalPath(getBaseDir() + path);
-        changelogPath = Utils.substring(changelogPath, getBaseDir().length());
-        changelogPath = getChangelogDir() + getEncodeName(changelogPath);
-        String confChksum = readChksum(changelogPath);
+        String confChksum = readEntry(getServKey(path));
 
         int stat = -1;
         String fileChksum = null;
-        if (confChksum == null || confChksum.length() == 0) {
+        if (confChksum == null || confChksum.length() == 0 || (chksum != null && CheckSumAlgoType.of(confChksum) != CheckSumAlgoType.of(chksum))) {
             stat = 1;
-            fileChksum = Utils.chksum(getBaseDir() + path);
+            fileChksum = chksum != null ? ChksumCache.chksumAs(getBaseDir() + path, chksum) : ChksumCache.chksum(getBaseDir() + path);
             // if (!chksum.equals(fileChksum)) {
             if (!Utils.equals(chksum, fileChksum)) {
                 stat = 3;
@@ -227,24 +344,17 @@ public class ChangeManager {
     }
 
     public static void writeServChangelog(String path, String chksum) {
-        String changelogPath = Utils.getCanonicalPath(getBaseDir() + path);
-        changelogPath = Utils.substring(changelogPath, getBaseDir().length());
-        changelogPath = getChangelogDir() + getEncodeName(changelogPath);
-
         String fileChksum = chksum;
         if (fileChksum == null || fileChksum.length() == 0) {
             fileChksum = Utils.chksum(getBaseDir() + path);
         }
 
-        Utils.fileWrite(changelogPath, chksum);
+        writeEntry(getServKey(path), fileChksum, getBaseDir() + path);
         logger.debug("file {} chksum wrote.", path);
     }
 
     public static void deleteServChangelog(String path) {
-        String changelogPath = Utils.getCanonicalPath(getBaseDir() + path);
-        changelogPath = Utils.substring(changelogPath, getBaseDir().length());
-        changelogPath = getChangelogDir() + getEncodeName(changelogPath);
-        Utils.fileDelete(changelogPath);
+        deleteEntry(getServKey(path));
         logger.debug("file {} chksum delete.", path);
     }
 
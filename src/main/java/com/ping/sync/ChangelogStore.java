@@ -0,0 +1,524 @@
+package com.ping.sync;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+import java.nio.charset.Charset;
+import java.nio.file.OpenOption;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.zip.CRC32;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.ping.file.util.NamedThreadFactory;
+import com.ping.file.util.Utils;
+
+/**
+ * 变更记录存储.
+ * <p>
+ * 全部变更记录追加写入changelog目录下的单个日志文件changes.log, 内存中只保留"键 -> 记录位置"的索引, 读取时按位置读一次文件.
+ * 每条记录为"CRC32, 键长度, 值长度, 键, 值", 值长度为-1表示删除. 启动时顺序读入建立索引, 遇到不完整或校验失败的记录即截断, 之后的内容视为未写入.<br>
+ * 失效记录超过有效记录且文件大于COMPACT_MIN_BYTES时, 把有效记录写入临时文件后原子替换(压缩).<br>
+ * 写入和删除先进入待提交队列, 同一键只保留最后一次更新, 读取时先查队列. 后台线程每COMMIT_INTERVAL_MILLIS提交一次:
+ * 先把队列中记录所对应的数据文件同步到磁盘, 再一次写入全部记录并同步日志文件, 崩溃后的记录不会指向未完整落盘的文件内容;
+ * 未提交的更新随崩溃丢失, 只会使文件在下次同步时重新比较.<br>
+ * 日志文件由一个进程通过changes.lock独占, 已被其他进程打开时open返回null.
+ *
+ * @author lawnstein.chan
+ * @version $Revision:$
+ */
+class ChangelogStore {
+    private static final Logger logger = LoggerFactory.getLogger(ChangeManager.class);
+    public static final String LOG_NAME = "changes.log";
+    public static final String LOCK_NAME = "changes.lock";
+    protected static final int MAGIC = 0x70636c31;
+    protected static final int HEAD_LENGTH = 12;
+    protected static final long COMPACT_MIN_BYTES = 4L * 1024 * 1024;
+    protected static final long COMMIT_INTERVAL_MILLIS = 200L;
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    private final String logPath;
+    private final String lockPath;
+    private RandomAccessFile raf;
+    private FileChannel channel;
+    private RandomAccessFile lockRaf;
+    private FileLock lock;
+    /**
+     * 键 -> 记录位置(高40位)和长度(低24位).
+     */
+    private final Map<String, Long> index = new ConcurrentHashMap<String, Long>();
+    private final ReentrantReadWriteLock rwl = new ReentrantReadWriteLock();
+    private long size = 0;
+    private long garbage = 0;
+    /**
+     * 压缩失败后, 日志再增长COMPACT_MIN_BYTES才重试.
+     */
+    private long compactRetryAt = 0;
+
+    /**
+     * 待提交的更新, value为null表示删除; dataPath为提交前需同步到磁盘的数据文件.
+     */
+    private static class Update {
+        final String value;
+        final String dataPath;
+
+        Update(String value, String dataPath) {
+            this.value = value;
+            this.dataPath = dataPath;
+        }
+    }
+
+    private final Object queueLock = new Object();
+    private Map<String, Update> queue = new LinkedHashMap<String, Update>();
+    /**
+     * 提交中的更新, 索引更新前仍可读取.
+     */
+    private Map<String, Update> committing = null;
+    private ScheduledExecutorService committer = null;
+
+    private ChangelogStore(String dir) {
+        this.logPath = dir + LOG_NAME;
+        this.lockPath = dir + LOCK_NAME;
+    }
+
+    /**
+     * 打开dir下的日志文件, 其他进程已打开或打开失败时返回null.
+     */
+    public static ChangelogStore open(String dir) {
+        new File(dir).mkdirs();
+        ChangelogStore s = new ChangelogStore(dir);
+        try {
+            if (!s.lock()) {
+                logger.warn("changelog {} is used by another process.", s.logPath);
+                return null;
+            }
+            s.openLog();
+            s.load();
+            s.compactIfNeeded();
+            s.startCommitter();
+            return s;
+        } catch (IOException e) {
+            logger.warn("changelog {} open failed, {}", s.logPath, e.getMessage());
+            s.close();
+            return null;
+        }
+    }
+
+    private boolean lock() throws IOException {
+        lockRaf = new RandomAccessFile(lockPath, "rw");
+        try {
+            lock = lockRaf.getChannel().tryLock();
+        } catch (OverlappingFileLockException e) {
+            lock = null;
+        }
+        if (lock == null) {
+            lockRaf.close();
+            lockRaf = null;
+            return false;
+        }
+        return true;
+    }
+
+    private void openLog() throws IOException {
+        raf = new RandomAccessFile(logPath, "rw");
+        channel = raf.getChannel();
+    }
+
+    private void startCommitter() {
+        final NamedThreadFactory factory = new NamedThreadFactory("Changelog");
+        committer = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread t = factory.newThread(r);
+                t.setDaemon(true);
+                return t;
+            }
+        });
+        committer.scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                commit();
+            }
+        }, COMMIT_INTERVAL_MILLIS, COMMIT_INTERVAL_MILLIS, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * 提交全部待提交的更新后关闭.
+     */
+    public void close() {
+        if (committer != null) {
+            committer.shutdown();
+            try {
+                committer.awaitTermination(10, TimeUnit.SECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            committer = null;
+        }
+        commit();
+        rwl.writeLock().lock();
+        try {
+            if (raf != null) {
+                raf.close();
+            }
+            if (lockRaf != null) {
+                lockRaf.close();
+            }
+        } catch (IOException e) {
+        } finally {
+            raf = null;
+            channel = null;
+            lockRaf = null;
+            lock = null;
+            rwl.writeLock().unlock();
+        }
+    }
+
+    public int count() {
+        return index.size();
+    }
+
+    public String get(String key) {
+        synchronized (queueLock) {
+            Update u = queue.get(key);
+            if (u == null && committing != null) {
+                u = committing.get(key);
+            }
+            if (u != null) {
+                return u.value;
+            }
+        }
+        rwl.readLock().lock();
+        try {
+            Long pos = index.get(key);
+            if (pos == null || channel == null) {
+                return null;
+            }
+            ByteBuffer buf = ByteBuffer.allocate((int) (pos & 0xffffff));
+            long offset = pos >>> 24;
+            while (buf.hasRemaining()) {
+                if (channel.read(buf, offset + buf.position()) < 0) {
+                    throw new IOException("unexpected end of log");
+                }
+            }
+            buf.flip();
+            int keyLength = buf.getInt(4);
+            int valueLength = buf.getInt(8);
+            return new String(buf.array(), HEAD_LENGTH + keyLength, valueLength, UTF8);
+        } catch (IOException e) {
+            logger.warn("changelog {} read {} failed, {}", logPath, key, e.getMessage());
+            return null;
+        } finally {
+            rwl.readLock().unlock();
+        }
+    }
+
+    /**
+     * @param dataPath 记录对应的数据文件, 提交前同步到磁盘, 为null时不同步.
+     */
+    public void put(String key, String value, String dataPath) {
+        synchronized (queueLock) {
+            queue.put(key, new Update(value, dataPath));
+        }
+    }
+
+    public void remove(String key) {
+        synchronized (queueLock) {
+            if (index.containsKey(key) || queue.containsKey(key) || (committing != null && committing.containsKey(key))) {
+                queue.put(key, new Update(null, null));
+            }
+        }
+    }
+
+    /**
+     * 同步数据文件, 只读打开不能同步时以写方式打开.
+     */
+    private static void force(String dataPath) {
+        for (OpenOption mode : new OpenOption[] { StandardOpenOption.READ, StandardOpenOption.WRITE }) {
+            FileChannel fc = null;
+            try {
+                fc = FileChannel.open(Paths.get(dataPath), mode);
+                fc.force(true);
+                return;
+            } catch (IOException e) {
+                logger.debug("force {} failed, {}", dataPath, e.getMessage());
+            } finally {
+                if (fc != null) {
+                    try {
+                        fc.close();
+                    } catch (IOException e) {
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * 组提交: 同步数据文件, 一次写入全部记录, 同步日志文件后更新索引.
+     */
+    private synchronized void commit() {
+        Map<String, Update> batch;
+        synchronized (queueLock) {
+            if (queue.isEmpty()) {
+                return;
+            }
+            batch = queue;
+            committing = batch;
+            queue = new LinkedHashMap<String, Update>();
+        }
+        try {
+            for (Update u : batch.values()) {
+                if (u.dataPath != null) {
+                    force(u.dataPath);
+                }
+            }
+            ByteBuffer[] records = new ByteBuffer[batch.size()];
+            int total = 0;
+            int i = 0;
+            for (Map.Entry<String, Update> e : batch.entrySet()) {
+                records[i] = encode(e.getKey(), e.getValue().value);
+                total += records[i].remaining();
+                i++;
+            }
+            ByteBuffer buf = ByteBuffer.allocate(total);
+            for (ByteBuffer r : records) {
+                buf.put(r);
+            }
+            buf.flip();
+            append(batch, records, buf);
+        } finally {
+            synchronized (queueLock) {
+                committing = null;
+            }
+        }
+    }
+
+    private static ByteBuffer encode(String key, String value) {
+        byte[] k = key.getBytes(UTF8);
+        byte[] v = value == null ? null : value.getBytes(UTF8);
+        ByteBuffer buf = ByteBuffer.allocate(HEAD_LENGTH + k.length + (v == null ? 0 : v.length));
+        buf.putInt(0);
+        buf.putInt(k.length);
+        buf.putInt(v == null ? -1 : v.length);
+        buf.put(k);
+        if (v != null) {
+            buf.put(v);
+        }
+        CRC32 crc = new CRC32();
+        crc.update(buf.array(), 4, buf.capacity() - 4);
+        buf.putInt(0, (int) crc.getValue());
+        buf.flip();
+        return buf;
+    }
+
+    private void append(Map<String, Update> batch, ByteBuffer[] records, ByteBuffer buf) {
+        rwl.writeLock().lock();
+        try {
+            if (channel == null) {
+                logger.warn("changelog {} closed, {} update(s) dropped.", logPath, batch.size());
+                return;
+            }
+            long offset = size;
+            try {
+                while (buf.hasRemaining()) {
+                    channel.write(buf, offset + buf.position());
+                }
+                channel.force(false);
+            } catch (IOException e) {
+                logger.warn("changelog {} commit of {} update(s) failed, {}", logPath, batch.size(), e.getMessage());
+                return;
+            }
+            int i = 0;
+            for (Map.Entry<String, Update> e : batch.entrySet()) {
+                int length = records[i++].limit();
+                Long old = e.getValue().value == null ? index.remove(e.getKey()) : index.put(e.getKey(), (offset << 24) | length);
+                if (old != null) {
+                    garbage += old & 0xffffff;
+                }
+                if (e.getValue().value == null) {
+                    garbage += length;
+                }
+                offset += length;
+            }
+            size = offset;
+            try {
+                compactIfNeeded();
+            } catch (IOException e) {
+                logger.warn("changelog {} compact failed, {}", logPath, e.getMessage());
+            }
+        } finally {
+            rwl.writeLock().unlock();
+        }
+    }
+
+    /**
+     * 顺序读入日志建立索引, 截断末尾不完整或校验失败的记录.
+     */
+    private void load() throws IOException {
+        long length = channel.size();
+        if (length == 0) {
+            ByteBuffer head = ByteBuffer.allocate(4);
+            head.putInt(MAGIC);
+            head.flip();
+            channel.write(head, 0);
+            size = 4;
+            return;
+        }
+        DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(logPath), 1024 * 1024));
+        try {
+            if (length < 4 || in.readInt() != MAGIC) {
+                throw new IOException("bad magic");
+            }
+            long offset = 4;
+            byte[] head = new byte[HEAD_LENGTH];
+            byte[] body = new byte[256];
+            CRC32 crc = new CRC32();
+            while (offset + HEAD_LENGTH <= length) {
+                in.readFully(head);
+                ByteBuffer hb = ByteBuffer.wrap(head);
+                int sum = hb.getInt();
+                int keyLength = hb.getInt();
+                int valueLength = hb.getInt();
+                int bodyLength = keyLength + Math.max(valueLength, 0);
+                if (keyLength <= 0 || valueLength < -1 || HEAD_LENGTH + (long) bodyLength > 0xffffff || offset + HEAD_LENGTH + bodyLength > length) {
+                    break;
+                }
+                if (body.length < bodyLength) {
+                    body = new byte[bodyLength];
+                }
+                in.readFully(body, 0, bodyLength);
+                crc.reset();
+                crc.update(head, 4, HEAD_LENGTH - 4);
+                crc.update(body, 0, bodyLength);
+                if ((int) crc.getValue() != sum) {
+                    break;
+                }
+                String key = new String(body, 0, keyLength, UTF8);
+                int recordLength = HEAD_LENGTH + bodyLength;
+                Long old = valueLength < 0 ? index.remove(key) : index.put(key, (offset << 24) | recordLength);
+                if (old != null) {
+                    garbage += old & 0xffffff;
+                }
+                if (valueLength < 0) {
+                    garbage += recordLength;
+                }
+                offset += recordLength;
+            }
+            if (offset < length) {
+                logger.warn("changelog {} truncated at {} of {} byte(s).", logPath, offset, length);
+                channel.truncate(offset);
+            }
+            size = offset;
+            logger.debug("changelog {} loaded, {} entries.", logPath, index.size());
+        } finally {
+            in.close();
+        }
+    }
+
+    private void compactIfNeeded() throws IOException {
+        if (size > COMPACT_MIN_BYTES && size > compactRetryAt && garbage > size - garbage) {
+            try {
+                compact();
+            } catch (IOException e) {
+                compactRetryAt = size + COMPACT_MIN_BYTES;
+                throw e;
+            }
+        }
+    }
+
+    /**
+     * 把目录项同步到磁盘, 使替换后的日志文件在崩溃后仍然可见; 不支持打开目录的平台(如Windows)忽略.
+     */
+    private void forceDir() {
+        FileChannel dc = null;
+        try {
+            dc = FileChannel.open(Paths.get(logPath).getParent(), StandardOpenOption.READ);
+            dc.force(true);
+        } catch (IOException e) {
+            logger.debug("changelog dir of {} force failed, {}", logPath, e.getMessage());
+        } finally {
+            if (dc != null) {
+                try {
+                    dc.close();
+                } catch (IOException e) {
+                }
+            }
+        }
+    }
+
+    /**
+     * 有效记录写入临时文件, 同步到磁盘后替换日志文件. 调用方持有写锁.
+     */
+    private void compact() throws IOException {
+        String tempPath = logPath + ".tmp";
+        Map<String, Long> compacted = new ConcurrentHashMap<String, Long>();
+        RandomAccessFile out = new RandomAccessFile(tempPath, "rw");
+        long offset = 4;
+        try {
+            out.setLength(0);
+            out.writeInt(MAGIC);
+            FileChannel oc = out.getChannel();
+            for (Map.Entry<String, Long> e : index.entrySet()) {
+                long pos = e.getValue();
+                int length = (int) (pos & 0xffffff);
+                ByteBuffer buf = ByteBuffer.allocate(length);
+                while (buf.hasRemaining()) {
+                    if (channel.read(buf, (pos >>> 24) + buf.position()) < 0) {
+                        throw new IOException("unexpected end of log");
+                    }
+                }
+                buf.flip();
+                while (buf.hasRemaining()) {
+                    oc.write(buf, offset + buf.position());
+                }
+                compacted.put(e.getKey(), (offset << 24) | length);
+                offset += length;
+            }
+            oc.force(true);
+        } catch (IOException e) {
+            out.close();
+            Utils.fileDelete(tempPath);
+            throw e;
+        }
+        out.close();
+        raf.close();
+        raf = null;
+        channel = null;
+        boolean replaced = false;
+        try {
+            Utils.replaceFile(tempPath, logPath);
+            replaced = true;
+            forceDir();
+        } finally {
+            /**
+             * 替换失败时重新打开原日志文件, 索引仍指向原位置.
+             */
+            if (!replaced) {
+                Utils.fileDelete(tempPath);
+            }
+            openLog();
+        }
+        logger.info("changelog {} compacted, {} entries, {} -> {} byte(s).", logPath, compacted.size(), size, offset);
+        index.clear();
+        index.putAll(compacted);
+        size = offset;
+        garbage = 0;
+    }
+}